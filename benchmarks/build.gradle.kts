@@ -0,0 +1,31 @@
+plugins {
+    java
+    id("me.champeau.jmh") version "0.7.2"
+}
+
+java {
+    toolchain {
+        languageVersion.set(JavaLanguageVersion.of(11))
+    }
+}
+
+dependencies {
+    jmh(project(":plugin"))
+    jmh(gradleApi())
+    jmh(libs.jgit)
+}
+
+tasks.jmhJar {
+    // the Gradle API alone has more entries than a zip without the zip64 extension supports
+    isZip64 = true
+}
+
+jmh {
+    warmupIterations.set(2)
+    iterations.set(5)
+    fork.set(1)
+    // for example -Pjmh.includes=RefResolution
+    providers.gradleProperty("jmh.includes").orNull?.let {
+        includes.set(listOf(it))
+    }
+}
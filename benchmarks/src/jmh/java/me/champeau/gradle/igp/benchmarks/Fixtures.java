@@ -0,0 +1,117 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Generates the fixtures of the benchmarks. Repositories are created with the git CLI,
+ * which must be available, and cloned through {@code file://} URIs, like a remote.
+ */
+public abstract class Fixtures {
+    public static final String BRANCH_PREFIX = "branch-";
+    public static final String TAG_PREFIX = "tag-";
+
+    public static File createTempDirectory(String prefix) {
+        try {
+            return Files.createTempDirectory(prefix).toFile();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Creates a remote with a single commit, half of the refs being branches and the other
+     * half tags, then clones it. The refs are written directly to the packed-refs file of
+     * the remote, which is much faster than creating them one by one.
+     *
+     * @param dir the directory in which the remote and the clone are created
+     * @param refs the number of refs of the remote
+     * @return the checkout directory of the clone
+     */
+    public static File cloneOfRemoteWithRefs(File dir, int refs) {
+        File remote = new File(dir, "remote");
+        git(dir, "init", "-q", remote.getAbsolutePath());
+        git(remote, "-c", "user.name=bench", "-c", "user.email=bench@example.com", "commit", "-q", "--allow-empty", "-m", "init");
+        String commit = git(remote, "rev-parse", "HEAD").trim();
+        List<String> lines = new ArrayList<>();
+        lines.add("# pack-refs with: peeled fully-peeled sorted ");
+        for (int i = 0; i < refs / 2; i++) {
+            lines.add(commit + " refs/heads/" + branch(i));
+        }
+        for (int i = 0; i < refs - refs / 2; i++) {
+            lines.add(commit + " refs/tags/" + tag(i));
+        }
+        try {
+            Files.write(new File(remote, ".git/packed-refs").toPath(), lines, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        File checkout = new File(dir, "checkout");
+        git(dir, "clone", "-q", "file://" + remote.getAbsolutePath(), checkout.getAbsolutePath());
+        return checkout;
+    }
+
+    public static String branch(int index) {
+        return String.format("%s%06d", BRANCH_PREFIX, index);
+    }
+
+    public static String tag(int index) {
+        return String.format("%s%06d", TAG_PREFIX, index);
+    }
+
+    /**
+     * Runs a git command and returns its standard output.
+     */
+    public static String git(File workingDir, String... args) {
+        List<String> command = new ArrayList<>();
+        command.add("git");
+        command.addAll(List.of(args));
+        try {
+            Process process = new ProcessBuilder(command)
+                    .directory(workingDir)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            if (process.waitFor() != 0) {
+                throw new IllegalStateException("Command failed: " + command);
+            }
+            return output;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static void delete(File dir) {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
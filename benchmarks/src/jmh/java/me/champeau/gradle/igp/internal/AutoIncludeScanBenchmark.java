@@ -0,0 +1,82 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp.internal;
+
+import me.champeau.gradle.igp.benchmarks.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the scan of the directories of the {@code auto.include.git.dirs} property,
+ * without a previous state, and when none of the directories changed since the previous scan.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AutoIncludeScanBenchmark {
+    private static final int ROOTS = 2;
+
+    @Param({"100", "1000"})
+    public int directoriesPerRoot;
+
+    private File dir;
+    private String property;
+    private AutoIncludeScanner scanned;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Fixtures.createTempDirectory("includegit-auto");
+        StringBuilder dirs = new StringBuilder();
+        for (int root = 0; root < ROOTS; root++) {
+            File rootDir = new File(dir, "root" + root);
+            for (int i = 0; i < directoriesPerRoot; i++) {
+                new File(rootDir, "project" + i).mkdirs();
+                // files are listed too, but ignored
+                new File(rootDir, "project" + i + ".txt").createNewFile();
+            }
+            dirs.append(root == 0 ? "" : ", ").append(rootDir.getAbsolutePath());
+        }
+        property = dirs.toString();
+        scanned = new AutoIncludeScanner();
+        scanned.scan(property, 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public AutoIncludeIndex scan() {
+        return new AutoIncludeScanner().scan(property, 1);
+    }
+
+    @Benchmark
+    public AutoIncludeIndex rescan() {
+        return scanned.scan(property, 1);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp.internal;
+
+import me.champeau.gradle.igp.benchmarks.Fixtures;
+import me.champeau.gradle.igp.internal.git.CheckoutOptions;
+import me.champeau.gradle.igp.internal.git.GitClientStrategy;
+import me.champeau.gradle.igp.internal.git.jgit.Credentials;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.slf4j.Logger;
+import org.slf4j.helpers.NOPLogger;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading and writing the checkout metadata file, which happens on every
+ * build, and the staleness check which decides if a checkout must be refreshed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CheckoutMetadataBenchmark {
+    private static final Logger LOGGER = NOPLogger.NOP_LOGGER;
+    private static final GitClientStrategy STRATEGY = new GitClientStrategy() {
+        @Override
+        public void cloneRepository(File repoDir, String uri, String rev, String branchOrTag, CheckoutMetadata current,
+                                    Credentials auth, CheckoutOptions options, SyncMetrics metrics) {
+        }
+
+        @Override
+        public void updateRepository(File repoDir, String uri, String rev, String branchOrTag, CheckoutMetadata current,
+                                     Credentials auth, CheckoutOptions options, SyncMetrics metrics) {
+        }
+
+        @Override
+        public void prefetch(File repoDir, String uri, String branchOrTag, Credentials auth, CheckoutOptions options,
+                             SyncMetrics metrics) {
+        }
+
+        @Override
+        public void ping(String uri, Credentials auth) {
+        }
+    };
+
+    @Param({"1000", "10000"})
+    public int entries;
+
+    private File dir;
+    private File metadataFile;
+    private CheckoutMetadataStore store;
+    private CheckoutMetadata current;
+
+    @Setup
+    public void setup() {
+        dir = Fixtures.createTempDirectory("includegit-metadata");
+        metadataFile = new File(dir, "checkouts.bin");
+        store = CheckoutMetadataStore.read(metadataFile, LOGGER);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < entries; i++) {
+            CheckoutMetadata metadata = metadata(i, now);
+            store.update(metadata, "0123456789abcdef0123456789abcdef01234567", i % 2 == 0);
+        }
+        store.write(metadataFile);
+        current = metadata(entries / 2, now);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Fixtures.delete(dir);
+    }
+
+    private static CheckoutMetadata metadata(int index, long lastUpdate) {
+        return new CheckoutMetadata(
+                "/home/user/project/checkouts/repo" + index,
+                "https://github.com/acme/repo" + index + ".git",
+                "",
+                "main",
+                lastUpdate
+        );
+    }
+
+    @Benchmark
+    public CheckoutMetadataStore read() {
+        return CheckoutMetadataStore.read(metadataFile, LOGGER);
+    }
+
+    @Benchmark
+    public CheckoutMetadataStore write() {
+        // writes merge the entries other builds wrote in the meantime, so they read the file too
+        store.write(metadataFile);
+        return store;
+    }
+
+    @Benchmark
+    public boolean containsKey() {
+        return STRATEGY.containsKey(store, current, 24 * 3600 * 1000L);
+    }
+}
@@ -0,0 +1,79 @@
+package me.champeau.gradle.igp.internal.git.cli;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import me.champeau.gradle.igp.benchmarks.Fixtures;
+import me.champeau.gradle.igp.internal.git.RefResolver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures how the git CLI client resolves the requested branch or tag when updating a
+ * checkout whose remote has many refs: reading the candidate refs with {@code git for-each-ref},
+ * parsing its output, then looking up a ref. Reading and parsing all the refs is measured
+ * for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GitRefsBenchmark {
+
+  @Param({"100000"})
+  public int refs;
+
+  private File dir;
+  private File checkout;
+  private String output;
+  private GitRefs parsed;
+  private String tag;
+
+  @Setup
+  public void setup() {
+    dir = Fixtures.createTempDirectory("includegit-refs");
+    checkout = Fixtures.cloneOfRemoteWithRefs(dir, refs);
+    output = Fixtures.git(checkout, "for-each-ref", GitRefs.FORMAT);
+    parsed = GitRefs.parse(output);
+    tag = Fixtures.tag(refs / 4);
+  }
+
+  @TearDown
+  public void tearDown() {
+    Fixtures.delete(dir);
+  }
+
+  @Benchmark
+  public GitRefs readAllRefs() {
+    return GitRefs.parse(Fixtures.git(checkout, "for-each-ref", GitRefs.FORMAT));
+  }
+
+  @Benchmark
+  public GitRefs readCandidateRefs() {
+    List<String> command = new ArrayList<>(List.of("for-each-ref", GitRefs.FORMAT));
+    command.addAll(RefResolver.candidates(tag));
+    return GitRefs.parse(Fixtures.git(checkout, command.toArray(new String[0])));
+  }
+
+  @Benchmark
+  public GitRefs parseAllRefs() {
+    return GitRefs.parse(output);
+  }
+
+  @Benchmark
+  public String findTag() {
+    return parsed.find(tag);
+  }
+
+  @Benchmark
+  public String findMissingRef() {
+    return parsed.find("no-such-ref");
+  }
+}
@@ -0,0 +1,72 @@
+package me.champeau.gradle.igp.internal.git.jgit;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import me.champeau.gradle.igp.benchmarks.Fixtures;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures how the jgit client resolves the requested branch or tag when updating a
+ * checkout whose remote has many refs, with a repository which is already open, as
+ * when it is cached by the daemon, and with a repository which is opened for the lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResolveRefBenchmark {
+
+  @Param({"100000"})
+  public int refs;
+
+  private File dir;
+  private File gitDir;
+  private Repository repository;
+  private String tag;
+
+  @Setup
+  public void setup() throws IOException {
+    dir = Fixtures.createTempDirectory("includegit-refs");
+    gitDir = new File(Fixtures.cloneOfRemoteWithRefs(dir, refs), ".git");
+    repository = open();
+    tag = Fixtures.tag(refs / 4);
+  }
+
+  @TearDown
+  public void tearDown() {
+    repository.close();
+    Fixtures.delete(dir);
+  }
+
+  private Repository open() throws IOException {
+    return new FileRepositoryBuilder().setGitDir(gitDir).setMustExist(true).build();
+  }
+
+  @Benchmark
+  public Ref resolveTag() throws IOException {
+    return JGitClient.resolveRef(repository, tag);
+  }
+
+  @Benchmark
+  public Ref resolveMissingRef() throws IOException {
+    return JGitClient.resolveRef(repository, "no-such-ref");
+  }
+
+  @Benchmark
+  public Ref resolveTagInNewRepository() throws IOException {
+    try (Repository fresh = open()) {
+      return JGitClient.resolveRef(fresh, tag);
+    }
+  }
+}
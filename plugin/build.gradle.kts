@@ -23,6 +23,7 @@ dependencies {
     testFixturesApi(libs.groovy)
     testFixturesApi(libs.spock)
     testFixturesImplementation(gradleTestKit())
+    testFixturesImplementation(libs.sshd.core)
 }
 
 publishing {
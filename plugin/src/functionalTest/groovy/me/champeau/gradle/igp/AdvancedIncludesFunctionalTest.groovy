@@ -121,4 +121,181 @@ class AdvancedIncludesFunctionalTest extends AbstractFunctionalTest {
 '''
     }
 
+    def "can check out several repositories in parallel"() {
+        withSample 'advanced-includes'
+
+        when:
+        run 'dependencies', '--configuration', 'compileClasspath', "-Dparallelism=$parallelism"
+
+        then:
+        tasks {
+            succeeded ':dependencies'
+        }
+        file("checkouts/testlib0/build.gradle").exists()
+        file("checkouts/testlib1/sub2/build.gradle").exists()
+
+        outputContains '''compileClasspath - Compile classpath for source set 'main'.
++--- com.acme.somelib:somelib1:0.0 -> project :testlib0
+|    \\--- org.apache.commons:commons-math3:3.6.1 FAILED
+\\--- com.acme.somelib:somelib2 -> project :testlib1
+     \\--- org.apache.commons:commons-math3:3.6.1 FAILED
+'''
+
+        where:
+        parallelism << [1, 4]
+    }
+
+    def "limits concurrent transfers (git cli: #useGitCli)"() {
+        withSample 'advanced-includes'
+
+        when:
+        run 'help', '-Dparallelism=2', '-DmaxTransfers=1', "-DuseGitCli=$useGitCli", '-i'
+
+        then:
+        tasks {
+            succeeded ':help'
+        }
+        // both repositories are cloned from the same host
+        outputContains 'Waiting for a transfer slot to github.com'
+        file("checkouts/testlib0/build.gradle").exists()
+        file("checkouts/testlib1/sub2/build.gradle").exists()
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    def "can perform a sparse checkout (git cli: #useGitCli)"() {
+        withSample 'advanced-includes'
+
+        when:
+        run 'dependencies', '--configuration', 'compileClasspath', '-Dsubdir=sub1', '-Dsparse=true', "-DuseGitCli=$useGitCli"
+
+        then:
+        tasks {
+            succeeded ':dependencies'
+        }
+        file("checkouts/testlib1/build.gradle").exists()
+        file("checkouts/testlib1/sub1/build.gradle").exists()
+        !file("checkouts/testlib1/sub2").exists()
+
+        outputContains '''compileClasspath - Compile classpath for source set 'main'.
++--- com.acme.somelib:somelib1:0.0 -> project :testlib1
+|    \\--- org.apache.commons:commons-math3:3.6.1 FAILED
+\\--- com.acme.somelib:somelib2 FAILED
+'''
+
+        when:
+        run 'dependencies', '--configuration', 'compileClasspath', '-Dsubdir=sub1', '-Dsubdir2=sub2', '-Dsparse=true', "-DuseGitCli=$useGitCli"
+
+        then:
+        tasks {
+            succeeded ':dependencies'
+        }
+        file("checkouts/testlib1/sub2/build.gradle").exists()
+
+        outputContains '''compileClasspath - Compile classpath for source set 'main'.
++--- com.acme.somelib:somelib1:0.0 -> project :testlib1
+|    \\--- org.apache.commons:commons-math3:3.6.1 FAILED
+\\--- com.acme.somelib:somelib2 -> project :testlib1_2
+     \\--- org.apache.commons:commons-math3:3.6.1 FAILED
+'''
+
+        when:
+        run 'dependencies', '--configuration', 'compileClasspath', '-Dsubdir=sub2', "-DuseGitCli=$useGitCli"
+
+        then:
+        tasks {
+            succeeded ':dependencies'
+        }
+        file("checkouts/testlib1/sub1/build.gradle").exists()
+        file("checkouts/testlib1/sub2/build.gradle").exists()
+        !file("checkouts/testlib1/.git/info/sparse-checkout").exists()
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    def "sparse checkouts of jgit never discard local changes"() {
+        withSample 'advanced-includes'
+        def checkout = file("checkouts/testlib1")
+
+        when:
+        run 'help', '-Dsubdir=sub1', '-Dsubdir2=sub2', '-Dsparse=true'
+        file("checkouts/testlib1/sub1/local.txt").text = 'local'
+        git(checkout, 'add', 'sub1/local.txt')
+        git(checkout, '-c', 'user.name=test', '-c', 'user.email=test@acme.com', 'commit', '-m', 'local change')
+        def localCommit = git(checkout, 'rev-parse', 'HEAD')
+        run 'help', '-Dsubdir=sub1', '-Dsubdir2=sub2', '-Dsparse=true'
+
+        then: "the local commit is kept, since the branch is only fast-forwarded"
+        git(checkout, 'rev-parse', 'HEAD') == localCommit
+        file("checkouts/testlib1/sub1/local.txt").exists()
+
+        when:
+        file("checkouts/testlib1/sub2/build.gradle") << '\n// local change\n'
+        fails 'help', '-Dsubdir=sub1', '-Dsparse=true'
+
+        then:
+        errorOutputContains "because it has local changes, commit or discard them first:"
+        errorOutputContains "sub2/build.gradle"
+        file("checkouts/testlib1/sub2/build.gradle").text.contains('// local change')
+    }
+
+    def "remembers the state of several checkouts of the same repository"() {
+        withSample 'advanced-includes'
+
+        when:
+        run 'dependencies', '--configuration', 'compileClasspath', '-Dparallelism=2'
+
+        then:
+        tasks {
+            succeeded ':dependencies'
+        }
+
+        when:
+        run 'dependencies', '--configuration', 'compileClasspath', '-Dparallelism=2', '-i'
+
+        then:
+        tasks {
+            succeeded ':dependencies'
+        }
+        outputDoesNotContain 'Pulling from'
+        outputDoesNotContain 'Checking out'
+    }
+
+    def "can check out several refs of the same repository as worktrees (git cli: #useGitCli)"() {
+        withSample 'advanced-includes'
+
+        when:
+        run 'dependencies', '--configuration', 'compileClasspath', '-Dparallelism=2', '-DuseWorktrees=true', "-DuseGitCli=$useGitCli"
+
+        then:
+        tasks {
+            succeeded ':dependencies'
+        }
+        file("checkouts/testlib0/testlib-0/build.gradle").exists()
+        file("checkouts/testlib1/testlib-1/sub2/build.gradle").exists()
+        file("checkouts/.repositories").listFiles().findAll { it.name.endsWith('.git') }.size() == 1
+
+        outputContains '''compileClasspath - Compile classpath for source set 'main'.
++--- com.acme.somelib:somelib1:0.0 -> project :testlib0
+|    \\--- org.apache.commons:commons-math3:3.6.1 FAILED
+\\--- com.acme.somelib:somelib2 -> project :testlib1
+     \\--- org.apache.commons:commons-math3:3.6.1 FAILED
+'''
+
+        when:
+        run 'dependencies', '--configuration', 'compileClasspath', '-Dparallelism=2', '-DuseWorktrees=true', "-DuseGitCli=$useGitCli", '-Drefresh.git.repositories', '-i'
+
+        then:
+        tasks {
+            succeeded ':dependencies'
+        }
+        outputContains 'is up-to-date with'
+        outputDoesNotContain 'Checking out'
+
+        where:
+        useGitCli << [false, true]
+    }
+
 }
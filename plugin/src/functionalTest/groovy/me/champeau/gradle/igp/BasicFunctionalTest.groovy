@@ -1,10 +1,16 @@
 package me.champeau.gradle.igp
 
+import java.nio.channels.FileChannel
 import java.nio.file.Path
+import java.nio.file.StandardOpenOption
 
 import me.champeau.includegit.AbstractFunctionalTest
+import me.champeau.includegit.GitHttpServer
+import me.champeau.includegit.GitSshServer
 import spock.lang.Issue
 import spock.lang.TempDir
+import spock.lang.Timeout
+import spock.util.concurrent.PollingConditions
 
 class BasicFunctionalTest extends AbstractFunctionalTest {
 
@@ -125,6 +131,62 @@ auto.include.git.dirs=${new File("../samples/repo").absolutePath.replace("\\", "
 '''
     }
 
+    def "can automatically use a nested clone of the same remote"() {
+        withSample 'basic'
+        def source = new File("../samples/repo/testlib0").toPath()
+        def clone = xxxParent.resolve("dev/nested/my-testlib")
+        java.nio.file.Files.walk(source).each { path ->
+            def target = clone.resolve(source.relativize(path).toString())
+            if (java.nio.file.Files.isDirectory(path)) {
+                java.nio.file.Files.createDirectories(target)
+            } else {
+                java.nio.file.Files.copy(path, target)
+            }
+        }
+        git(clone.toFile(), 'init', '-q')
+        git(clone.toFile(), 'remote', 'add', 'origin', 'git@github.com:melix/includegit-gradle-plugin.git')
+
+        file("gradle.properties") << """
+auto.include.git.dirs=${xxxParent.resolve("dev").toFile().absolutePath.replace("\\", "/")}
+auto.include.git.depth=2
+        """
+
+        when:
+        run 'dependencies', '--configuration', 'compileClasspath'
+
+        then:
+        tasks {
+            succeeded ':dependencies'
+        }
+        outputContains '''compileClasspath - Compile classpath for source set 'main'.
+\\--- com.acme.somelib:somelib1:0.0 -> project :testlib0
+     +--- org.apache.commons:commons-math3:3.6.1 FAILED
+     \\--- dummy:for-test:1.0 FAILED
+'''
+        file(".gradle/includegit/auto-include-index.bin").exists()
+        !file("checkouts/testlib0").exists()
+
+        when:
+        run 'dependencies', '--configuration', 'compileClasspath'
+
+        then:
+        outputContains '\\--- com.acme.somelib:somelib1:0.0 -> project :testlib0'
+
+        when: "the index is corrupted"
+        new DataOutputStream(file(".gradle/includegit/auto-include-index.bin").newOutputStream()).withCloseable {
+            it.writeInt(0x49474149)
+            it.writeInt(1)
+            it.writeInt(1)
+            it.writeUTF('dev')
+            it.writeLong(0)
+            it.writeInt(-1)
+        }
+        run 'dependencies', '--configuration', 'compileClasspath'
+
+        then: "the directories are scanned again"
+        outputContains '\\--- com.acme.somelib:somelib1:0.0 -> project :testlib0'
+    }
+
     def "when using auto include, do not produce NullPointerException with invalid configuration"() {
         withSample 'basic'
 
@@ -168,4 +230,741 @@ auto.include.git.dirs=${xxxParent.resolve("xxx").toFile().absolutePath.replace("
 \\--- com.acme.somelib:somelib1:0.0 -> project :testlib0
 '''
     }
+
+    def "can share objects with a cache (git cli: #useGitCli)"() {
+        withSample 'basic'
+
+        when:
+        run 'dependencies', '--configuration', 'compileClasspath', '-PsharedObjectCache=objects', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        tasks {
+            succeeded ':dependencies'
+        }
+
+        file("objects").listFiles().length == 1
+        file("checkouts/testlib0/.git/objects/info/alternates").exists()
+        file("checkouts/testlib0/build.gradle").exists()
+
+        outputContains '''compileClasspath - Compile classpath for source set 'main'.
+\\--- com.acme.somelib:somelib1:0.0 -> project :testlib0
+'''
+
+        // the objects borrowed by the checkouts are never pruned
+        def cache = file("objects").listFiles()[0]
+        git(cache, 'config', 'gc.auto') == '0'
+        git(cache, 'config', 'gc.pruneExpire') == 'never'
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    def "can perform a shallow clone"() {
+        withSample 'basic'
+
+        when:
+        run 'dependencies', '--configuration', 'compileClasspath', '-PcloneDepth=1'
+
+        then:
+        tasks {
+            succeeded ':dependencies'
+        }
+
+        file("checkouts/testlib0/.git/shallow").exists()
+
+        outputContains '''compileClasspath - Compile classpath for source set 'main'.
+\\--- com.acme.somelib:somelib1:0.0 -> project :testlib0
+'''
+    }
+
+    def "performs a shallow clone with the shared object cache (git cli: #useGitCli)"() {
+        withSample 'basic'
+
+        when:
+        run 'dependencies', '--configuration', 'compileClasspath', '-PcloneDepth=1', '-PsharedObjectCache=objects', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        tasks {
+            succeeded ':dependencies'
+        }
+        file("checkouts/testlib0/.git/shallow").exists()
+        file("checkouts/testlib0/.git/objects/info/alternates").exists()
+        git(file('checkouts/testlib0'), 'rev-list', '--count', 'HEAD') == '1'
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    def "only fetches the requested branch (git cli: #useGitCli)"() {
+        withSample 'basic'
+
+        when:
+        run 'dependencies', '--configuration', 'compileClasspath', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        tasks {
+            succeeded ':dependencies'
+        }
+        outputContains '''compileClasspath - Compile classpath for source set 'main'.
+\\--- com.acme.somelib:somelib1:0.0 -> project :testlib0
+'''
+        def config = file("checkouts/testlib0/.git/config").text
+        config.contains('+refs/heads/testlib-0:refs/remotes/origin/testlib-0')
+        !config.contains('+refs/heads/*:refs/remotes/origin/*')
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    def "does not pull when the remote branch didn't change (git cli: #useGitCli)"() {
+        withSample 'basic'
+
+        when:
+        run 'dependencies', '--configuration', 'compileClasspath', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        tasks {
+            succeeded ':dependencies'
+        }
+        outputContains '''compileClasspath - Compile classpath for source set 'main'.
+\\--- com.acme.somelib:somelib1:0.0 -> project :testlib0
+'''
+
+        when:
+        run 'dependencies', '--configuration', 'compileClasspath', useGitCli ? '-PuseGitCli' : '-Pdummy', '-Drefresh.git.repositories', '-i'
+
+        then:
+        tasks {
+            succeeded ':dependencies'
+        }
+        outputContains 'is up-to-date with https://github.com/melix/includegit-gradle-plugin.git'
+        outputDoesNotContain 'Pulling from'
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    def "reports the synchronization of repositories (git cli: #useGitCli)"() {
+        withSample 'basic'
+
+        when:
+        run 'help', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        outputContains 'Synchronized 1 Git repository in'
+        outputContains 'testlib0: cloned in'
+        def report = new groovy.json.JsonSlurper().parse(file("build/includegit/sync-report.json"))
+        report.repositories.size() == 1
+        report.repositories[0].name == 'testlib0'
+        report.repositories[0].action == 'cloned'
+        report.repositories[0].fetches > 0
+        report.repositories[0].objectsReceived > 0
+        report.repositories[0].bytesReceived > 0
+        report.repositories[0].commit.length() == 40
+
+        when:
+        run 'help', useGitCli ? '-PuseGitCli' : '-Pdummy', '-Drefresh.git.repositories'
+
+        then:
+        outputDoesNotContain 'Synchronized 1 Git repository in'
+        def refreshed = new groovy.json.JsonSlurper().parse(file("build/includegit/sync-report.json"))
+        refreshed.repositories[0].action == 'probed'
+        refreshed.repositories[0].fetches == 0
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    def "reuses the configuration cache if the checkouts didn't change (git cli: #useGitCli)"() {
+        withSample 'basic'
+
+        when:
+        run 'help', '--configuration-cache', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        outputContains 'Configuration cache entry stored'
+
+        when:
+        // the commit of the checkout is only known once it is cloned
+        run 'help', '--configuration-cache', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        outputContains 'Configuration cache entry stored'
+
+        when:
+        run 'help', '--configuration-cache', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        outputContains 'Configuration cache entry reused'
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    def "synchronizes the checkouts only when the configuration cache can't be reused (git cli: #useGitCli)"() {
+        withSample 'basic'
+        def server = GitHttpServer.serve(file('server'))
+        def uri = server.publish(createRepository('testlib', 1024), 'testlib.git')
+        def refreshInterval = '-Drefresh.git.repositories=10000'
+
+        when:
+        run 'help', '--configuration-cache', '-Puri=' + uri, '-Pbranch=main', refreshInterval, useGitCli ? '-PuseGitCli' : '-Pdummy'
+        run 'help', '--configuration-cache', '-Puri=' + uri, '-Pbranch=main', refreshInterval, useGitCli ? '-PuseGitCli' : '-Pdummy'
+        int requests = server.requestCount
+        run 'help', '--configuration-cache', '-Puri=' + uri, '-Pbranch=main', refreshInterval, useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        outputContains 'Configuration cache entry reused'
+        server.requestCount == requests
+
+        when:
+        sleep 10000
+        run 'help', '--configuration-cache', '-Puri=' + uri, '-Pbranch=main', refreshInterval, useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        outputContains 'Configuration cache entry stored'
+        server.requestCount > requests
+
+        cleanup:
+        server?.close()
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    def "uses existing checkouts without contacting the remote when offline (git cli: #useGitCli)"() {
+        withSample 'basic'
+
+        when:
+        run 'help', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        tasks {
+            succeeded ':help'
+        }
+
+        when:
+        run 'help', useGitCli ? '-PuseGitCli' : '-Pdummy', '--offline', '-Drefresh.git.repositories', '-i'
+
+        then:
+        tasks {
+            succeeded ':help'
+        }
+        outputContains 'Git repositories are offline, not pulling from https://github.com/melix/includegit-gradle-plugin.git'
+        outputDoesNotContain 'Pulling from'
+        outputDoesNotContain 'is up-to-date with'
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    def "fails fast if a repository isn't checked out when offline (git cli: #useGitCli)"() {
+        withSample 'basic'
+
+        when:
+        fails 'help', useGitCli ? '-PuseGitCli' : '-Pdummy', '-Doffline.git.repositories'
+
+        then:
+        errorOutputContains "Repository testlib0 isn't checked out in"
+        errorOutputContains 'Git repositories are offline. Run the build online once to clone https://github.com/melix/includegit-gradle-plugin.git.'
+        !file("checkouts/testlib0").exists()
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    def "prefetches branches in the background once the build finishes (git cli: #useGitCli)"() {
+        withSample 'basic'
+
+        // checkouts which were fetched from within the refresh interval aren't prefetched
+        def refreshInterval = '-Drefresh.git.repositories=20000'
+
+        when:
+        run 'help', useGitCli ? '-PuseGitCli' : '-Pdummy'
+        def checkout = file("checkouts/testlib0")
+        def remote = file("remote.git")
+        def work = file("work")
+        git(checkout, 'clone', '-q', '--bare', checkout.absolutePath, remote.absolutePath)
+        git(checkout, 'clone', '-q', remote.absolutePath, work.absolutePath)
+        git(checkout, 'remote', 'set-url', 'origin', remote.absolutePath)
+        // the checkout is up-to-date, so this update doesn't fetch
+        sleep 20000
+        run 'help', useGitCli ? '-PuseGitCli' : '-Pdummy', refreshInterval
+        git(work, '-c', 'user.name=Test', '-c', 'user.email=test@example.com', 'commit', '-q', '--allow-empty', '-m', 'New commit')
+        git(work, 'push', '-q', 'origin', 'HEAD:testlib-0')
+        def newCommit = git(work, 'rev-parse', 'HEAD')
+        run 'help', useGitCli ? '-PuseGitCli' : '-Pdummy', '-PbackgroundPrefetch', refreshInterval
+
+        then:
+        new PollingConditions(timeout: 30).eventually {
+            assert git(checkout, 'rev-parse', 'refs/remotes/origin/testlib-0') == newCommit
+        }
+        git(checkout, 'rev-parse', 'HEAD') != newCommit
+
+        when:
+        run 'help', useGitCli ? '-PuseGitCli' : '-Pdummy', '-Drefresh.git.repositories', '-i'
+
+        then:
+        outputContains "to the prefetched commit $newCommit"
+        outputDoesNotContain 'Pulling from'
+        git(checkout, 'rev-parse', 'HEAD') == newCommit
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    def "doesn't prefetch a checkout which was just fetched (git cli: #useGitCli)"() {
+        withSample 'basic'
+        def server = GitHttpServer.serve(file('server'))
+        def uri = server.publish(createRepository('testlib', 1024), 'testlib.git')
+
+        when:
+        run 'help', '-Puri=' + uri, '-Pbranch=main', useGitCli ? '-PuseGitCli' : '-Pdummy'
+        int requests = server.requestCount
+        run 'help', '-Puri=' + uri, '-Pbranch=main', '-PbackgroundPrefetch', useGitCli ? '-PuseGitCli' : '-Pdummy'
+        // gives a prefetch the time to reach the server
+        sleep 5000
+
+        then:
+        tasks {
+            succeeded ':help'
+        }
+        server.requestCount == requests
+
+        cleanup:
+        server?.close()
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    def "does not update a checkout of a pinned commit (git cli: #useGitCli)"() {
+        withSample 'basic'
+
+        when:
+        run 'dependencies', '--configuration', 'compileClasspath', '-PuseCommit=true', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        tasks {
+            succeeded ':dependencies'
+        }
+
+        when:
+        run 'dependencies', '--configuration', 'compileClasspath', '-PuseCommit=true', useGitCli ? '-PuseGitCli' : '-Pdummy', '-Drefresh.git.repositories', '-i'
+
+        then:
+        tasks {
+            succeeded ':dependencies'
+        }
+        outputContains 'is already checked out at commit df01b5ffd'
+        outputDoesNotContain 'Checking out ref'
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    def "does not resolve a branch to a ref which only ends with its name (git cli: #useGitCli)"() {
+        withSample 'basic'
+
+        when:
+        run 'help', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        tasks {
+            succeeded ':help'
+        }
+
+        when:
+        def checkout = file("checkouts/testlib0")
+        git(checkout, 'branch', 'my-testlib-1')
+        run 'help', '-Pbranch=testlib-1', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        tasks {
+            succeeded ':help'
+        }
+        git(checkout, 'rev-parse', 'HEAD') == git(checkout, 'rev-parse', 'refs/remotes/origin/testlib-1')
+        git(checkout, 'rev-parse', 'HEAD') != git(checkout, 'rev-parse', 'my-testlib-1')
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    def "falls back to a mirror if the repository can't be reached (git cli: #useGitCli)"() {
+        withSample 'basic'
+
+        when:
+        run 'help', '-PunreachableUri', '-Pmirror', '-PhedgeDelay=5000', '-i', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        tasks {
+            succeeded ':help'
+        }
+        outputContains "Unable to reach ${file('unreachable.git').absolutePath}"
+        // the mirror is only used for this synchronization
+        git(file("checkouts/testlib0"), 'config', 'remote.origin.url') == file('unreachable.git').absolutePath
+        file("checkouts/mirrors.bin").exists()
+
+        when:
+        run 'help', '-PunreachableUri', '-Pmirror', '-Drefresh.git.repositories', '-i', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        tasks {
+            succeeded ':help'
+        }
+        // the repository failed recently, so the mirror is pinged first, then the repository
+        // is pinged to check that the mirror isn't stale
+        def mirrorAnswered = result.output.indexOf('https://github.com/melix/includegit-gradle-plugin.git answered in')
+        mirrorAnswered >= 0
+        mirrorAnswered < result.output.indexOf("Unable to reach ${file('unreachable.git').absolutePath}")
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    def "doesn't synchronize from a stale mirror (git cli: #useGitCli)"() {
+        withSample 'basic'
+
+        when:
+        run 'help', '-PunreachableUri', '-Pmirror', '-i', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        tasks {
+            succeeded ':help'
+        }
+        outputContains "Unable to reach ${file('unreachable.git').absolutePath}"
+
+        when: "the repository becomes reachable, with a commit that the mirror doesn't have"
+        def repository = file('unreachable.git')
+        git(testDirectory.toFile(), 'clone', '--bare', 'https://github.com/melix/includegit-gradle-plugin.git', repository.absolutePath)
+        def newCommit = git(repository, '-c', 'user.name=test', '-c', 'user.email=test@example.com', 'commit-tree', 'testlib-0^{tree}', '-p', 'testlib-0', '-m', 'Not mirrored yet')
+        git(repository, 'update-ref', 'refs/heads/testlib-0', newCommit)
+        run 'help', '-PunreachableUri', '-Pmirror', '-Drefresh.git.repositories', '-i', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        tasks {
+            succeeded ':help'
+        }
+        // the repository failed recently, so the mirror answers first
+        outputContains 'https://github.com/melix/includegit-gradle-plugin.git is stale'
+        git(file("checkouts/testlib0"), 'rev-parse', 'HEAD') == newCommit
+        git(file("checkouts/testlib0"), 'config', 'remote.origin.url') == repository.absolutePath
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    def "retries with a backoff if the repository can't be reached"() {
+        withSample 'basic'
+
+        when:
+        fails 'help', '-PunreachableUri'
+
+        then:
+        outputContains 'Unable to synchronize testlib0, retrying in 500ms'
+        outputContains 'Unable to synchronize testlib0, retrying in 1000ms'
+        !file("checkouts/testlib0").exists()
+    }
+
+    def "keeps the existing files of a checkout directory when a clone fails (git cli: #useGitCli)"() {
+        withSample 'basic'
+        def checkout = file("checkouts/testlib0")
+        checkout.mkdirs()
+        new File(checkout, 'notes.txt').text = 'not a checkout'
+
+        when:
+        fails 'help', '-PunreachableUri', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        outputContains 'Unable to synchronize testlib0, retrying in 500ms'
+        checkout.list() as List == ['notes.txt']
+        new File(checkout, 'notes.txt').text == 'not a checkout'
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    def "doesn't replace a directory which wasn't made from a snapshot (git cli: #useGitCli)"() {
+        withSample 'basic'
+        def repository = createRepository('testlib', 16)
+        def commit = git(repository, 'rev-parse', 'HEAD')
+        def checkout = file("checkouts/testlib0")
+        checkout.mkdirs()
+        new File(checkout, 'notes.txt').text = 'not a checkout'
+
+        when:
+        fails 'help', "-Puri=${repository.absolutePath}", "-Pcommit=$commit", '-PsnapshotCache=snapshots', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        errorOutputContains "Unable to check out testlib0 from a snapshot, since ${checkout} contains files and wasn't made from a snapshot."
+        checkout.list() as List == ['notes.txt']
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    // the pool has a single connection, and JGit doesn't read all the responses of the smart protocol:
+    // if they weren't released, the next request would wait for the connection forever
+    @Timeout(120)
+    def "shares a pool of HTTP connections between transfers"() {
+        withSample 'basic'
+        def server = GitHttpServer.serve(file('server'))
+        def uri = server.publish(createRepository('testlib', 1024), 'testlib.git')
+
+        when:
+        run 'help', '-Puri=' + uri, '-Pbranch=main', '-PhttpMaxConnections=1', '-PhttpTimeout=60000', '-PsharedObjectCache=' + file('objects').absolutePath
+
+        then:
+        tasks {
+            succeeded ':help'
+        }
+        outputContains 'Code ready'
+        server.connectionCount < server.requestCount
+
+        when:
+        int connections = server.connectionCount
+        int requests = server.requestCount
+        run 'help', '-Puri=' + uri, '-Pbranch=main', '-PhttpMaxConnections=1', '-PhttpTimeout=60000', '-Drefresh.git.repositories'
+
+        then:
+        tasks {
+            succeeded ':help'
+        }
+        outputContains 'Code ready'
+        // the next build reuses the connection kept alive by the pool of the daemon
+        server.requestCount > requests
+        server.connectionCount == connections
+
+        cleanup:
+        server?.close()
+    }
+
+    def "limits the bandwidth of transfers (git cli: #useGitCli)"() {
+        withSample 'basic'
+        def server = GitHttpServer.serve(file('server'))
+        def uri = server.publish(createRepository('testlib', 256 * 1024), 'testlib.git')
+
+        when:
+        run 'help', '-Puri=' + uri, '-Pbranch=main', '-PmaxBandwidth=32000', useGitCli ? '-PuseGitCli' : '-Pdummy'
+        def durationMillis = (result.output =~ /Synchronized 1 Git repository in (\d+) ms/)[0][1] as long
+
+        then:
+        tasks {
+            succeeded ':help'
+        }
+        outputContains 'Code ready'
+        if (useGitCli) {
+            outputContains 'Limiting the bandwidth of transfers is unsupported by the git CLI client'
+        } else {
+            outputDoesNotContain 'Limiting the bandwidth of transfers is unsupported'
+            // the random bytes alone take 8 seconds to transfer
+            assert durationMillis >= 7000
+        }
+
+        cleanup:
+        server?.close()
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    def "can use Apache MINA as the SSH backend"() {
+        withSample 'basic'
+        def server = GitSshServer.serve(file('server'))
+        def uri = server.publish(createRepository('testlib', 1024), 'testlib.git')
+        // the host key of the server is checked against the known hosts of the user home,
+        // which JGit reads once per daemon, so the builds run in their own daemon
+        def userHome = file('home')
+        server.trustIn(userHome)
+        file('gradle.properties').text = "org.gradle.jvmargs=-Duser.home=${userHome.absolutePath}\n"
+        def sshArgs = ['-Puri=' + uri, '-Pbranch=main', '-PsshBackend=APACHE_MINA', '-PsshPassword=' + GitSshServer.PASSWORD, '-Duser.home=' + userHome.absolutePath]
+
+        when:
+        run 'help', *sshArgs
+
+        then:
+        tasks {
+            succeeded ':help'
+        }
+        outputContains 'Code ready'
+        server.sessionCount == 1
+
+        when:
+        int channels = server.channelCount
+        run 'help', *sshArgs, '-Drefresh.git.repositories'
+
+        then:
+        tasks {
+            succeeded ':help'
+        }
+        outputContains 'Code ready'
+        // the next build runs its commands in the session kept open by the pool of the daemon
+        server.channelCount > channels
+        server.sessionCount == 1
+
+        when:
+        server.closeSessions()
+        run 'help', *sshArgs, '-Drefresh.git.repositories'
+
+        then:
+        tasks {
+            succeeded ':help'
+        }
+        outputContains 'Code ready'
+        // the commands which fail in the closed session are run again in a new session
+        server.sessionCount == 2
+
+        cleanup:
+        server?.close()
+    }
+
+    def "warns that the git CLI client ignores the SSH backend"() {
+        withSample 'basic'
+
+        when:
+        run 'help', '-PsshBackend=APACHE_MINA', '-PuseGitCli'
+
+        then:
+        tasks {
+            succeeded ':help'
+        }
+        outputContains 'Custom authentication via the authentication DSL is incompatible with use of the git CLI client'
+    }
+
+    def "tells code ready listeners what changed since the previous build (git cli: #useGitCli)"() {
+        withSample 'basic'
+
+        when:
+        run 'help', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        outputContains 'Previous commit: \n'
+        outputContains 'Changed: true'
+
+        when:
+        def checkout = file("checkouts/testlib0")
+        def commit = git(checkout, 'rev-parse', 'HEAD')
+        run 'help', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        outputContains "Previous commit: $commit"
+        outputContains 'Changed: false'
+        outputContains 'Changed paths: 0'
+
+        when:
+        run 'help', '-Pbranch=testlib-1', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        def changed = git(checkout, 'diff', '--name-only', commit, 'HEAD').readLines()
+        !changed.empty
+        outputContains "Previous commit: $commit"
+        outputContains 'Changed: true'
+        outputContains "Changed paths: ${changed.size()}"
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    def "checks out pinned commits from a snapshot cache (git cli: #useGitCli)"() {
+        withSample 'basic'
+
+        when:
+        run 'help', useGitCli ? '-PuseGitCli' : '-Pdummy'
+        def commit = git(file("checkouts/testlib0"), 'rev-parse', 'HEAD')
+        run 'help', "-Pcommit=$commit", '-PsnapshotCache=snapshots', '-PcheckoutDir=pinned', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        tasks {
+            succeeded ':help'
+        }
+        def pinned = file("pinned")
+        new File(pinned, '.includegit-snapshot').exists()
+        !new File(pinned, '.git').exists()
+        java.nio.file.Files.getAttribute(new File(pinned, 'build.gradle').toPath(), 'unix:nlink') > 1
+        def report = new groovy.json.JsonSlurper().parse(file("build/includegit/sync-report.json"))
+        report.repositories[0].action == 'cloned'
+        report.repositories[0].commit == commit
+
+        when:
+        run 'help', "-Pcommit=$commit", '-PsnapshotCache=snapshots', '-PcheckoutDir=other', useGitCli ? '-PuseGitCli' : '-Pdummy'
+
+        then:
+        tasks {
+            succeeded ':help'
+        }
+        new File(file("other"), 'build.gradle').exists()
+        def linked = new groovy.json.JsonSlurper().parse(file("build/includegit/sync-report.json"))
+        linked.repositories[0].action == 'skipped'
+        linked.repositories[0].fetches == 0
+        linked.repositories[0].commit == commit
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    def "builds sharing a checkouts directory wait for each other (git cli: #useGitCli)"() {
+        withSample 'basic'
+        def checkouts = file('shared-checkouts')
+        def second = file('second')
+        second.mkdirs()
+        testDirectory.toFile().listFiles().findAll { it.file }.each { new File(second, it.name).text = it.text }
+        checkouts.mkdirs()
+        String[] args = ['help', '--info', "-PcheckoutsDir=${checkouts.absolutePath}", useGitCli ? '-PuseGitCli' : '-Pdummy']
+        def outputs = [new StringWriter(), new StringWriter()]
+        def failures = Collections.synchronizedList([])
+
+        when: "another process holds the lock of the checkout while both builds start"
+        def builds
+        FileChannel.open(new File(checkouts, 'testlib0.lock').toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE).withCloseable { channel ->
+            def lock = channel.lock()
+            builds = [testDirectory.toFile(), second].withIndex().collect { dir, i ->
+                Thread.start {
+                    try {
+                        newRunnerFor(dir, outputs[i], new StringWriter(), args).build()
+                    } catch (Throwable e) {
+                        failures << e
+                    }
+                }
+            }
+            new PollingConditions(timeout: 120).eventually {
+                assert failures.empty
+                assert outputs.every { it.toString().contains('Waiting for another process to release the lock on checkout') }
+            }
+            lock.release()
+        }
+        builds*.join()
+
+        then: "the checkout is cloned once, then reused by the other build"
+        failures.empty
+        outputs.every { it.toString().contains('Code ready') }
+        outputs.count { it.toString().contains('Checking out https://github.com/melix/includegit-gradle-plugin.git ref') } == 1
+        git(new File(checkouts, 'testlib0'), 'rev-parse', '--abbrev-ref', 'HEAD') == 'testlib-0'
+
+        where:
+        useGitCli << [false, true]
+    }
+
+    def "refreshes checkouts if the metadata file is corrupted"() {
+        withSample 'basic'
+
+        when:
+        run 'dependencies', '--configuration', 'compileClasspath'
+
+        then:
+        tasks {
+            succeeded ':dependencies'
+        }
+
+        when:
+        def metadata = file("checkouts/checkouts.bin")
+        metadata.bytes = metadata.bytes[0..<(metadata.bytes.length - 4)] as byte[]
+        run 'dependencies', '--configuration', 'compileClasspath', '-i'
+
+        then:
+        tasks {
+            succeeded ':dependencies'
+        }
+        outputContains 'is truncated, remaining checkouts will be refreshed'
+        outputContains 'is up-to-date with https://github.com/melix/includegit-gradle-plugin.git'
+    }
 }
@@ -54,6 +54,13 @@ public interface Authentication {
      */
     void sshWithPassword(Action<? super WithPassword> spec);
 
+    /**
+     * The SSH implementation used by JGit to connect to SSH remotes,
+     * defaults to {@link SshBackend#JSCH}.
+     * @return the SSH backend property
+     */
+    Property<SshBackend> getSshBackend();
+
     /**
      * Represents a username.
      */
@@ -36,12 +36,175 @@ public interface GitIncludeExtension {
      */
     Property<Long> getRefreshIntervalMillis();
 
+    /**
+     * If set to true, the remotes are never contacted: existing checkouts are used as they
+     * are, and the build fails if a repository isn't checked out yet, or if its pinned commit
+     * isn't available locally. Defaults to true if Gradle runs with {@code --offline}, or if
+     * the {@code offline.git.repositories} system property is set.
+     * @return the offline property
+     */
+    Property<Boolean> getOffline();
+
+    /**
+     * If set to true, once a build finishes, the branches of the checkouts are fetched
+     * from their remotes in the background, in the Gradle daemon, so that updating a
+     * checkout only has to fast-forward it to the prefetched commit. At most
+     * {@link #getParallelism() parallelism} checkouts are prefetched concurrently, a
+     * checkout is prefetched at most once per refresh interval, and nothing is prefetched
+     * when offline. Defaults to false.
+     * @return the background prefetch property
+     */
+    Property<Boolean> getBackgroundPrefetch();
+
+    /**
+     * The number of times the synchronization of a repository is retried, after trying
+     * the URI of the repository and all its mirrors. Defaults to 2.
+     * @return the retries property
+     */
+    Property<Integer> getRetries();
+
+    /**
+     * The delay before the first retry of the synchronization of a repository, in
+     * milliseconds, which doubles with each retry. Defaults to 500.
+     * @return the retry backoff property
+     */
+    Property<Long> getRetryBackoffMillis();
+
+    /**
+     * If set, when a remote of a repository with {@link IncludedGitRepo#getMirrors() mirrors}
+     * doesn't answer within this delay, in milliseconds, the next remote is pinged as well,
+     * and the checkout is synchronized from the first one which answers. Not set by default,
+     * which only pings the next remote if the previous one failed.
+     * @return the hedge delay property
+     */
+    Property<Long> getHedgeDelayMillis();
+
+    /**
+     * The maximum number of transfers from remotes, like clones, fetches and probes of
+     * the state of a branch, which run concurrently. The limit is shared by all the builds
+     * running in the same Gradle daemon. Not set by default, which doesn't limit transfers.
+     * @return the maximum concurrent transfers property
+     */
+    Property<Integer> getMaxConcurrentTransfers();
+
+    /**
+     * The maximum number of transfers from remotes of the same host which run concurrently.
+     * The limit is shared by all the builds running in the same Gradle daemon. Not set by
+     * default, which doesn't limit transfers.
+     * @return the maximum concurrent transfers per host property
+     */
+    Property<Integer> getMaxConcurrentTransfersPerHost();
+
+    /**
+     * The maximum number of bytes per second received from HTTP remotes, by all the transfers
+     * of the builds running in the same Gradle daemon. Only supported by the {@code jgit}
+     * implementation. Not set by default, which doesn't limit the bandwidth.
+     * @return the maximum transfer bytes per second property
+     */
+    Property<Long> getMaxTransferBytesPerSecond();
+
+    /**
+     * The maximum number of HTTP connections which the {@code jgit} implementation keeps
+     * open, for all the builds running in the same Gradle daemon which use the same HTTP
+     * settings. Connections are kept alive between transfers, so that the repositories of
+     * the same host reuse them. Defaults to 32.
+     * @return the maximum HTTP connections property
+     */
+    Property<Integer> getHttpMaxConnections();
+
+    /**
+     * The maximum number of HTTP connections to the same host which the {@code jgit}
+     * implementation keeps open. Defaults to 8.
+     * @return the maximum HTTP connections per host property
+     */
+    Property<Integer> getHttpMaxConnectionsPerHost();
+
+    /**
+     * The timeout, in milliseconds, to establish an HTTP connection with the {@code jgit}
+     * implementation. Not set by default, which uses the timeout of the system.
+     * @return the HTTP connect timeout property
+     */
+    Property<Integer> getHttpConnectTimeoutMillis();
+
+    /**
+     * The timeout, in milliseconds, to wait for data on an HTTP connection with the
+     * {@code jgit} implementation. Not set by default, which waits indefinitely.
+     * @return the HTTP read timeout property
+     */
+    Property<Integer> getHttpReadTimeoutMillis();
+
     /**
      * Determine where the Git repositories should be checked out.
      * @return the directory property
      */
     DirectoryProperty getCheckoutsDirectory();
 
+    /**
+     * The maximum number of repositories which are cloned or updated in parallel.
+     * Defaults to the number of available processors.
+     * @return the parallelism property
+     */
+    Property<Integer> getParallelism();
+
+    /**
+     * If set to true, cloned repositories share their objects, through Git alternates,
+     * with a cache of bare repositories which is common to all builds using the same
+     * Gradle user home. A clone then only downloads the objects which are missing from
+     * the cache. Defaults to false.
+     * @return the shared object cache property
+     */
+    Property<Boolean> getUseSharedObjectCache();
+
+    /**
+     * The directory of the shared object cache. Defaults to
+     * {@code caches/includegit/objects} in the Gradle user home.
+     * @return the shared object cache directory property
+     */
+    DirectoryProperty getSharedObjectCacheDirectory();
+
+    /**
+     * If set to true, repositories which are pinned to a full commit id are checked out
+     * from read-only snapshots of their commits, which are shared by all builds using the
+     * same snapshot directory. A snapshot is populated once, then checkouts of the same
+     * commit are made of hard links to its files, or copies if hard links aren't supported,
+     * and are not Git repositories. Snapshots aren't used for sparse checkouts, with worktrees,
+     * or for checkouts which were cloned before snapshots were enabled. Defaults to false.
+     * @return the snapshot cache property
+     */
+    Property<Boolean> getUseSnapshotCache();
+
+    /**
+     * The directory of the snapshots of pinned commits. Defaults to
+     * {@code caches/includegit/snapshots} in the Gradle user home.
+     * @return the snapshot cache directory property
+     */
+    DirectoryProperty getSnapshotCacheDirectory();
+
+    /**
+     * If set to true, repositories are checked out as Git worktrees of a bare repository
+     * per remote, which lives in the checkouts directory. Several included repositories,
+     * or several refs of the same repository, then share the same objects, and each ref
+     * is checked out in its own sub-directory of the checkout directory, so that switching
+     * between refs reuses the existing worktrees. Defaults to false.
+     * @return the worktrees property
+     */
+    Property<Boolean> getUseWorktrees();
+
+    /**
+     * The default number of commits to fetch from the tip of the branch when
+     * cloning a repository. Defaults to 0, meaning the whole history.
+     * @return the clone depth property
+     */
+    Property<Integer> getCloneDepth();
+
+    /**
+     * The default partial clone filter, for example {@code blob:none} or
+     * {@code tree:0}. Partial clones are only supported by the git CLI client.
+     * Not set by default.
+     * @return the filter property
+     */
+    Property<String> getFilter();
+
     /**
      * Configures the default authentication mechanism, used when
      * no configuration is configured on a repository.
@@ -17,6 +17,7 @@ public abstract class IncludeGitPlugin implements Plugin<Settings> {
 
     public static final long DEFAULT_INTERVAL = 24 * 3600 * 1000;
     public static final String REFRESH_GIT_REPOSITORIES_PROPERTY = "refresh.git.repositories";
+    public static final String OFFLINE_GIT_REPOSITORIES_PROPERTY = "offline.git.repositories";
 
     @Inject
     protected abstract ProviderFactory getProviders();
@@ -26,12 +27,32 @@ public abstract class IncludeGitPlugin implements Plugin<Settings> {
         GitIncludeExtension gitRepositories = settings.getExtensions().create(GitIncludeExtension.class, "gitRepositories", DefaultIncludeGitExtension.class, settings);
         gitRepositories.getUseGitCli().convention(false);
         gitRepositories.getCheckoutsDirectory().set(new File(settings.getSettingsDir(), "checkouts"));
+        gitRepositories.getParallelism().convention(Runtime.getRuntime().availableProcessors());
+        gitRepositories.getCloneDepth().convention(0);
+        gitRepositories.getUseSharedObjectCache().convention(false);
+        gitRepositories.getSharedObjectCacheDirectory().set(new File(settings.getGradle().getGradleUserHomeDir(), "caches/includegit/objects"));
+        gitRepositories.getUseSnapshotCache().convention(false);
+        gitRepositories.getSnapshotCacheDirectory().set(new File(settings.getGradle().getGradleUserHomeDir(), "caches/includegit/snapshots"));
+        gitRepositories.getUseWorktrees().convention(false);
+        gitRepositories.getBackgroundPrefetch().convention(false);
+        gitRepositories.getRetries().convention(2);
+        gitRepositories.getRetryBackoffMillis().convention(500L);
+        gitRepositories.getHttpMaxConnections().convention(32);
+        gitRepositories.getHttpMaxConnectionsPerHost().convention(8);
         gitRepositories.getRefreshIntervalMillis().convention(
                 forUseAtConfigurationTime(getProviders().systemProperty(REFRESH_GIT_REPOSITORIES_PROPERTY))
                         .map(s -> s.isEmpty() ? 0L : Long.parseLong(s))
                         .orElse(DEFAULT_INTERVAL)
         );
-        settings.getGradle().settingsEvaluated(s -> ((DefaultIncludeGitExtension) gitRepositories).writeCheckoutMetadata());
+        gitRepositories.getOffline().convention(
+                forUseAtConfigurationTime(getProviders().systemProperty(OFFLINE_GIT_REPOSITORIES_PROPERTY))
+                        .map(s -> s.isEmpty() || Boolean.parseBoolean(s))
+                        .orElse(settings.getStartParameter().isOffline())
+        );
+        settings.getGradle().settingsEvaluated(s -> {
+            DefaultIncludeGitExtension extension = (DefaultIncludeGitExtension) gitRepositories;
+            extension.includePendingRepositories();
+        });
     }
 
 }
@@ -19,9 +19,11 @@ import org.gradle.api.Action;
 import org.gradle.api.Named;
 import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.initialization.ConfigurableIncludedBuild;
+import org.gradle.api.provider.ListProperty;
 import org.gradle.api.provider.Property;
 
 import java.io.File;
+import java.util.Set;
 
 /**
  * Configures an included Git repository.
@@ -34,6 +36,16 @@ public interface IncludedGitRepo extends Named {
      */
     Property<String> getUri();
 
+    /**
+     * The URIs of mirrors of the repository, which must serve the same history. When the
+     * checkout needs to contact its remote, the remotes are pinged in the order of their
+     * health and latency, and the checkout is synchronized from the first one which answers.
+     * If synchronizing from a remote fails, for example because a mirror is stale, the next
+     * remote is used. Mirrors aren't used with worktrees.
+     * @return the mirrors property
+     */
+    ListProperty<String> getMirrors();
+
     /**
      * The branch to checkout.
      * @return the branch property
@@ -52,6 +64,39 @@ public interface IncludedGitRepo extends Named {
      */
     Property<String> getCommit();
 
+    /**
+     * The number of commits to fetch from the tip of the branch when
+     * cloning, or 0 to fetch the whole history. Defaults to the value
+     * configured on the extension.
+     * @return the clone depth property
+     */
+    Property<Integer> getCloneDepth();
+
+    /**
+     * The partial clone filter to use, for example {@code blob:none}
+     * or {@code tree:0}. Partial clones are only supported by the git CLI
+     * client. Defaults to the value configured on the extension.
+     * @return the filter property
+     */
+    Property<String> getFilter();
+
+    /**
+     * If set to true, only the directories of the included builds are
+     * checked out, using a cone mode sparse checkout. This has no effect
+     * if the root directory of the repository is included, which is the
+     * case when the repository is automatically included. Defaults to false.
+     * @return the sparse checkout property
+     */
+    Property<Boolean> getSparseCheckout();
+
+    /**
+     * Additional directories, relative to the root of the repository, to
+     * check out when sparse checkout is enabled, for example directories
+     * which contain files required by the included builds.
+     * @return the additional sparse checkout directories
+     */
+    ListProperty<String> getSparseCheckoutDirectories();
+
     /**
      * The directory to checkout the repository to.
      * @return the directory
@@ -126,5 +171,34 @@ public interface IncludedGitRepo extends Named {
          * @return the directory
          */
         File getCheckoutDirectory();
+
+        /**
+         * The commit which was checked out when the build was previously configured.
+         * @return the commit, or an empty string if unknown, for example if the repository
+         * was just cloned, or if it is a local copy
+         */
+        String getPreviousCommit();
+
+        /**
+         * The commit which is checked out.
+         * @return the commit, or an empty string for local copies
+         */
+        String getCommit();
+
+        /**
+         * Tells if the checkout changed since the build was previously configured.
+         * @return false if the same commit is checked out, true otherwise, including
+         * when the previous commit is unknown
+         */
+        boolean isChanged();
+
+        /**
+         * The paths of the files which differ between the previous and the current commit,
+         * relative to the checkout directory, using forward slashes. They are computed the
+         * first time this method is called. If the previous commit is unknown, all the files
+         * of the checkout are returned.
+         * @return the changed paths
+         */
+        Set<String> getChangedPaths();
     }
 }
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp;
+
+/**
+ * The SSH implementations which JGit can use to connect to SSH remotes.
+ * The Git CLI client always uses the ssh command of the system.
+ */
+public enum SshBackend {
+    /**
+     * JSch, which supports the most common key types and the OpenSSH configuration.
+     */
+    JSCH,
+
+    /**
+     * Apache MINA sshd, which also supports modern key types and algorithms,
+     * like ed25519 keys.
+     */
+    APACHE_MINA
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp.internal;
+
+import me.champeau.gradle.igp.internal.git.RemoteUris;
+import org.gradle.api.GradleException;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * The directories found in the directories of the {@code auto.include.git.dirs} property,
+ * grouped by name and by normalized remote URI.
+ */
+public final class AutoIncludeIndex implements Serializable {
+    private final Map<String, List<File>> byName;
+    private final Map<String, List<File>> byRemote;
+
+    AutoIncludeIndex(Map<String, List<File>> byName, Map<String, List<File>> byRemote) {
+        this.byName = byName;
+        this.byRemote = byRemote;
+    }
+
+    /**
+     * Returns the local copy of an included repository. Git repositories cloned from the same
+     * remote are preferred, then directories with the same name as the included repository.
+     * @param name the name of the included repository
+     * @param uri the remote URI of the included repository, or an empty string
+     * @return the local copy, or null if there's none
+     */
+    public File find(String name, String uri) {
+        List<File> clones = uri.isEmpty()
+                ? Collections.emptyList()
+                : byRemote.getOrDefault(RemoteUris.normalize(uri), Collections.emptyList());
+        if (clones.size() == 1) {
+            return clones.get(0);
+        }
+        if (clones.size() > 1) {
+            List<File> named = clones.stream().filter(dir -> dir.getName().equals(name)).collect(Collectors.toList());
+            if (named.size() == 1) {
+                return named.get(0);
+            }
+            throw new GradleException(
+                    "More than one Git repository cloned from " + uri + " exists in auto Git repositories: " + clones);
+        }
+        List<File> files = byName.get(name);
+        if (files == null) {
+            return null;
+        }
+        if (files.size() == 1) {
+            return files.get(0);
+        }
+        throw new GradleException(
+                "More than one directory named " + name + " exists in auto Git repositories: " + files);
+    }
+
+    /**
+     * Returns the directories found, grouped by name.
+     * @return the directories by name
+     */
+    public Map<String, List<File>> getDirectoriesByName() {
+        return Collections.unmodifiableMap(byName);
+    }
+
+    static class Builder {
+        private final Map<String, List<File>> byName = new LinkedHashMap<>();
+        private final Map<String, List<File>> byRemote = new LinkedHashMap<>();
+
+        void directory(File dir) {
+            byName.computeIfAbsent(dir.getName(), k -> new ArrayList<>()).add(dir);
+        }
+
+        void clone(File dir, String remote) {
+            if (!remote.isEmpty()) {
+                byRemote.computeIfAbsent(RemoteUris.normalize(remote), k -> new ArrayList<>()).add(dir);
+            }
+        }
+
+        AutoIncludeIndex build() {
+            return new AutoIncludeIndex(byName, byRemote);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        AutoIncludeIndex that = (AutoIncludeIndex) o;
+        return byName.equals(that.byName) && byRemote.equals(that.byRemote);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * byName.hashCode() + byRemote.hashCode();
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp.internal;
+
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.ValueSource;
+import org.gradle.api.provider.ValueSourceParameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Scans the directories of the {@code auto.include.git.dirs} property, reusing the listings
+ * of the directories which didn't change since the previous scan. The configuration cache
+ * only records the resulting index, so that adding an unrelated directory doesn't invalidate it.
+ */
+public abstract class AutoIncludeIndexValueSource implements ValueSource<AutoIncludeIndex, AutoIncludeIndexValueSource.Parameters> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AutoIncludeIndexValueSource.class);
+
+    public interface Parameters extends ValueSourceParameters {
+        Property<String> getDirectories();
+
+        Property<Integer> getDepth();
+
+        Property<File> getStateFile();
+    }
+
+    @Override
+    public AutoIncludeIndex obtain() {
+        Parameters parameters = getParameters();
+        File stateFile = parameters.getStateFile().get();
+        AutoIncludeScanner scanner = AutoIncludeScanner.read(stateFile, LOGGER);
+        long start = System.currentTimeMillis();
+        AutoIncludeIndex index = scanner.scan(parameters.getDirectories().get(), parameters.getDepth().get());
+        LOGGER.info("Scanned auto Git repositories in {}ms", System.currentTimeMillis() - start);
+        if (scanner.isChanged()) {
+            try {
+                scanner.write(stateFile);
+            } catch (IOException e) {
+                LOGGER.info("Unable to write auto-include index {}: {}", stateFile, e.getMessage());
+            }
+        }
+        return index;
+    }
+}
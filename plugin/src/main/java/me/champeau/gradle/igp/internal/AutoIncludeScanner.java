@@ -0,0 +1,253 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp.internal;
+
+import me.champeau.gradle.igp.internal.git.GitHead;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.Config;
+import org.slf4j.Logger;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Scans the directories of the {@code auto.include.git.dirs} property. The top level
+ * directories are indexed by name, and Git repositories are also indexed by the URI of
+ * their {@code origin} remote. Up to the given depth, directories which aren't Git
+ * repositories are scanned recursively, and the Git repositories they contain are indexed.
+ *
+ * The sub-directories of each scanned directory and the remotes of the repositories are
+ * recorded with the modification time of the directory or Git configuration they were read
+ * from, so that unchanged directories aren't listed again. This state can be written to a
+ * file, which starts with a magic number and a format version. An unreadable or corrupted
+ * state file only causes all the directories to be listed again.
+ */
+public class AutoIncludeScanner {
+    private static final int MAGIC = 0x49474149;
+    private static final int VERSION = 1;
+    private static final int MAX_COUNT = 1 << 20;
+
+    private Map<String, ScannedDirectory> directories = new HashMap<>();
+    private Map<String, ScannedRepository> repositories = new HashMap<>();
+    private boolean changed;
+
+    public static AutoIncludeScanner read(File file, Logger logger) {
+        AutoIncludeScanner scanner = new AutoIncludeScanner();
+        if (!file.exists()) {
+            return scanner;
+        }
+        try (DataInputStream dis = new DataInputStream(Files.newInputStream(file.toPath()))) {
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+                logger.info("Ignoring auto-include index {} which uses an unsupported format", file);
+                return scanner;
+            }
+            Map<String, ScannedDirectory> directories = new HashMap<>();
+            int size = readCount(dis);
+            for (int i = 0; i < size; i++) {
+                String path = dis.readUTF();
+                long lastModified = dis.readLong();
+                String[] children = new String[readCount(dis)];
+                for (int j = 0; j < children.length; j++) {
+                    children[j] = dis.readUTF();
+                }
+                directories.put(path, new ScannedDirectory(lastModified, children));
+            }
+            Map<String, ScannedRepository> repositories = new HashMap<>();
+            size = readCount(dis);
+            for (int i = 0; i < size; i++) {
+                repositories.put(dis.readUTF(), new ScannedRepository(dis.readLong(), dis.readUTF()));
+            }
+            scanner.directories = directories;
+            scanner.repositories = repositories;
+        } catch (IOException e) {
+            logger.info("Unable to read auto-include index {}, directories will be scanned: {}", file, e.getMessage());
+        }
+        return scanner;
+    }
+
+    private static int readCount(DataInputStream dis) throws IOException {
+        int count = dis.readInt();
+        if (count < 0 || count > MAX_COUNT) {
+            throw new IOException("corrupted count " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Scans directories. The state of this scanner is replaced with the state of the scanned
+     * directories, so that directories which aren't scanned anymore are forgotten.
+     * @param dirs the directories, separated with commas or semicolons
+     * @param depth the number of levels of directories which are scanned, at least 1
+     * @return the index of the directories found
+     */
+    public AutoIncludeIndex scan(String dirs, int depth) {
+        Map<String, ScannedDirectory> previousDirectories = directories;
+        Map<String, ScannedRepository> previousRepositories = repositories;
+        directories = new HashMap<>();
+        repositories = new HashMap<>();
+        changed = false;
+        AutoIncludeIndex.Builder index = new AutoIncludeIndex.Builder();
+        for (String dir : dirs.split("[,;](\\s)?")) {
+            scanDirectory(new File(dir), 1, Math.max(1, depth), previousDirectories, previousRepositories, index);
+        }
+        changed |= !directories.keySet().equals(previousDirectories.keySet())
+                || !repositories.keySet().equals(previousRepositories.keySet());
+        return index.build();
+    }
+
+    private void scanDirectory(File dir,
+                               int level,
+                               int depth,
+                               Map<String, ScannedDirectory> previousDirectories,
+                               Map<String, ScannedRepository> previousRepositories,
+                               AutoIncludeIndex.Builder index) {
+        String path = dir.getPath();
+        if (directories.containsKey(path)) {
+            return;
+        }
+        long lastModified = dir.lastModified();
+        ScannedDirectory scanned = previousDirectories.get(path);
+        if (scanned == null || scanned.lastModified != lastModified) {
+            scanned = new ScannedDirectory(lastModified, listDirectories(dir));
+            changed = true;
+        }
+        directories.put(path, scanned);
+        for (String name : scanned.children) {
+            File child = new File(dir, name);
+            boolean repository = new File(child, ".git").exists();
+            if (repository || level == 1) {
+                index.directory(child);
+            }
+            if (repository) {
+                index.clone(child, remoteOf(child, previousRepositories));
+            } else if (level < depth) {
+                scanDirectory(child, level + 1, depth, previousDirectories, previousRepositories, index);
+            }
+        }
+    }
+
+    private String remoteOf(File repoDir, Map<String, ScannedRepository> previousRepositories) {
+        File config = new File(GitHead.commonDir(GitHead.gitDir(repoDir)), "config");
+        long lastModified = config.lastModified();
+        ScannedRepository scanned = previousRepositories.get(repoDir.getPath());
+        if (scanned == null || scanned.lastModified != lastModified) {
+            scanned = new ScannedRepository(lastModified, readRemote(config));
+            changed = true;
+        }
+        repositories.put(repoDir.getPath(), scanned);
+        return scanned.remote;
+    }
+
+    private static String[] listDirectories(File dir) {
+        File[] entries = dir.listFiles(File::isDirectory);
+        if (entries == null) {
+            return new String[0];
+        }
+        String[] names = Arrays.stream(entries).map(File::getName).toArray(String[]::new);
+        Arrays.sort(names);
+        return names;
+    }
+
+    private static String readRemote(File config) {
+        try {
+            Config gitConfig = new Config();
+            gitConfig.fromText(new String(Files.readAllBytes(config.toPath()), StandardCharsets.UTF_8));
+            String url = gitConfig.getString("remote", "origin", "url");
+            return url == null ? "" : url;
+        } catch (IOException | ConfigInvalidException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Tells if the last scan found directories or remotes which weren't recorded in the state.
+     * @return true if the state should be written
+     */
+    public boolean isChanged() {
+        return changed;
+    }
+
+    public void write(File file) throws IOException {
+        List<Map.Entry<String, ScannedDirectory>> sortedDirectories = new ArrayList<>(directories.entrySet());
+        sortedDirectories.sort(Map.Entry.comparingByKey());
+        List<Map.Entry<String, ScannedRepository>> sortedRepositories = new ArrayList<>(repositories.entrySet());
+        sortedRepositories.sort(Map.Entry.comparingByKey());
+        Path target = file.toPath();
+        Files.createDirectories(target.getParent());
+        Path tmp = Files.createTempFile(target.getParent(), file.getName(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp); DataOutputStream dos = new DataOutputStream(out)) {
+                dos.writeInt(MAGIC);
+                dos.writeInt(VERSION);
+                dos.writeInt(sortedDirectories.size());
+                for (Map.Entry<String, ScannedDirectory> entry : sortedDirectories) {
+                    dos.writeUTF(entry.getKey());
+                    dos.writeLong(entry.getValue().lastModified);
+                    dos.writeInt(entry.getValue().children.length);
+                    for (String child : entry.getValue().children) {
+                        dos.writeUTF(child);
+                    }
+                }
+                dos.writeInt(sortedRepositories.size());
+                for (Map.Entry<String, ScannedRepository> entry : sortedRepositories) {
+                    dos.writeUTF(entry.getKey());
+                    dos.writeLong(entry.getValue().lastModified);
+                    dos.writeUTF(entry.getValue().remote);
+                }
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static class ScannedDirectory {
+        private final long lastModified;
+        private final String[] children;
+
+        private ScannedDirectory(long lastModified, String[] children) {
+            this.lastModified = lastModified;
+            this.children = children;
+        }
+    }
+
+    private static class ScannedRepository {
+        private final long lastModified;
+        private final String remote;
+
+        private ScannedRepository(long lastModified, String remote) {
+            this.lastModified = lastModified;
+            this.remote = remote;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Prefetches checkouts on daemon threads which outlive the build which scheduled
+ * them, for as long as the plugin class loader is reused by the daemon. A checkout
+ * is never queued twice, and is prefetched at most once per refresh interval.
+ * Failures are only logged, since the next update of the checkout fetches anyway.
+ */
+public class BackgroundPrefetch {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackgroundPrefetch.class);
+    private static final BackgroundPrefetch SHARED = new BackgroundPrefetch();
+
+    private final ThreadPoolExecutor executor;
+    private final Set<File> queued = new HashSet<>();
+    private final Map<File, Long> lastPrefetches = new HashMap<>();
+
+    BackgroundPrefetch() {
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "includegit-prefetch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // the daemon doesn't keep idle threads around
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static BackgroundPrefetch shared() {
+        return SHARED;
+    }
+
+    /**
+     * Queues the prefetch of checkouts.
+     *
+     * @param parallelism the maximum number of checkouts which are prefetched concurrently
+     * @param refreshIntervalMillis the minimum delay between two prefetches of the same checkout
+     * @param prefetches the prefetch of each checkout, by checkout directory
+     */
+    public synchronized void schedule(int parallelism, long refreshIntervalMillis, Map<File, Runnable> prefetches) {
+        resize(Math.max(1, parallelism));
+        long now = System.currentTimeMillis();
+        for (Map.Entry<File, Runnable> entry : prefetches.entrySet()) {
+            File repoDir = entry.getKey();
+            Long lastPrefetch = lastPrefetches.get(repoDir);
+            if (queued.contains(repoDir) || (lastPrefetch != null && now - lastPrefetch < refreshIntervalMillis)) {
+                continue;
+            }
+            queued.add(repoDir);
+            executor.execute(() -> run(repoDir, entry.getValue()));
+        }
+    }
+
+    private void resize(int threads) {
+        // the core pool size can't exceed the maximum pool size
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    private void run(File repoDir, Runnable prefetch) {
+        try {
+            prefetch.run();
+        } catch (RuntimeException e) {
+            LOGGER.info("Unable to prefetch {}: {}", repoDir, e.getMessage());
+        } finally {
+            synchronized (this) {
+                queued.remove(repoDir);
+                lastPrefetches.put(repoDir, System.currentTimeMillis());
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp.internal;
+
+import me.champeau.gradle.igp.internal.git.GitClientStrategy;
+import me.champeau.gradle.igp.internal.git.jgit.Credentials;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+import org.gradle.tooling.events.FinishEvent;
+import org.gradle.tooling.events.OperationCompletionListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Schedules the {@link BackgroundPrefetch background prefetch} of the checkouts of the build
+ * when the build finishes. The service listens to task completion events only so that it is
+ * closed at the end of the build, including when the configuration cache is reused.
+ *
+ * Only branches are prefetched, since pinned commits and tags don't move. A checkout which
+ * was fetched from within the refresh interval, for example while the settings of this build
+ * were evaluated, isn't prefetched either. Neither is a checkout whose {@link CheckoutCredentials credentials}
+ * are unknown, because the build reused the configuration cache in a new daemon.
+ */
+public abstract class BackgroundPrefetchService implements BuildService<BackgroundPrefetchService.Parameters>,
+        OperationCompletionListener, AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackgroundPrefetchService.class);
+
+    public static final String NAME = "includeGitBackgroundPrefetch";
+
+    public interface Parameters extends BuildServiceParameters, CheckoutParameters {
+    }
+
+    @Override
+    public void onFinish(FinishEvent event) {
+    }
+
+    @Override
+    public void close() {
+        Parameters parameters = getParameters();
+        if (parameters.getOffline().get()) {
+            return;
+        }
+        CheckoutMetadataStore checkoutMetadata = CheckoutMetadataStore.read(parameters.getCheckoutMetadataFile().get(), LOGGER);
+        // the prefetch runs after the build finished, so the git CLI can't use the exec operations of the build
+        GitClientStrategy gitClientStrategy = CheckoutSyncValueSource.createGitClientStrategy(parameters, null, checkoutMetadata);
+        long refreshIntervalMillis = parameters.getRefreshIntervalMillis().get();
+        long now = System.currentTimeMillis();
+        Map<File, Runnable> prefetches = new LinkedHashMap<>();
+        for (CheckoutRequest request : parameters.getCheckouts().get()) {
+            if (request.isLocal() || !request.getCommit().isEmpty() || request.getOptions().isTag()
+                    || fetchedRecently(checkoutMetadata, request, now, refreshIntervalMillis)) {
+                continue;
+            }
+            Credentials credentials = CheckoutCredentials.find(request.getCheckoutDirectory());
+            if (credentials == null) {
+                LOGGER.info("Not prefetching {}, since its credentials are unknown to this daemon", request.getName());
+                continue;
+            }
+            prefetches.put(request.getCheckoutDirectory(), () -> prefetch(gitClientStrategy, request, credentials));
+        }
+        BackgroundPrefetch.shared().schedule(
+                parameters.getParallelism().get(),
+                refreshIntervalMillis,
+                prefetches
+        );
+    }
+
+    private static boolean fetchedRecently(CheckoutMetadataStore checkoutMetadata, CheckoutRequest request, long now, long refreshIntervalMillis) {
+        CheckoutMetadata recorded = checkoutMetadata.get(new CheckoutMetadata(request.getCheckoutDirectory().getAbsolutePath(),
+                request.getUri(), request.getCommit(), request.getBranchOrTag(), now));
+        return recorded != null && now - recorded.getLastFetch() < refreshIntervalMillis;
+    }
+
+    private static void prefetch(GitClientStrategy gitClientStrategy, CheckoutRequest request, Credentials credentials) {
+        File repoDir = request.getCheckoutDirectory();
+        try (FileLocks.Handle ignored = CheckoutSyncValueSource.lockCheckout(repoDir)) {
+            if (!new File(repoDir, ".git").exists()) {
+                return;
+            }
+            SyncMetrics metrics = new SyncMetrics(request.getName(), request.getUri());
+            long start = System.currentTimeMillis();
+            gitClientStrategy.prefetch(repoDir, request.getUri(), request.getBranchOrTag(), credentials, request.getOptions(), metrics);
+            LOGGER.info("Prefetched {} objects of {} from {} in {} ms", metrics.getObjectsReceived(), request.getName(),
+                    request.getUri(), System.currentTimeMillis() - start);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp.internal;
+
+import me.champeau.gradle.igp.internal.git.ChangedPaths;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.ValueSource;
+import org.gradle.api.provider.ValueSourceParameters;
+
+import java.io.File;
+import java.util.Set;
+
+/**
+ * Computes the {@link ChangedPaths paths which changed} in a checkout for code ready listeners.
+ * Opening the repository with JGit may run {@code git} to locate the system configuration, which
+ * the configuration cache only allows within a value source, and the configuration cache then
+ * only records the paths rather than every file of the repository which was read.
+ */
+public abstract class ChangedPathsValueSource implements ValueSource<Set<String>, ChangedPathsValueSource.Parameters> {
+
+    public interface Parameters extends ValueSourceParameters {
+        Property<File> getCheckoutDirectory();
+
+        Property<String> getPreviousCommit();
+
+        Property<String> getCommit();
+    }
+
+    @Override
+    public Set<String> obtain() {
+        Parameters parameters = getParameters();
+        return ChangedPaths.between(parameters.getCheckoutDirectory().get(), parameters.getPreviousCommit().get(), parameters.getCommit().get());
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp.internal;
+
+import me.champeau.gradle.igp.internal.git.CheckoutOptions;
+import me.champeau.gradle.igp.internal.git.GitHead;
+import me.champeau.gradle.igp.internal.git.SnapshotStore;
+import me.champeau.gradle.igp.internal.git.SparseCheckouts;
+import org.gradle.api.provider.ValueSource;
+import org.gradle.api.provider.ValueSourceParameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves the commit each checkout is at, from its Git directory and the checkout metadata,
+ * without running any Git command or contacting the remotes. A checkout which must be
+ * synchronized, because it doesn't exist yet, its ref changed or it wasn't updated within
+ * the refresh interval, is marked {@link #isStale(String) stale} instead, and is then
+ * synchronized by {@link CheckoutSyncValueSource}.
+ *
+ * Checking a configuration cache entry obtains this value again, and reuses the entry if
+ * it didn't change. A stale checkout is marked with the time it was found stale, so that
+ * the value never matches a recorded one: the entry isn't reused, and the checkout is
+ * synchronized while the build is configured again, rather than while the entry is checked.
+ */
+public abstract class CheckoutCommitsValueSource implements ValueSource<Map<String, String>, CheckoutCommitsValueSource.Parameters> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CheckoutCommitsValueSource.class);
+    private static final String STALE_PREFIX = "stale@";
+
+    public interface Parameters extends ValueSourceParameters, CheckoutParameters {
+    }
+
+    /**
+     * Returns the commits of the checkouts, by repository name. Local copies are not included.
+     */
+    @Override
+    public Map<String, String> obtain() {
+        Parameters parameters = getParameters();
+        CheckoutMetadataStore checkoutMetadata = CheckoutMetadataStore.read(parameters.getCheckoutMetadataFile().get(), LOGGER);
+        boolean snapshots = parameters.getSnapshotsDirectory().isPresent();
+        long refreshIntervalMillis = parameters.getRefreshIntervalMillis().get();
+        long now = System.currentTimeMillis();
+        Map<String, String> commits = new LinkedHashMap<>();
+        for (CheckoutRequest request : parameters.getCheckouts().get()) {
+            if (request.isLocal()) {
+                continue;
+            }
+            if (needsSync(request, checkoutMetadata, snapshots, refreshIntervalMillis, now)) {
+                LOGGER.info("Checkout {} of {} must be synchronized", request.getCheckoutDirectory(), request.getName());
+                commits.put(request.getName(), STALE_PREFIX + now);
+            } else {
+                commits.put(request.getName(), resolveCommit(request.getCheckoutDirectory()));
+            }
+        }
+        return commits;
+    }
+
+    /**
+     * Tells if a checkout must be synchronized, following the same rules as the Git clients:
+     * a checkout is left alone if it is at its pinned commit, or if it was updated within the
+     * refresh interval.
+     */
+    private static boolean needsSync(CheckoutRequest request,
+                                     CheckoutMetadataStore checkoutMetadata,
+                                     boolean snapshots,
+                                     long refreshIntervalMillis,
+                                     long now) {
+        File repoDir = request.getCheckoutDirectory();
+        String rev = request.getCommit();
+        CheckoutOptions options = request.getOptions();
+        if (snapshots && canLinkSnapshot(repoDir, rev, options)) {
+            return !rev.equals(SnapshotStore.linkedCommit(repoDir, request.getUri()));
+        }
+        if (SnapshotStore.linkedCommit(repoDir) != null || !new File(repoDir, ".git").exists()) {
+            return true;
+        }
+        File gitDir = GitHead.gitDir(repoDir);
+        List<String> sparseDirectories = SparseCheckouts.readConeDirectories(gitDir);
+        if (!sparseDirectories.equals(options.getSparseDirectories())) {
+            return true;
+        }
+        if (!rev.isEmpty() && GitHead.isDetachedAt(gitDir, rev)) {
+            return false;
+        }
+        CheckoutMetadata recorded = checkoutMetadata.get(new CheckoutMetadata(repoDir.getAbsolutePath(), request.getUri(), rev,
+                request.getBranchOrTag(), now));
+        return recorded == null || now - recorded.getLastUpdate() >= refreshIntervalMillis;
+    }
+
+    /**
+     * Tells if a value of this source means that the checkout must be synchronized.
+     *
+     * @param commit the value of a checkout
+     * @return true if the checkout is stale
+     */
+    public static boolean isStale(String commit) {
+        return commit.startsWith(STALE_PREFIX);
+    }
+
+    /**
+     * Tells if a checkout can be made from a snapshot. Existing Git checkouts are kept,
+     * since they may contain local changes.
+     */
+    static boolean canLinkSnapshot(File repoDir, String rev, CheckoutOptions options) {
+        return SnapshotStore.canSnapshot(rev)
+                && !options.isSparse()
+                && (SnapshotStore.linkedCommit(repoDir) != null || !new File(repoDir, ".git").exists());
+    }
+
+    /**
+     * Returns the commit a checkout is at, whether it is a Git repository or made from a snapshot.
+     */
+    static String resolveCommit(File repoDir) {
+        String linkedCommit = SnapshotStore.linkedCommit(repoDir);
+        return linkedCommit != null ? linkedCommit : GitHead.resolveCommit(GitHead.gitDir(repoDir));
+    }
+}
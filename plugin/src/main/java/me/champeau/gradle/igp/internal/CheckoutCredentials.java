@@ -0,0 +1,50 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp.internal;
+
+import me.champeau.gradle.igp.internal.git.jgit.Credentials;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the credentials of the included repositories in the memory of the daemon, by checkout
+ * directory, since the parameters of value sources and build services are stored in the
+ * configuration cache, which must not contain passwords or private keys.
+ *
+ * The credentials are registered when the settings are evaluated, so a build which reuses a
+ * configuration cache entry in a new daemon doesn't know them until the settings are evaluated again.
+ */
+public class CheckoutCredentials {
+    private static final Map<File, Credentials> CREDENTIALS = new ConcurrentHashMap<>();
+
+    private CheckoutCredentials() {
+    }
+
+    public static void register(File checkoutDirectory, Credentials credentials) {
+        CREDENTIALS.put(checkoutDirectory.getAbsoluteFile(), credentials);
+    }
+
+    /**
+     * Returns the credentials of a checkout.
+     * @param checkoutDirectory the checkout directory
+     * @return the credentials, or null if the settings weren't evaluated by this daemon
+     */
+    public static Credentials find(File checkoutDirectory) {
+        return CREDENTIALS.get(checkoutDirectory.getAbsoluteFile());
+    }
+}
@@ -16,16 +16,47 @@
 package me.champeau.gradle.igp.internal;
 
 public class CheckoutMetadata {
+    private final String checkoutDirectory;
     private final String uri;
     private final String ref;
     private final String branch;
     private final long lastUpdate;
+    private final String resolvedCommit;
+    private final long lastFetch;
+    private final int fetchCount;
 
-    public CheckoutMetadata(String uri, String ref, String branch, long lastUpdate) {
+    public CheckoutMetadata(String checkoutDirectory, String uri, String ref, String branch, long lastUpdate) {
+        this(checkoutDirectory, uri, ref, branch, lastUpdate, "", 0, 0);
+    }
+
+    public CheckoutMetadata(String checkoutDirectory,
+                            String uri,
+                            String ref,
+                            String branch,
+                            long lastUpdate,
+                            String resolvedCommit,
+                            long lastFetch,
+                            int fetchCount) {
+        this.checkoutDirectory = checkoutDirectory;
         this.uri = uri;
         this.ref = ref;
         this.branch = branch;
         this.lastUpdate = lastUpdate;
+        this.resolvedCommit = resolvedCommit;
+        this.lastFetch = lastFetch;
+        this.fetchCount = fetchCount;
+    }
+
+    /**
+     * The key of this entry in the metadata store.
+     * @return the key
+     */
+    public String getKey() {
+        return checkoutDirectory + '\n' + uri + '\n' + ref + '\n' + branch;
+    }
+
+    public String getCheckoutDirectory() {
+        return checkoutDirectory;
     }
 
     public String getUri() {
@@ -43,4 +74,28 @@ public class CheckoutMetadata {
     public long getLastUpdate() {
         return lastUpdate;
     }
+
+    /**
+     * The commit which was checked out, or an empty string if unknown.
+     * @return the resolved commit
+     */
+    public String getResolvedCommit() {
+        return resolvedCommit;
+    }
+
+    /**
+     * The last time the remote was fetched from, or 0 if unknown.
+     * @return the last fetch timestamp
+     */
+    public long getLastFetch() {
+        return lastFetch;
+    }
+
+    /**
+     * The number of times the remote was fetched from for this checkout.
+     * @return the fetch count
+     */
+    public int getFetchCount() {
+        return fetchCount;
+    }
 }
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp.internal;
+
+import org.gradle.api.GradleException;
+import org.slf4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Stores the metadata of the checkouts, keyed by checkout directory, URI and ref.
+ *
+ * The file starts with a magic number and a format version, followed by the entries.
+ * Each entry is stored with its length and a checksum, so that a corrupted entry only
+ * causes this entry to be ignored, which means that the corresponding checkout will be
+ * refreshed. The file is written to a temporary file first, then atomically moved.
+ *
+ * Several builds may share the same checkouts directory, so the file is written while
+ * holding a lock, and merged with the entries written by other builds.
+ */
+public class CheckoutMetadataStore {
+    private static final int MAGIC = 0x49475043;
+    private static final int VERSION = 1;
+    private static final int MAX_ENTRY_LENGTH = 1 << 20;
+
+    private final Map<String, CheckoutMetadata> entries = new ConcurrentHashMap<>();
+    private final Logger logger;
+
+    private CheckoutMetadataStore(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Creates a store which isn't backed by a file, for checkouts which aren't tracked.
+     * @param logger the logger
+     * @return the store
+     */
+    public static CheckoutMetadataStore inMemory(Logger logger) {
+        return new CheckoutMetadataStore(logger);
+    }
+
+    public static CheckoutMetadataStore read(File file, Logger logger) {
+        CheckoutMetadataStore store = new CheckoutMetadataStore(logger);
+        if (!file.exists()) {
+            return store;
+        }
+        try (DataInputStream dis = new DataInputStream(Files.newInputStream(file.toPath()))) {
+            if (dis.readInt() != MAGIC) {
+                logger.info("Ignoring checkout metadata file {} which uses an older format", file);
+                return store;
+            }
+            int version = dis.readInt();
+            if (version != VERSION) {
+                logger.info("Ignoring checkout metadata file {} which uses unsupported version {}", file, version);
+                return store;
+            }
+            int size = dis.readInt();
+            for (int i = 0; i < size; i++) {
+                int length = dis.readInt();
+                if (length < 0 || length > MAX_ENTRY_LENGTH) {
+                    logger.warn("Checkout metadata file {} is corrupted, remaining checkouts will be refreshed", file);
+                    break;
+                }
+                byte[] payload = new byte[length];
+                dis.readFully(payload);
+                long checksum = dis.readLong();
+                if (checksum != checksum(payload)) {
+                    logger.warn("Ignoring corrupted entry of checkout metadata file {}", file);
+                    continue;
+                }
+                CheckoutMetadata metadata = readEntry(payload);
+                store.entries.put(metadata.getKey(), metadata);
+            }
+        } catch (EOFException e) {
+            logger.warn("Checkout metadata file {} is truncated, remaining checkouts will be refreshed", file);
+        } catch (IOException e) {
+            logger.warn("Unable to read checkout metadata file {}, checkouts will be refreshed: {}", file, e.getMessage());
+        }
+        return store;
+    }
+
+    /**
+     * Returns the metadata recorded for the same checkout directory, URI and ref.
+     * @param current the metadata of the current checkout
+     * @return the recorded metadata, or null
+     */
+    public CheckoutMetadata get(CheckoutMetadata current) {
+        return entries.get(current.getKey());
+    }
+
+    /**
+     * Records that a checkout was updated. Since a directory can only contain a
+     * single checkout, the entries of other URIs or refs in the same directory
+     * are removed.
+     * @param current the metadata of the current checkout
+     * @param resolvedCommit the commit which is checked out, or an empty string if unknown
+     * @param fetched true if the remote was fetched from
+     */
+    public synchronized void update(CheckoutMetadata current, String resolvedCommit, boolean fetched) {
+        entries.values().removeIf(e -> e.getCheckoutDirectory().equals(current.getCheckoutDirectory())
+                && !e.getKey().equals(current.getKey()));
+        CheckoutMetadata previous = entries.get(current.getKey());
+        long lastFetch = previous == null ? 0 : previous.getLastFetch();
+        int fetchCount = previous == null ? 0 : previous.getFetchCount();
+        if (fetched) {
+            lastFetch = current.getLastUpdate();
+            fetchCount++;
+        }
+        entries.put(current.getKey(), new CheckoutMetadata(
+                current.getCheckoutDirectory(),
+                current.getUri(),
+                current.getRef(),
+                current.getBranch(),
+                current.getLastUpdate(),
+                resolvedCommit,
+                lastFetch,
+                fetchCount
+        ));
+    }
+
+    /**
+     * Reloads the entry of a checkout directory from disk, if another build updated
+     * it more recently. This must be called while holding the lock of the checkout.
+     * @param file the metadata file
+     * @param current the metadata of the current checkout
+     */
+    public synchronized void refresh(File file, CheckoutMetadata current) {
+        CheckoutMetadataStore onDisk = read(file, logger);
+        for (CheckoutMetadata metadata : onDisk.entries.values()) {
+            if (metadata.getCheckoutDirectory().equals(current.getCheckoutDirectory())) {
+                merge(metadata);
+            }
+        }
+    }
+
+    /**
+     * Writes the metadata file, while holding a lock on the file. Entries written by
+     * other builds since this store was read are merged, keeping the most recent entry
+     * of each checkout directory.
+     * @param file the metadata file
+     */
+    public synchronized void write(File file) {
+        try (FileLocks.Handle ignored = FileLocks.lock(new File(file.getPath() + ".lock"), "checkout metadata " + file, logger)) {
+            CheckoutMetadataStore onDisk = read(file, logger);
+            for (CheckoutMetadata metadata : onDisk.entries.values()) {
+                merge(metadata);
+            }
+            doWrite(file);
+        }
+    }
+
+    private void merge(CheckoutMetadata metadata) {
+        boolean newer = entries.values()
+                .stream()
+                .filter(e -> e.getCheckoutDirectory().equals(metadata.getCheckoutDirectory()))
+                .allMatch(e -> e.getLastUpdate() < metadata.getLastUpdate());
+        if (newer) {
+            entries.values().removeIf(e -> e.getCheckoutDirectory().equals(metadata.getCheckoutDirectory()));
+            entries.put(metadata.getKey(), metadata);
+        }
+    }
+
+    private void doWrite(File file) {
+        List<CheckoutMetadata> sorted = new ArrayList<>(entries.values());
+        sorted.sort(Comparator.comparing(CheckoutMetadata::getKey));
+        try {
+            Path target = file.toPath();
+            Files.createDirectories(target.getParent());
+            Path tmp = Files.createTempFile(target.getParent(), file.getName(), ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(tmp); DataOutputStream dos = new DataOutputStream(out)) {
+                    dos.writeInt(MAGIC);
+                    dos.writeInt(VERSION);
+                    dos.writeInt(sorted.size());
+                    for (CheckoutMetadata metadata : sorted) {
+                        byte[] payload = writeEntry(metadata);
+                        dos.writeInt(payload.length);
+                        dos.write(payload);
+                        dos.writeLong(checksum(payload));
+                    }
+                }
+                try {
+                    Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            throw new GradleException("Unable to write checkout metadata", e);
+        }
+    }
+
+    private static CheckoutMetadata readEntry(byte[] payload) throws IOException {
+        try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(payload))) {
+            return new CheckoutMetadata(
+                    dis.readUTF(),
+                    dis.readUTF(),
+                    dis.readUTF(),
+                    dis.readUTF(),
+                    dis.readLong(),
+                    dis.readUTF(),
+                    dis.readLong(),
+                    dis.readInt()
+            );
+        }
+    }
+
+    private static byte[] writeEntry(CheckoutMetadata metadata) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(bytes)) {
+            dos.writeUTF(metadata.getCheckoutDirectory());
+            dos.writeUTF(metadata.getUri());
+            dos.writeUTF(metadata.getRef());
+            dos.writeUTF(metadata.getBranch());
+            dos.writeLong(metadata.getLastUpdate());
+            dos.writeUTF(metadata.getResolvedCommit());
+            dos.writeLong(metadata.getLastFetch());
+            dos.writeInt(metadata.getFetchCount());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static long checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return crc.getValue();
+    }
+}
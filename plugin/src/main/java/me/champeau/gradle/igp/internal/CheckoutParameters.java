@@ -0,0 +1,83 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp.internal;
+
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+
+import java.io.File;
+
+/**
+ * The parameters shared by the value sources which resolve and synchronize the included
+ * repositories, and by the service which prefetches them in the background.
+ */
+public interface CheckoutParameters {
+    ListProperty<CheckoutRequest> getCheckouts();
+
+    Property<Boolean> getUseGitCli();
+
+    Property<Long> getRefreshIntervalMillis();
+
+    Property<Boolean> getOffline();
+
+    Property<Integer> getParallelism();
+
+    Property<File> getCheckoutMetadataFile();
+
+    /**
+     * The directory of the shared object cache, absent if it isn't used.
+     */
+    Property<File> getSharedObjectCacheDirectory();
+
+    /**
+     * The directory of the repositories of the worktrees, absent if worktrees aren't used.
+     */
+    Property<File> getWorktreesDirectory();
+
+    /**
+     * The directory of the snapshots of pinned commits, absent if snapshots aren't used.
+     */
+    Property<File> getSnapshotsDirectory();
+
+    /**
+     * The maximum number of concurrent transfers, absent if unlimited.
+     */
+    Property<Integer> getMaxConcurrentTransfers();
+
+    /**
+     * The maximum number of concurrent transfers to the same host, absent if unlimited.
+     */
+    Property<Integer> getMaxConcurrentTransfersPerHost();
+
+    /**
+     * The maximum number of bytes received per second, absent if unlimited.
+     */
+    Property<Long> getMaxTransferBytesPerSecond();
+
+    Property<Integer> getHttpMaxConnections();
+
+    Property<Integer> getHttpMaxConnectionsPerHost();
+
+    /**
+     * The timeout to establish an HTTP connection, absent to use the timeout of the system.
+     */
+    Property<Integer> getHttpConnectTimeoutMillis();
+
+    /**
+     * The timeout to wait for data on an HTTP connection, absent to wait indefinitely.
+     */
+    Property<Integer> getHttpReadTimeoutMillis();
+}
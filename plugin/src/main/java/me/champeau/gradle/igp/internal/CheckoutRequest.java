@@ -0,0 +1,104 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp.internal;
+
+import me.champeau.gradle.igp.internal.git.CheckoutOptions;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Describes the checkout of an included repository, independently of the DSL
+ * objects it was configured with, so that it can be passed to a value source.
+ * The credentials of the repository aren't part of it, since the parameters of
+ * value sources are stored in the configuration cache: see {@link CheckoutCredentials}.
+ */
+public class CheckoutRequest implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String name;
+    private final File checkoutDirectory;
+    private final String uri;
+    private final List<String> mirrors;
+    private final String commit;
+    private final String branchOrTag;
+    private final CheckoutOptions options;
+    private final boolean local;
+
+    public CheckoutRequest(String name,
+                           File checkoutDirectory,
+                           String uri,
+                           List<String> mirrors,
+                           String commit,
+                           String branchOrTag,
+                           CheckoutOptions options,
+                           boolean local) {
+        this.name = name;
+        this.checkoutDirectory = checkoutDirectory;
+        this.uri = uri;
+        this.mirrors = mirrors;
+        this.commit = commit;
+        this.branchOrTag = branchOrTag;
+        this.options = options;
+        this.local = local;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public File getCheckoutDirectory() {
+        return checkoutDirectory;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    /**
+     * The URIs of the mirrors of the repository, in declared order.
+     */
+    public List<String> getMirrors() {
+        return mirrors;
+    }
+
+    /**
+     * The requested commit, or an empty string.
+     */
+    public String getCommit() {
+        return commit;
+    }
+
+    /**
+     * The requested branch or tag, or an empty string for the default branch.
+     */
+    public String getBranchOrTag() {
+        return branchOrTag;
+    }
+
+    public CheckoutOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Whether a local copy is used instead of a checkout, in which case the repository
+     * isn't synchronized.
+     */
+    public boolean isLocal() {
+        return local;
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp.internal;
+
+import me.champeau.gradle.igp.internal.git.CheckoutOptions;
+import me.champeau.gradle.igp.internal.git.GitClientStrategy;
+import me.champeau.gradle.igp.internal.git.GitHead;
+import me.champeau.gradle.igp.internal.git.OriginRemote;
+import me.champeau.gradle.igp.internal.git.RefSpecs;
+import me.champeau.gradle.igp.internal.git.SharedObjectCache;
+import me.champeau.gradle.igp.internal.git.SnapshotStore;
+import me.champeau.gradle.igp.internal.git.TransferLimits;
+import me.champeau.gradle.igp.internal.git.TransferThrottle;
+import me.champeau.gradle.igp.internal.git.WorktreeStore;
+import me.champeau.gradle.igp.internal.git.cli.GitCliClient;
+import me.champeau.gradle.igp.internal.git.jgit.Credentials;
+import me.champeau.gradle.igp.internal.git.jgit.HttpPoolSettings;
+import me.champeau.gradle.igp.internal.git.jgit.JGitClient;
+import me.champeau.gradle.igp.internal.git.jgit.JGitResources;
+import org.eclipse.jgit.lib.Constants;
+import org.gradle.api.GradleException;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.ValueSource;
+import org.gradle.api.provider.ValueSourceParameters;
+import org.gradle.process.ExecOperations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Clones or updates the included repositories, then resolves the commit each checkout
+ * is at. The value is only obtained while the build is configured, when
+ * {@link CheckoutCommitsValueSource} found checkouts to synchronize, which makes its
+ * value differ from any recorded one: checking a configuration cache entry therefore
+ * never gets to synchronize the checkouts. Running the Git work in a value source keeps
+ * its file reads and processes out of the inputs of the configuration cache.
+ */
+public abstract class CheckoutSyncValueSource implements ValueSource<Map<String, String>, CheckoutSyncValueSource.Parameters> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CheckoutSyncValueSource.class);
+    private static final String MIRROR_STATISTICS_FILE_NAME = "mirrors.bin";
+
+    public interface Parameters extends ValueSourceParameters, CheckoutParameters {
+        Property<File> getReportFile();
+
+        Property<Integer> getRetries();
+
+        Property<Long> getRetryBackoffMillis();
+
+        /**
+         * The delay after which another mirror is pinged, absent if hedging is disabled.
+         */
+        Property<Long> getHedgeDelayMillis();
+    }
+
+    @Inject
+    protected abstract ExecOperations getExecOperations();
+
+    /**
+     * Returns the commits of the checkouts, by repository name. Local copies are not included.
+     */
+    @Override
+    public Map<String, String> obtain() {
+        Parameters parameters = getParameters();
+        File metadataFile = parameters.getCheckoutMetadataFile().get();
+        CheckoutMetadataStore checkoutMetadata = CheckoutMetadataStore.read(metadataFile, LOGGER);
+        GitClientStrategy gitClientStrategy = createGitClientStrategy(parameters, getExecOperations(), checkoutMetadata);
+        // snapshots are populated from throwaway clones, which aren't tracked as checkouts
+        Snapshots snapshots = parameters.getSnapshotsDirectory().isPresent()
+                ? new Snapshots(new SnapshotStore(parameters.getSnapshotsDirectory().get()),
+                        createGitClientStrategy(parameters, getExecOperations(), CheckoutMetadataStore.inMemory(LOGGER)))
+                : null;
+        List<CheckoutRequest> requests = parameters.getCheckouts().get();
+        boolean offline = parameters.getOffline().get();
+        File mirrorStatisticsFile = new File(metadataFile.getParentFile(), MIRROR_STATISTICS_FILE_NAME);
+        // worktrees are made from a store per remote URI, so they always use the URI of the repository
+        MirrorStatistics mirrorStatistics = !parameters.getWorktreesDirectory().isPresent()
+                && requests.stream().anyMatch(request -> !request.getMirrors().isEmpty())
+                ? MirrorStatistics.read(mirrorStatisticsFile, LOGGER)
+                : null;
+        Remotes remotes = new Remotes(
+                mirrorStatistics == null ? null : new MirrorSelector(mirrorStatistics, gitClientStrategy, parameters.getHedgeDelayMillis().getOrElse(0L)),
+                parameters.getRetries().get(),
+                parameters.getRetryBackoffMillis().get(),
+                parameters.getRefreshIntervalMillis().get()
+        );
+        SyncReport syncReport = new SyncReport();
+        List<Runnable> checkouts = new ArrayList<>();
+        for (CheckoutRequest request : requests) {
+            SyncMetrics metrics = new SyncMetrics(request.getName(), request.getUri());
+            syncReport.add(metrics);
+            if (request.isLocal()) {
+                metrics.local();
+            } else {
+                checkouts.add(() -> cloneOrUpdate(gitClientStrategy, snapshots, remotes, checkoutMetadata, metadataFile, request, metrics, offline));
+            }
+        }
+        long start = System.currentTimeMillis();
+        try {
+            CheckoutScheduler.runAll(parameters.getParallelism().get(), checkouts);
+        } finally {
+            syncReport.logSummary(LOGGER, System.currentTimeMillis() - start);
+            syncReport.write(parameters.getReportFile().get(), LOGGER);
+            if (mirrorStatistics != null) {
+                mirrorStatistics.write(mirrorStatisticsFile, LOGGER);
+            }
+        }
+        Map<String, String> commits = new LinkedHashMap<>();
+        for (CheckoutRequest request : requests) {
+            if (!request.isLocal()) {
+                commits.put(request.getName(), CheckoutCommitsValueSource.resolveCommit(request.getCheckoutDirectory()));
+            }
+        }
+        return commits;
+    }
+
+    /**
+     * Updates a checkout from one of the remotes of its repository. The origin remote
+     * is only pointed at a mirror during the update, so that the checkout keeps fetching
+     * from the repository otherwise, for example when it is prefetched.
+     */
+    private static void updateFrom(GitClientStrategy gitClientStrategy,
+                                   CheckoutRequest request,
+                                   String remote,
+                                   boolean mirrored,
+                                   CheckoutMetadata current,
+                                   SyncMetrics metrics) throws IOException {
+        File repoDir = request.getCheckoutDirectory();
+        String origin = OriginRemote.url(repoDir);
+        if (!mirrored || remote.equals(origin)) {
+            gitClientStrategy.updateRepository(repoDir, remote, request.getCommit(), request.getBranchOrTag(), current, credentials(request), request.getOptions(), metrics);
+            return;
+        }
+        LOGGER.info("Synchronizing {} from {}", request.getName(), remote);
+        OriginRemote.setUrl(repoDir, remote);
+        try {
+            gitClientStrategy.updateRepository(repoDir, remote, request.getCommit(), request.getBranchOrTag(), current, credentials(request), request.getOptions(), metrics);
+        } finally {
+            OriginRemote.setUrl(repoDir, origin);
+        }
+    }
+
+    private static void cloneOrUpdate(GitClientStrategy gitClientStrategy,
+                                      Snapshots snapshots,
+                                      Remotes remotes,
+                                      CheckoutMetadataStore checkoutMetadata,
+                                      File metadataFile,
+                                      CheckoutRequest request,
+                                      SyncMetrics metrics,
+                                      boolean offline) {
+        File repoDir = request.getCheckoutDirectory();
+        String uri = request.getUri();
+        String rev = request.getCommit();
+        String branchOrTag = request.getBranchOrTag();
+        CheckoutOptions options = request.getOptions();
+        CheckoutMetadata current = new CheckoutMetadata(repoDir.getAbsolutePath(), uri, rev, branchOrTag, System.currentTimeMillis());
+
+        // another build sharing the checkouts directory may be cloning or updating the same checkout:
+        // wait for it, then reuse its work
+        try (FileLocks.Handle ignored = lockCheckout(repoDir)) {
+            checkoutMetadata.refresh(metadataFile, current);
+            if (snapshots != null && CheckoutCommitsValueSource.canLinkSnapshot(repoDir, rev, options)) {
+                linkSnapshot(snapshots, checkoutMetadata, metadataFile, request, current, metrics, offline);
+                return;
+            }
+            deleteSnapshotCheckout(repoDir);
+            boolean clone = !new File(repoDir, ".git").exists();
+            if (clone && offline) {
+                throw new GradleException("Repository " + request.getName() + " isn't checked out in " + repoDir
+                        + " and Git repositories are offline. Run the build online once to clone " + uri + ".");
+            }
+            long start = System.currentTimeMillis();
+            // the checkout directory may already contain files, which a failed clone must keep
+            Set<String> existingFiles = clone ? listFiles(repoDir) : null;
+            try {
+                List<String> uris = offline ? List.of(uri) : remotes.order(gitClientStrategy, checkoutMetadata, request, current, clone);
+                for (int attempt = 0; ; attempt++) {
+                    RuntimeException failure = null;
+                    for (String remote : uris) {
+                        try {
+                            if (clone) {
+                                gitClientStrategy.cloneRepository(repoDir, remote, rev, branchOrTag, current, credentials(request), options, metrics);
+                                if (!remote.equals(uri)) {
+                                    // the next synchronization chooses its remote again
+                                    OriginRemote.setUrl(repoDir, uri);
+                                }
+                            } else {
+                                updateFrom(gitClientStrategy, request, remote, uris.size() > 1, current, metrics);
+                            }
+                            return;
+                        } catch (IOException | RuntimeException e) {
+                            if (offline) {
+                                throw e instanceof RuntimeException ? (RuntimeException) e : new UncheckedIOException((IOException) e);
+                            }
+                            LOGGER.info("Unable to synchronize {} from {}: {}", request.getName(), remote, e.getMessage());
+                            failure = e instanceof RuntimeException ? (RuntimeException) e : new UncheckedIOException((IOException) e);
+                            remotes.failed(remote);
+                            if (clone) {
+                                // the next attempt clones again
+                                deleteFailedClone(repoDir, existingFiles);
+                            }
+                        }
+                    }
+                    if (attempt >= remotes.retries) {
+                        throw failure;
+                    }
+                    long backoffMillis = remotes.retryBackoffMillis << Math.min(attempt, 16);
+                    LOGGER.warn("Unable to synchronize {}, retrying in {}ms: {}", request.getName(), backoffMillis, failure.getMessage());
+                    Thread.sleep(backoffMillis);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GradleException("Interrupted while synchronizing " + request.getName(), e);
+            } finally {
+                metrics.completed(clone, System.currentTimeMillis() - start, GitHead.resolveCommit(GitHead.gitDir(repoDir)));
+                // make the state of this checkout visible to other builds before releasing the lock
+                checkoutMetadata.write(metadataFile);
+            }
+        }
+    }
+
+    /**
+     * Returns the names of the files of a directory.
+     *
+     * @return the names, or null if the directory doesn't exist
+     */
+    private static Set<String> listFiles(File dir) {
+        String[] names = dir.list();
+        return names == null ? null : new HashSet<>(Arrays.asList(names));
+    }
+
+    /**
+     * Deletes the files a failed clone created in a checkout directory.
+     *
+     * @param existingFiles the names of the files of the directory before the clone, or null if it didn't exist
+     */
+    private static void deleteFailedClone(File repoDir, Set<String> existingFiles) throws IOException {
+        if (existingFiles == null) {
+            SnapshotStore.delete(repoDir);
+            return;
+        }
+        File[] files = repoDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!existingFiles.contains(file.getName())) {
+                    SnapshotStore.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks out a pinned commit from its snapshot, populating the snapshot first if needed.
+     * The checkout directory is replaced if it was made from another snapshot, or if it is empty.
+     */
+    private static void linkSnapshot(Snapshots snapshots,
+                                     CheckoutMetadataStore checkoutMetadata,
+                                     File metadataFile,
+                                     CheckoutRequest request,
+                                     CheckoutMetadata current,
+                                     SyncMetrics metrics,
+                                     boolean offline) {
+        File repoDir = request.getCheckoutDirectory();
+        String uri = request.getUri();
+        String rev = request.getCommit();
+        Set<String> existingFiles = listFiles(repoDir);
+        if (SnapshotStore.linkedCommit(repoDir) == null && existingFiles != null && !existingFiles.isEmpty()) {
+            throw new GradleException("Unable to check out " + request.getName() + " from a snapshot, since " + repoDir
+                    + " contains files and wasn't made from a snapshot. Delete it or use another checkout directory.");
+        }
+        long start = System.currentTimeMillis();
+        boolean clone = false;
+        try {
+            if (rev.equals(SnapshotStore.linkedCommit(repoDir, uri))) {
+                LOGGER.info("Checkout {} was made from the snapshot of commit {}", repoDir, rev);
+                return;
+            }
+            File snapshot = snapshots.store.snapshotFor(uri, rev);
+            if (offline && !snapshot.isDirectory()) {
+                throw new GradleException("No snapshot of commit " + rev + " of " + request.getName() + " exists in "
+                        + snapshot.getParentFile() + " and Git repositories are offline. Run the build online once to populate it.");
+            }
+            // linking an existing snapshot doesn't fetch anything
+            clone = !snapshot.isDirectory();
+            SnapshotStore.delete(repoDir);
+            snapshot = snapshots.store.populate(uri, rev, LOGGER, dir -> snapshots.gitClientStrategy.cloneRepository(
+                    dir, uri, rev, "",
+                    new CheckoutMetadata(dir.getAbsolutePath(), uri, rev, "", System.currentTimeMillis()),
+                    credentials(request), request.getOptions(), metrics
+            ));
+            LOGGER.info("Linking snapshot {} into {}", snapshot, repoDir);
+            SnapshotStore.link(snapshot, repoDir, uri, rev);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            metrics.completed(clone, System.currentTimeMillis() - start, SnapshotStore.linkedCommit(repoDir));
+            checkoutMetadata.update(current, rev, false);
+            checkoutMetadata.write(metadataFile);
+        }
+    }
+
+    /**
+     * Deletes a checkout made from a snapshot, so that it can be cloned instead.
+     */
+    private static void deleteSnapshotCheckout(File repoDir) {
+        if (SnapshotStore.linkedCommit(repoDir) != null) {
+            LOGGER.info("Deleting checkout {} which was made from a snapshot", repoDir);
+            try {
+                SnapshotStore.delete(repoDir);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * How the remotes of a repository are chosen and retried.
+     */
+    private static class Remotes {
+        private final MirrorSelector mirrorSelector;
+        private final int retries;
+        private final long retryBackoffMillis;
+        private final long refreshIntervalMillis;
+
+        private Remotes(MirrorSelector mirrorSelector, int retries, long retryBackoffMillis, long refreshIntervalMillis) {
+            this.mirrorSelector = mirrorSelector;
+            this.retries = retries;
+            this.retryBackoffMillis = retryBackoffMillis;
+            this.refreshIntervalMillis = refreshIntervalMillis;
+        }
+
+        /**
+         * Returns the remotes to try, in order. The mirrors of a repository are only
+         * pinged if the checkout is going to contact its remote.
+         */
+        private List<String> order(GitClientStrategy gitClientStrategy,
+                                   CheckoutMetadataStore checkoutMetadata,
+                                   CheckoutRequest request,
+                                   CheckoutMetadata current,
+                                   boolean clone) {
+            String uri = request.getUri();
+            if (mirrorSelector == null || request.getMirrors().isEmpty()) {
+                return List.of(uri);
+            }
+            File gitDir = GitHead.gitDir(request.getCheckoutDirectory());
+            boolean upToDate = !clone
+                    && ((!request.getCommit().isEmpty() && GitHead.isDetachedAt(gitDir, request.getCommit()))
+                    || gitClientStrategy.containsKey(checkoutMetadata, current, refreshIntervalMillis));
+            if (upToDate) {
+                return List.of(uri);
+            }
+            List<String> uris = new ArrayList<>();
+            uris.add(uri);
+            uris.addAll(request.getMirrors());
+            // a pinned commit never changes, so any mirror which has it will do
+            boolean pinned = !request.getCommit().isEmpty();
+            return mirrorSelector.select(uris, pinned ? Constants.HEAD : RefSpecs.probedRef(request.getBranchOrTag(), request.getOptions().isTag()),
+                    !pinned, credentials(request));
+        }
+
+        private void failed(String uri) {
+            if (mirrorSelector != null) {
+                mirrorSelector.failed(uri);
+            }
+        }
+    }
+
+    private static class Snapshots {
+        private final SnapshotStore store;
+        private final GitClientStrategy gitClientStrategy;
+
+        private Snapshots(SnapshotStore store, GitClientStrategy gitClientStrategy) {
+            this.store = store;
+            this.gitClientStrategy = gitClientStrategy;
+        }
+    }
+
+    /**
+     * Returns the credentials of a repository, which are only known to the daemon which evaluated the settings.
+     */
+    private static Credentials credentials(CheckoutRequest request) {
+        Credentials credentials = CheckoutCredentials.find(request.getCheckoutDirectory());
+        return credentials != null ? credentials : Credentials.NONE;
+    }
+
+    /**
+     * Locks a checkout, waiting for the other builds or the background prefetch which use it.
+     */
+    static FileLocks.Handle lockCheckout(File repoDir) {
+        return FileLocks.lock(new File(repoDir.getParentFile(), repoDir.getName() + ".lock"), "checkout " + repoDir, LOGGER);
+    }
+
+    /**
+     * Creates the Git client of the checkouts. Without exec operations, which are only available
+     * during the build, the git CLI is run with a {@link ProcessBuilder}.
+     */
+    static GitClientStrategy createGitClientStrategy(CheckoutParameters parameters,
+                                                     ExecOperations execOperations,
+                                                     CheckoutMetadataStore checkoutMetadata) {
+        SharedObjectCache objectCache = parameters.getSharedObjectCacheDirectory().isPresent()
+                ? new SharedObjectCache(parameters.getSharedObjectCacheDirectory().get())
+                : null;
+        WorktreeStore worktrees = parameters.getWorktreesDirectory().isPresent()
+                ? new WorktreeStore(parameters.getWorktreesDirectory().get())
+                : null;
+        TransferLimits limits = new TransferLimits(
+                parameters.getMaxConcurrentTransfers().getOrElse(0),
+                parameters.getMaxConcurrentTransfersPerHost().getOrElse(0),
+                parameters.getMaxTransferBytesPerSecond().getOrElse(0L)
+        );
+        long refreshIntervalMillis = parameters.getRefreshIntervalMillis().get();
+        boolean offline = parameters.getOffline().get();
+        if (parameters.getUseGitCli().get()) {
+            return new GitCliClient(LOGGER, execOperations, checkoutMetadata, refreshIntervalMillis, offline, objectCache, worktrees,
+                    limits, TransferThrottle.shared());
+        }
+        HttpPoolSettings httpPoolSettings = new HttpPoolSettings(
+                parameters.getHttpMaxConnections().get(),
+                parameters.getHttpMaxConnectionsPerHost().get(),
+                parameters.getHttpConnectTimeoutMillis().getOrElse(0),
+                parameters.getHttpReadTimeoutMillis().getOrElse(0)
+        );
+        return new JGitClient(LOGGER, checkoutMetadata, refreshIntervalMillis, offline, objectCache, worktrees, JGitResources.shared(),
+                httpPoolSettings, limits, TransferThrottle.shared());
+    }
+}
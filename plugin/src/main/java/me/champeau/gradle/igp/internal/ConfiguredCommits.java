@@ -0,0 +1,107 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp.internal;
+
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Records the commit of each checkout directory when the build was last configured, so that
+ * code ready listeners can tell which commit the checkout moved from. The records are specific
+ * to a build, even if several builds share the same checkouts directory.
+ *
+ * The records are read by {@link ConfiguredCommitsValueSource}, so that the configuration cache
+ * only compares their content: the file changes whenever it is written, since it starts with the
+ * time it was written at.
+ */
+public class ConfiguredCommits implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Properties commits = new Properties();
+
+    public static ConfiguredCommits read(File file, Logger logger) {
+        ConfiguredCommits configuredCommits = new ConfiguredCommits();
+        if (file.exists()) {
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                configuredCommits.commits.load(in);
+            } catch (IOException | IllegalArgumentException e) {
+                logger.info("Unable to read configured commits {}: {}", file, e.getMessage());
+            }
+        }
+        return configuredCommits;
+    }
+
+    /**
+     * Returns the commit a checkout was at when the build was last configured.
+     * @param checkoutDirectory the checkout directory
+     * @return the commit, or an empty string if unknown
+     */
+    public String get(File checkoutDirectory) {
+        return commits.getProperty(checkoutDirectory.getAbsolutePath(), "");
+    }
+
+    public void put(File checkoutDirectory, String commit) {
+        commits.setProperty(checkoutDirectory.getAbsolutePath(), commit);
+    }
+
+    public void write(File file, Logger logger) {
+        try {
+            Path target = file.toPath();
+            Files.createDirectories(target.getParent());
+            Path tmp = Files.createTempFile(target.getParent(), file.getName(), ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(tmp)) {
+                    commits.store(out, null);
+                }
+                try {
+                    Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            logger.info("Unable to write configured commits {}: {}", file, e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        return commits.equals(((ConfiguredCommits) o).commits);
+    }
+
+    @Override
+    public int hashCode() {
+        return commits.hashCode();
+    }
+}
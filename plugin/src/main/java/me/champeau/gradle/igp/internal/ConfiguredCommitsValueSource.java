@@ -0,0 +1,42 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp.internal;
+
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.ValueSource;
+import org.gradle.api.provider.ValueSourceParameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+
+/**
+ * Reads the {@link ConfiguredCommits commits the checkouts were at} when the build was last configured.
+ * It is only obtained when code ready listeners are registered, since these records change whenever
+ * a checkout moves, which then invalidates the configuration cache once more.
+ */
+public abstract class ConfiguredCommitsValueSource implements ValueSource<ConfiguredCommits, ConfiguredCommitsValueSource.Parameters> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConfiguredCommitsValueSource.class);
+
+    public interface Parameters extends ValueSourceParameters {
+        Property<File> getFile();
+    }
+
+    @Override
+    public ConfiguredCommits obtain() {
+        return ConfiguredCommits.read(getParameters().getFile().get(), LOGGER);
+    }
+}
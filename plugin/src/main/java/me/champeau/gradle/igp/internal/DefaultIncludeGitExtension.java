@@ -15,33 +15,25 @@
  */
 package me.champeau.gradle.igp.internal;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import javax.inject.Inject;
 import me.champeau.gradle.igp.Authentication;
 import me.champeau.gradle.igp.GitIncludeExtension;
 import me.champeau.gradle.igp.IncludedGitRepo;
 import me.champeau.gradle.igp.internal.git.jgit.DefaultAuthentication;
-import me.champeau.gradle.igp.internal.git.cli.GitCliClient;
-import me.champeau.gradle.igp.internal.git.GitClientStrategy;
-import me.champeau.gradle.igp.internal.git.jgit.JGitClient;
+import me.champeau.gradle.igp.internal.git.CheckoutOptions;
+import me.champeau.gradle.igp.internal.git.WorktreeStore;
+import me.champeau.gradle.igp.internal.git.jgit.JGitResourcesService;
 import org.gradle.api.Action;
 import org.gradle.api.GradleException;
 import org.gradle.api.initialization.Settings;
 import org.gradle.api.model.ObjectFactory;
 import org.gradle.api.provider.Provider;
 import org.gradle.api.provider.ProviderFactory;
+import org.gradle.build.event.BuildEventsListenerRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,10 +44,22 @@ public abstract class DefaultIncludeGitExtension implements GitIncludeExtension
 
   public static final String LOCAL_GIT_PREFIX = "local.git.";
   public static final String AUTO_GIT_DIRS = "auto.include.git.dirs";
+  public static final String AUTO_GIT_DEPTH = "auto.include.git.depth";
+  private static final String AUTO_INCLUDE_INDEX_PATH = "includegit/auto-include-index.bin";
+  private static final String CONFIGURED_COMMITS_PATH = "includegit/configured-commits.properties";
 
   private final Settings settings;
+  private final List<PendingInclude> pendingIncludes = new ArrayList<>();
 
-  private Map<String, CheckoutMetadata> checkoutMetadata;
+  private final List<CheckoutRequest> prefetchRequests = new ArrayList<>();
+
+  private AutoIncludeIndex autoIncludeIndex;
+
+  private ConfiguredCommits previousCommits;
+
+  private final ConfiguredCommits configuredCommits = new ConfiguredCommits();
+
+  private boolean settingsEvaluated;
   private Action<? super Authentication> defaultAuth = a -> {
   };
 
@@ -65,6 +69,9 @@ public abstract class DefaultIncludeGitExtension implements GitIncludeExtension
   @Inject
   protected abstract ProviderFactory getProviders();
 
+  @Inject
+  protected abstract BuildEventsListenerRegistry getBuildEvents();
+
   @Inject
   public DefaultIncludeGitExtension(Settings settings) {
     this.settings = settings;
@@ -73,10 +80,12 @@ public abstract class DefaultIncludeGitExtension implements GitIncludeExtension
   @Override
   public void include(String name, Action<? super IncludedGitRepo> spec) {
     getCheckoutsDirectory().finalizeValue();
+    getUseWorktrees().finalizeValue();
     ProviderFactory providers = getProviders();
-    readCheckoutMetadata();
-    DefaultIncludedGitRepo repo = getObjects().newInstance(DefaultIncludedGitRepo.class, name);
+    DefaultIncludedGitRepo repo = getObjects().newInstance(DefaultIncludedGitRepo.class, name, providers);
     repo.getCheckoutDirectory().convention(getCheckoutsDirectory().map(dir -> dir.dir(name)));
+    repo.getCloneDepth().convention(getCloneDepth());
+    repo.getFilter().convention(getFilter());
     spec.execute(repo);
     DefaultAuthentication auth = repo.getAuth().orElseGet(() -> {
       DefaultAuthentication result = getObjects().newInstance(DefaultAuthentication.class);
@@ -84,122 +93,204 @@ public abstract class DefaultIncludeGitExtension implements GitIncludeExtension
       return result;
     });
     File repoDir = repo.getCheckoutDirectory().get().getAsFile();
-    String localRepoProperty = LOCAL_GIT_PREFIX + repo.getName();
-    Provider<String> autoGitDirs;
-    autoGitDirs = forUseAtConfigurationTime(providers.gradleProperty(AUTO_GIT_DIRS));
-    Map<String, List<File>> autoDirs = Collections.emptyMap();
-    if (autoGitDirs.isPresent()) {
-      autoDirs = Arrays.stream(autoGitDirs.get().split("[,;](\\s)?"))
-          .map(File::new)
-          .flatMap(dir -> {
-                File[] dirEntries = dir.listFiles();
-                return dirEntries == null
-                    ? Stream.empty()
-                    : Arrays.stream(dirEntries)
-                        .filter(File::isDirectory);
-              }
-          )
-          .collect(Collectors.groupingBy(File::getName));
+    if (getUseWorktrees().get()) {
+      if (new File(repoDir, ".git").exists()) {
+        throw new GradleException(repoDir + " was checked out without worktrees. Delete it to check out " + name + " using worktrees.");
+      }
+      repoDir = WorktreeStore.worktreeDirectory(
+          repoDir,
+          repo.getCommit().getOrElse(""),
+          repo.getTag().orElse(repo.getBranch()).getOrElse("")
+      );
     }
-    Map<String, List<File>> finalAutoDirs = autoDirs;
+    String localRepoProperty = LOCAL_GIT_PREFIX + repo.getName();
     Provider<String> localRepo = forUseAtConfigurationTime(providers.gradleProperty(localRepoProperty))
         .orElse(forUseAtConfigurationTime(providers.systemProperty(localRepoProperty)))
         .orElse(providers.provider(() -> {
-          List<File> files = finalAutoDirs.get(repo.getName());
-          if (files == null) {
-            return null;
-          }
-          if (files.size() == 1) {
-            return files.get(0).toString();
-          }
-          throw new GradleException(
-              "More than one directory named " + repo.getName() + " exists in auto Git repositories: " + files);
+          AutoIncludeIndex index = autoIncludeIndex();
+          File dir = index == null ? null : index.find(repo.getName(), repo.getUri().getOrElse(""));
+          return dir == null ? null : dir.toString();
         }));
     if (localRepo.isPresent()) {
       LOGGER.info("Using local repository for {} instead of cloning", repo.getName());
-      repoDir = new File(localRepo.get());
+      pendingIncludes.add(new PendingInclude(repo, new File(localRepo.get()), auth, true));
     } else {
-      cloneOrUpdate(repoDir, repo, auth);
+      pendingIncludes.add(new PendingInclude(repo, repoDir, auth, false));
+    }
+    if (settingsEvaluated) {
+      // late include, for example from a settingsEvaluated callback registered after ours
+      includePendingRepositories();
     }
-    repo.configure(settings, repoDir);
   }
 
-  @Override
-  public void defaultAuthentication(Action<? super Authentication> config) {
-    defaultAuth = config;
+  /**
+   * Returns the index of the directories of the {@value #AUTO_GIT_DIRS} property, which is
+   * scanned once per settings evaluation, down to {@value #AUTO_GIT_DEPTH} levels.
+   */
+  private AutoIncludeIndex autoIncludeIndex() {
+    if (autoIncludeIndex == null) {
+      ProviderFactory providers = getProviders();
+      Provider<String> autoGitDirs = forUseAtConfigurationTime(providers.gradleProperty(AUTO_GIT_DIRS));
+      if (!autoGitDirs.isPresent()) {
+        return null;
+      }
+      String depth = forUseAtConfigurationTime(providers.gradleProperty(AUTO_GIT_DEPTH)).getOrElse("1");
+      if (!depth.matches("[1-9][0-9]*")) {
+        throw new GradleException("Invalid value for " + AUTO_GIT_DEPTH + ": " + depth + ". It must be a positive number.");
+      }
+      File stateFile = projectCacheFile(AUTO_INCLUDE_INDEX_PATH);
+      autoIncludeIndex = forUseAtConfigurationTime(providers.of(AutoIncludeIndexValueSource.class, spec -> {
+        AutoIncludeIndexValueSource.Parameters parameters = spec.getParameters();
+        parameters.getDirectories().set(autoGitDirs.get());
+        parameters.getDepth().set(Integer.parseInt(depth));
+        parameters.getStateFile().set(stateFile);
+      })).get();
+    }
+    return autoIncludeIndex;
   }
 
-  private void readCheckoutMetadata() {
-    if (checkoutMetadata == null) {
-      checkoutMetadata = new HashMap<>();
-      File metadataFile = getCheckoutsDirectory().file("checkouts.bin").get().getAsFile();
-      if (metadataFile.exists()) {
-        try (DataInputStream dis = new DataInputStream(new FileInputStream(metadataFile))) {
-          int size = dis.readInt();
-          for (int i = 0; i < size; i++) {
-            String uri = dis.readUTF();
-            String ref = dis.readUTF();
-            String branch = dis.readUTF();
-            long lastUpdate = dis.readLong();
-            checkoutMetadata.put(uri, new CheckoutMetadata(uri, ref, branch, lastUpdate));
-          }
-        } catch (IOException e) {
-          throw new GradleException("Unable to read checkout metadata", e);
-        }
+  /**
+   * Clones or updates all the repositories declared so far, in parallel,
+   * then includes them in the build, in declaration order.
+   */
+  public void includePendingRepositories() {
+    settingsEvaluated = true;
+    if (pendingIncludes.isEmpty()) {
+      return;
+    }
+    List<PendingInclude> includes = new ArrayList<>(pendingIncludes);
+    pendingIncludes.clear();
+    List<CheckoutRequest> requests = new ArrayList<>();
+    for (PendingInclude include : includes) {
+      requests.add(include.toRequest());
+    }
+    boolean useGitCli = getUseGitCli().getOrElse(false);
+    if (!useGitCli) {
+      // the service is closed at the end of the build, which evicts the idle repositories
+      settings.getGradle().getSharedServices()
+          .registerIfAbsent(JGitResourcesService.NAME, JGitResourcesService.class, spec -> {
+          })
+          .get();
+    }
+    // only reads the checkouts, since the configuration cache obtains this value again to check an entry
+    Map<String, String> commits = forUseAtConfigurationTime(getProviders().of(CheckoutCommitsValueSource.class, spec -> {
+      CheckoutCommitsValueSource.Parameters parameters = spec.getParameters();
+      configure(parameters, useGitCli);
+      parameters.getCheckouts().set(requests);
+    })).get();
+    if (commits.values().stream().anyMatch(CheckoutCommitsValueSource::isStale)) {
+      // the Git work happens in a value source, so that its file reads and processes aren't
+      // inputs of the configuration cache
+      commits = forUseAtConfigurationTime(getProviders().of(CheckoutSyncValueSource.class, spec -> {
+        CheckoutSyncValueSource.Parameters parameters = spec.getParameters();
+        configure(parameters, useGitCli);
+        parameters.getCheckouts().set(requests);
+        parameters.getReportFile().set(new File(settings.getRootDir(), SyncReport.REPORT_PATH));
+        parameters.getRetries().set(getRetries());
+        parameters.getRetryBackoffMillis().set(getRetryBackoffMillis());
+        parameters.getHedgeDelayMillis().set(getHedgeDelayMillis());
+      })).get();
+    }
+    if (getBackgroundPrefetch().getOrElse(false) && !getOffline().getOrElse(false)) {
+      if (prefetchRequests.isEmpty()) {
+        Provider<BackgroundPrefetchService> prefetch = settings.getGradle().getSharedServices()
+            .registerIfAbsent(BackgroundPrefetchService.NAME, BackgroundPrefetchService.class, spec -> {
+              BackgroundPrefetchService.Parameters parameters = spec.getParameters();
+              configure(parameters, useGitCli);
+              // includes the repositories which are included later
+              parameters.getCheckouts().set(getProviders().provider(() -> new ArrayList<>(prefetchRequests)));
+            });
+        getBuildEvents().onTaskCompletion(prefetch);
+      }
+      prefetchRequests.addAll(requests);
+    }
+    if (previousCommits == null && includes.stream().anyMatch(include -> include.repo.hasCodeReadyListeners())) {
+      previousCommits = forUseAtConfigurationTime(getProviders().of(ConfiguredCommitsValueSource.class, spec ->
+          spec.getParameters().getFile().set(projectCacheFile(CONFIGURED_COMMITS_PATH))
+      )).get();
+    }
+    for (PendingInclude include : includes) {
+      if (include.local) {
+        include.repo.configure(settings, include.checkoutDirectory, "", "");
       } else {
-        checkoutMetadata = new HashMap<>();
+        String commit = commits.getOrDefault(include.repo.getName(), "");
+        String previousCommit = previousCommits == null ? "" : previousCommits.get(include.checkoutDirectory);
+        include.repo.configure(settings, include.checkoutDirectory, previousCommit, commit);
+        configuredCommits.put(include.checkoutDirectory, commit);
       }
     }
+    // read back by the next configuration, which then knows which commits the checkouts moved from
+    configuredCommits.write(projectCacheFile(CONFIGURED_COMMITS_PATH), LOGGER);
   }
 
-  public void writeCheckoutMetadata() {
-    if (checkoutMetadata == null) {
-      return;
+  private File projectCacheFile(String path) {
+    File projectCacheDir = settings.getStartParameter().getProjectCacheDir();
+    return new File(projectCacheDir != null ? projectCacheDir : new File(settings.getRootDir(), ".gradle"), path);
+  }
+
+  private void configure(CheckoutParameters parameters, boolean useGitCli) {
+    parameters.getUseGitCli().set(useGitCli);
+    parameters.getRefreshIntervalMillis().set(getRefreshIntervalMillis());
+    parameters.getOffline().set(getOffline().orElse(false));
+    parameters.getParallelism().set(getParallelism().orElse(1));
+    parameters.getCheckoutMetadataFile().set(getCheckoutsDirectory().file("checkouts.bin").get().getAsFile());
+    parameters.getMaxConcurrentTransfers().set(getMaxConcurrentTransfers());
+    parameters.getMaxConcurrentTransfersPerHost().set(getMaxConcurrentTransfersPerHost());
+    parameters.getMaxTransferBytesPerSecond().set(getMaxTransferBytesPerSecond());
+    parameters.getHttpMaxConnections().set(getHttpMaxConnections());
+    parameters.getHttpMaxConnectionsPerHost().set(getHttpMaxConnectionsPerHost());
+    parameters.getHttpConnectTimeoutMillis().set(getHttpConnectTimeoutMillis());
+    parameters.getHttpReadTimeoutMillis().set(getHttpReadTimeoutMillis());
+    if (getUseSharedObjectCache().getOrElse(false)) {
+      parameters.getSharedObjectCacheDirectory().set(getSharedObjectCacheDirectory().get().getAsFile());
     }
-    File metadataFile = getCheckoutsDirectory().file("checkouts.bin").get().getAsFile();
-    File parentFile = metadataFile.getParentFile();
-    parentFile.mkdirs();
-    try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(metadataFile))) {
-      int size = checkoutMetadata.size();
-      dos.writeInt(size);
-      checkoutMetadata.entrySet()
-          .stream()
-          .sorted(Map.Entry.comparingByKey())
-          .forEachOrdered(e -> {
-            CheckoutMetadata value = e.getValue();
-            try {
-              dos.writeUTF(value.getUri());
-              dos.writeUTF(value.getRef());
-              dos.writeUTF(value.getBranch());
-              dos.writeLong(value.getLastUpdate());
-            } catch (IOException ex) {
-              throw new GradleException("Unable to write checkout metadata", ex);
-            }
-          });
-    } catch (IOException e) {
-      throw new GradleException("Unable to write checkout metadata", e);
+    if (getUseWorktrees().get()) {
+      parameters.getWorktreesDirectory().set(getCheckoutsDirectory().dir(WorktreeStore.DIRECTORY_NAME).get().getAsFile());
+    } else if (getUseSnapshotCache().getOrElse(false)) {
+      parameters.getSnapshotsDirectory().set(getSnapshotCacheDirectory().get().getAsFile());
     }
   }
 
-  private void cloneOrUpdate(File repoDir, IncludedGitRepo repo, DefaultAuthentication auth) {
-    String uri = repo.getUri().get();
-    String rev = repo.getCommit().getOrElse("");
-    String branchOrTag = repo.getTag().orElse(repo.getBranch()).orElse("").get();
-    CheckoutMetadata current = new CheckoutMetadata(uri, rev, branchOrTag, System.currentTimeMillis());
+  @Override
+  public void defaultAuthentication(Action<? super Authentication> config) {
+    defaultAuth = config;
+  }
 
-    GitClientStrategy gitClientStrategy = getGitClientStrategy();
-    if (repoDir.exists() && new File(repoDir, ".git").exists()) {
-      gitClientStrategy.updateRepository(repoDir, uri, rev, branchOrTag, current, auth);
-    } else {
-      gitClientStrategy.cloneRepository(repoDir, uri, rev, branchOrTag, current, auth);
+  private static class PendingInclude {
+    private final DefaultIncludedGitRepo repo;
+    private final File checkoutDirectory;
+    private final DefaultAuthentication auth;
+    private final boolean local;
+
+    private PendingInclude(DefaultIncludedGitRepo repo, File checkoutDirectory, DefaultAuthentication auth, boolean local) {
+      this.repo = repo;
+      this.checkoutDirectory = checkoutDirectory;
+      this.auth = auth;
+      this.local = local;
     }
-  }
 
-  private GitClientStrategy getGitClientStrategy() {
-    if (getUseGitCli().getOrElse(false)) {
-      return new GitCliClient(LOGGER, getProviders(), checkoutMetadata, getRefreshIntervalMillis().get());
-    } else {
-      return new JGitClient(LOGGER, checkoutMetadata, getRefreshIntervalMillis().get());
+    private CheckoutRequest toRequest() {
+      String uri = repo.getUri().getOrElse("");
+      if (local) {
+        return new CheckoutRequest(repo.getName(), checkoutDirectory, uri, List.of(), "", "", null, true);
+      }
+      CheckoutCredentials.register(checkoutDirectory, auth.toCredentials());
+      CheckoutOptions options = new CheckoutOptions(
+          repo.getCloneDepth().getOrElse(0),
+          repo.getFilter().getOrElse(""),
+          repo.getEffectiveSparseCheckoutDirectories(),
+          repo.getTag().isPresent()
+      );
+      return new CheckoutRequest(
+          repo.getName(),
+          checkoutDirectory,
+          repo.getUri().get(),
+          repo.getMirrors().getOrElse(List.of()),
+          repo.getCommit().getOrElse(""),
+          repo.getTag().orElse(repo.getBranch()).orElse("").get(),
+          options,
+          false
+      );
     }
   }
 }
@@ -17,32 +17,41 @@ package me.champeau.gradle.igp.internal;
 
 import me.champeau.gradle.igp.Authentication;
 import me.champeau.gradle.igp.IncludedGitRepo;
+import me.champeau.gradle.igp.internal.git.SparseCheckouts;
 import me.champeau.gradle.igp.internal.git.jgit.DefaultAuthentication;
 import org.gradle.api.Action;
 import org.gradle.api.initialization.ConfigurableIncludedBuild;
 import org.gradle.api.initialization.Settings;
 import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.ProviderFactory;
 
 import javax.inject.Inject;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+
+import static me.champeau.gradle.igp.internal.ProviderUtils.forUseAtConfigurationTime;
 
 public abstract class DefaultIncludedGitRepo implements IncludedGitRepo {
     private final String name;
     private final ObjectFactory objects;
+    private final ProviderFactory providers;
     private final Action<ConfigurableIncludedBuild> rootSpec;
     private final List<IncludedBuild> includes = new ArrayList<>();
     private final List<Action<? super CodeReadyEvent>> codeReadyEvents = new ArrayList<>();
     private DefaultAuthentication auth;
 
     @Inject
-    public DefaultIncludedGitRepo(String name, ObjectFactory objects) {
+    public DefaultIncludedGitRepo(String name, ProviderFactory providers, ObjectFactory objects) {
         this.name = name;
         this.objects = objects;
+        this.providers = providers;
         this.rootSpec = c -> c.setName(name);
         getAutoInclude().convention(true);
+        getSparseCheckout().convention(false);
     }
 
     @Override
@@ -92,9 +101,29 @@ public abstract class DefaultIncludedGitRepo implements IncludedGitRepo {
         return Optional.ofNullable(auth);
     }
 
-    void configure(Settings settings, File checkoutDirectory) {
+    /**
+     * Returns the directories to check out when sparse checkout is enabled,
+     * or an empty list if the whole repository must be checked out.
+     */
+    List<String> getEffectiveSparseCheckoutDirectories() {
+        if (!getSparseCheckout().get() || getAutoInclude().get()) {
+            return Collections.emptyList();
+        }
+        List<String> directories = new ArrayList<>();
+        for (IncludedBuild include : includes) {
+            directories.add(include.directory);
+        }
+        directories.addAll(getSparseCheckoutDirectories().get());
+        return SparseCheckouts.normalize(directories);
+    }
+
+    boolean hasCodeReadyListeners() {
+        return !codeReadyEvents.isEmpty();
+    }
+
+    void configure(Settings settings, File checkoutDirectory, String previousCommit, String commit) {
         if (!codeReadyEvents.isEmpty()) {
-            fireCodeReadyEvents(checkoutDirectory);
+            fireCodeReadyEvents(checkoutDirectory, previousCommit, commit);
         }
         if (getAutoInclude().get()) {
             settings.includeBuild(checkoutDirectory, rootSpec);
@@ -107,8 +136,10 @@ public abstract class DefaultIncludedGitRepo implements IncludedGitRepo {
         }
     }
 
-    private void fireCodeReadyEvents(File checkoutDirectory) {
+    private void fireCodeReadyEvents(File checkoutDirectory, String previousCommit, String commit) {
         CodeReadyEvent codeReadyEvent = new CodeReadyEvent() {
+            private Set<String> changedPaths;
+
             @Override
             public IncludedGitRepo getIncludedGitRepo() {
                 return DefaultIncludedGitRepo.this;
@@ -118,6 +149,34 @@ public abstract class DefaultIncludedGitRepo implements IncludedGitRepo {
             public File getCheckoutDirectory() {
                 return checkoutDirectory;
             }
+
+            @Override
+            public String getPreviousCommit() {
+                return previousCommit;
+            }
+
+            @Override
+            public String getCommit() {
+                return commit;
+            }
+
+            @Override
+            public boolean isChanged() {
+                return previousCommit.isEmpty() || !previousCommit.equals(commit);
+            }
+
+            @Override
+            public Set<String> getChangedPaths() {
+                if (changedPaths == null) {
+                    changedPaths = forUseAtConfigurationTime(providers.of(ChangedPathsValueSource.class, spec -> {
+                        ChangedPathsValueSource.Parameters parameters = spec.getParameters();
+                        parameters.getCheckoutDirectory().set(checkoutDirectory);
+                        parameters.getPreviousCommit().set(previousCommit);
+                        parameters.getCommit().set(commit);
+                    })).get();
+                }
+                return changedPaths;
+            }
         };
         for (Action<? super CodeReadyEvent> action : codeReadyEvents) {
             action.execute(codeReadyEvent);
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp.internal;
+
+import org.gradle.api.GradleException;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Exclusive locks which work both across threads of the same JVM and across
+ * processes, similarly to the locks Gradle uses for its caches. A lock is
+ * backed by a lock file, which is never deleted.
+ *
+ * Locks are not reentrant: a thread holding a lock must not try to acquire it again.
+ */
+public abstract class FileLocks {
+    private static final Map<String, ReentrantLock> IN_PROCESS_LOCKS = new ConcurrentHashMap<>();
+
+    /**
+     * Acquires the lock, waiting for other threads or processes to release it.
+     *
+     * @param lockFile the lock file
+     * @param description the description of what is locked, for logging
+     * @param logger the logger
+     * @return the lock, which must be closed to be released
+     */
+    public static Handle lock(File lockFile, String description, Logger logger) {
+        ReentrantLock inProcessLock = IN_PROCESS_LOCKS.computeIfAbsent(lockFile.getAbsolutePath(), k -> new ReentrantLock());
+        if (!inProcessLock.tryLock()) {
+            logger.info("Waiting for another build to release the lock on {}", description);
+            inProcessLock.lock();
+        }
+        RandomAccessFile file = null;
+        try {
+            File parent = lockFile.getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            file = new RandomAccessFile(lockFile, "rw");
+            FileChannel channel = file.getChannel();
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                logger.warn("Waiting for another process to release the lock on {}", description);
+                lock = channel.lock();
+            }
+            return new Handle(inProcessLock, file, lock);
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(file);
+            inProcessLock.unlock();
+            throw new GradleException("Unable to lock " + description, e);
+        }
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    public static class Handle implements AutoCloseable {
+        private final ReentrantLock inProcessLock;
+        private final RandomAccessFile file;
+        private final FileLock lock;
+
+        private Handle(ReentrantLock inProcessLock, RandomAccessFile file, FileLock lock) {
+            this.inProcessLock = inProcessLock;
+            this.file = file;
+            this.lock = lock;
+        }
+
+        @Override
+        public void close() {
+            try {
+                lock.release();
+            } catch (IOException e) {
+                // the lock is released anyway when the file is closed
+            } finally {
+                closeQuietly(file);
+                inProcessLock.unlock();
+            }
+        }
+    }
+}
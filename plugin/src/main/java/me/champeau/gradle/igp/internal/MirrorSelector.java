@@ -0,0 +1,194 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp.internal;
+
+import me.champeau.gradle.igp.internal.git.GitClientStrategy;
+import me.champeau.gradle.igp.internal.git.jgit.Credentials;
+import org.gradle.api.GradleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the remote a checkout is synchronized from, among the URI of a repository and
+ * its mirrors. The remotes are pinged in the order given by their statistics, until one
+ * answers. If hedging is enabled and a remote doesn't answer within the hedge delay, the
+ * next remote is pinged as well, and the first one to answer is chosen. Pings which lose
+ * the race keep running in the background, and still update the statistics.
+ * <p>
+ * A ping only asks for the ref which is checked out. If a mirror answers first and the
+ * repository can be reached as well, the ref of the mirror is compared with the ref of the
+ * repository, and a stale mirror isn't chosen.
+ */
+class MirrorSelector {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MirrorSelector.class);
+    private static final ThreadPoolExecutor PINGS;
+
+    static {
+        AtomicInteger threadCount = new AtomicInteger();
+        PINGS = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread thread = new Thread(r, "includegit-ping-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private final MirrorStatistics statistics;
+    private final GitClientStrategy gitClientStrategy;
+    private final long hedgeDelayMillis;
+
+    /**
+     * @param hedgeDelayMillis the delay after which the next remote is pinged, or 0 to disable hedging
+     */
+    MirrorSelector(MirrorStatistics statistics, GitClientStrategy gitClientStrategy, long hedgeDelayMillis) {
+        this.statistics = statistics;
+        this.gitClientStrategy = gitClientStrategy;
+        this.hedgeDelayMillis = hedgeDelayMillis;
+    }
+
+    /**
+     * Orders remotes, the remote which answered first coming first. The other remotes are
+     * ordered by their statistics, so that they can be tried if the first one fails.
+     * @param uris the URI of the repository, followed by the URIs of its mirrors
+     * @param refName the full name of the ref which is checked out
+     * @param compare true if the mirrors must have the same ref as the repository, false for pinned commits
+     * @param auth the credentials
+     * @return the ordered remotes
+     */
+    List<String> select(List<String> uris, String refName, boolean compare, Credentials auth) {
+        List<String> ordered = new ArrayList<>(statistics.order(uris, System.currentTimeMillis()));
+        Map<String, Answer> answers = new HashMap<>();
+        Answer first = firstReachable(ordered, refName, auth, answers);
+        if (first != null) {
+            String reachable = first.uri;
+            String primary = uris.get(0);
+            if (compare && !reachable.equals(primary)) {
+                Answer primaryAnswer = answers.get(primary);
+                if (primaryAnswer == null) {
+                    primaryAnswer = pingNow(primary, refName, auth);
+                }
+                if (isStale(first, primaryAnswer)) {
+                    reachable = primary;
+                }
+            }
+            ordered.remove(reachable);
+            ordered.add(0, reachable);
+        }
+        return ordered;
+    }
+
+    /**
+     * Records that a remote failed to provide what a checkout needed, for example
+     * because it is a stale mirror.
+     */
+    void failed(String uri) {
+        statistics.failure(uri, System.currentTimeMillis());
+    }
+
+    private boolean isStale(Answer mirror, Answer primary) {
+        if (!primary.reachable || Objects.equals(mirror.objectId, primary.objectId)) {
+            return false;
+        }
+        LOGGER.info("{} is stale, its ref is at {} instead of {}", mirror.uri, mirror.objectId, primary.objectId);
+        failed(mirror.uri);
+        return true;
+    }
+
+    private Answer firstReachable(List<String> ordered, String refName, Credentials auth, Map<String, Answer> answers) {
+        CompletionService<Answer> pings = new ExecutorCompletionService<>(PINGS);
+        int next = 0;
+        int pending = 0;
+        pings.submit(ping(ordered.get(next++), refName, auth));
+        pending++;
+        try {
+            while (pending > 0) {
+                Future<Answer> done = hedgeDelayMillis > 0 && next < ordered.size()
+                        ? pings.poll(hedgeDelayMillis, TimeUnit.MILLISECONDS)
+                        : pings.take();
+                if (done == null) {
+                    LOGGER.info("No remote answered within {}ms, also trying {}", hedgeDelayMillis, ordered.get(next));
+                    pings.submit(ping(ordered.get(next++), refName, auth));
+                    pending++;
+                    continue;
+                }
+                pending--;
+                Answer answer = done.get();
+                answers.put(answer.uri, answer);
+                if (answer.reachable) {
+                    return answer;
+                }
+                if (next < ordered.size() && pending == 0) {
+                    pings.submit(ping(ordered.get(next++), refName, auth));
+                    pending++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GradleException("Interrupted while pinging " + ordered, e);
+        } catch (ExecutionException e) {
+            throw new GradleException("Unable to ping " + ordered, e.getCause());
+        }
+        return null;
+    }
+
+    private Callable<Answer> ping(String uri, String refName, Credentials auth) {
+        return () -> pingNow(uri, refName, auth);
+    }
+
+    private Answer pingNow(String uri, String refName, Credentials auth) {
+        long start = System.currentTimeMillis();
+        try {
+            String objectId = gitClientStrategy.ping(uri, refName, auth);
+            long now = System.currentTimeMillis();
+            statistics.success(uri, now - start, now);
+            LOGGER.info("{} answered in {}ms", uri, now - start);
+            return new Answer(uri, true, objectId);
+        } catch (RuntimeException e) {
+            statistics.failure(uri, System.currentTimeMillis());
+            LOGGER.info("Unable to reach {}: {}", uri, e.getMessage());
+            return new Answer(uri, false, null);
+        }
+    }
+
+    /**
+     * The answer of a remote to a ping.
+     */
+    private static class Answer {
+        private final String uri;
+        private final boolean reachable;
+        private final String objectId;
+
+        private Answer(String uri, boolean reachable, String objectId) {
+            this.uri = uri;
+            this.reachable = reachable;
+            this.objectId = objectId;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp.internal;
+
+import me.champeau.gradle.igp.internal.git.RemoteUris;
+import org.slf4j.Logger;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Latency and failure statistics of the hosts of remotes, which are used to order the
+ * mirrors of a repository. The latency is a moving average of the time it takes to list
+ * the branches of a remote. A host which failed is considered unhealthy for a cool down
+ * period, which doubles with each consecutive failure.
+ *
+ * The statistics are stored next to the checkout metadata, and merged with the statistics
+ * written by other builds, keeping the most recent statistics of each host.
+ */
+public class MirrorStatistics {
+    private static final int MAGIC = 0x4947504d;
+    private static final int VERSION = 1;
+    private static final long BASE_COOL_DOWN_MILLIS = 30_000;
+    private static final long MAX_COOL_DOWN_MILLIS = 30 * 60_000;
+
+    private final Map<String, HostStatistics> hosts = new TreeMap<>();
+
+    public static MirrorStatistics read(File file, Logger logger) {
+        MirrorStatistics statistics = new MirrorStatistics();
+        if (!file.exists()) {
+            return statistics;
+        }
+        try (DataInputStream dis = new DataInputStream(Files.newInputStream(file.toPath()))) {
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+                logger.info("Ignoring mirror statistics {} which use an unsupported format", file);
+                return statistics;
+            }
+            int size = dis.readInt();
+            for (int i = 0; i < size; i++) {
+                statistics.hosts.put(dis.readUTF(), new HostStatistics(dis.readLong(), dis.readInt(), dis.readLong(), dis.readLong()));
+            }
+        } catch (IOException e) {
+            logger.info("Unable to read mirror statistics {}: {}", file, e.getMessage());
+            statistics.hosts.clear();
+        }
+        return statistics;
+    }
+
+    /**
+     * Orders the URIs of a repository: healthy hosts first, then the hosts with the lowest
+     * latency. The declared order is kept between hosts without statistics.
+     * @param uris the URIs, in declared order
+     * @param now the current time
+     * @return the ordered URIs
+     */
+    public synchronized List<String> order(List<String> uris, long now) {
+        List<String> ordered = new ArrayList<>(uris);
+        ordered.sort(Comparator
+                .comparing((String uri) -> !isHealthy(uri, now))
+                .thenComparingLong(uri -> {
+                    HostStatistics statistics = hosts.get(RemoteUris.host(uri));
+                    return statistics == null || statistics.latencyMillis < 0 ? Long.MAX_VALUE : statistics.latencyMillis;
+                }));
+        return ordered;
+    }
+
+    private boolean isHealthy(String uri, long now) {
+        HostStatistics statistics = hosts.get(RemoteUris.host(uri));
+        if (statistics == null || statistics.failures == 0) {
+            return true;
+        }
+        long coolDown = BASE_COOL_DOWN_MILLIS << Math.min(statistics.failures - 1, 16);
+        return now - statistics.lastFailure > Math.min(coolDown, MAX_COOL_DOWN_MILLIS);
+    }
+
+    public synchronized void success(String uri, long latencyMillis, long now) {
+        HostStatistics previous = hosts.get(RemoteUris.host(uri));
+        long latency = previous == null || previous.latencyMillis < 0
+                ? latencyMillis
+                : (previous.latencyMillis * 3 + latencyMillis) / 4;
+        hosts.put(RemoteUris.host(uri), new HostStatistics(latency, 0, previous == null ? 0 : previous.lastFailure, now));
+    }
+
+    /**
+     * Records that a host failed to answer, or to provide what was requested.
+     */
+    public synchronized void failure(String uri, long now) {
+        HostStatistics previous = hosts.get(RemoteUris.host(uri));
+        hosts.put(RemoteUris.host(uri), previous == null
+                ? new HostStatistics(-1, 1, now, now)
+                : new HostStatistics(previous.latencyMillis, previous.failures + 1, now, now));
+    }
+
+    /**
+     * Writes the statistics, while holding a lock on the file.
+     * @param file the statistics file
+     * @param logger the logger
+     */
+    public synchronized void write(File file, Logger logger) {
+        try (FileLocks.Handle ignored = FileLocks.lock(new File(file.getPath() + ".lock"), "mirror statistics " + file, logger)) {
+            MirrorStatistics onDisk = read(file, logger);
+            onDisk.hosts.forEach((host, statistics) -> hosts.merge(host, statistics,
+                    (mine, theirs) -> mine.lastUpdate >= theirs.lastUpdate ? mine : theirs));
+            Path target = file.toPath();
+            Files.createDirectories(target.getParent());
+            Path tmp = Files.createTempFile(target.getParent(), file.getName(), ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(tmp); DataOutputStream dos = new DataOutputStream(out)) {
+                    dos.writeInt(MAGIC);
+                    dos.writeInt(VERSION);
+                    dos.writeInt(hosts.size());
+                    for (Map.Entry<String, HostStatistics> entry : hosts.entrySet()) {
+                        dos.writeUTF(entry.getKey());
+                        dos.writeLong(entry.getValue().latencyMillis);
+                        dos.writeInt(entry.getValue().failures);
+                        dos.writeLong(entry.getValue().lastFailure);
+                        dos.writeLong(entry.getValue().lastUpdate);
+                    }
+                }
+                try {
+                    Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            logger.info("Unable to write mirror statistics {}: {}", file, e.getMessage());
+        }
+    }
+
+    private static class HostStatistics {
+        private final long latencyMillis;
+        private final int failures;
+        private final long lastFailure;
+        private final long lastUpdate;
+
+        private HostStatistics(long latencyMillis, int failures, long lastFailure, long lastUpdate) {
+            this.latencyMillis = latencyMillis;
+            this.failures = failures;
+            this.lastFailure = lastFailure;
+            this.lastUpdate = lastUpdate;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp.internal;
+
+/**
+ * Records what happened while synchronizing an included repository with its remote:
+ * how long it took, which path was taken, and what was transferred. A recorder is
+ * only used by the thread which synchronizes the repository.
+ */
+public class SyncMetrics {
+    public enum Action {
+        /** The repository is a local copy, which is never synchronized. */
+        LOCAL,
+        /** The checkout was updated without contacting the remote. */
+        SKIPPED,
+        /** The remote was asked for the state of the ref, which didn't change. */
+        PROBED,
+        /** The checkout was updated by fetching from the remote. */
+        FETCHED,
+        /** The repository was cloned. */
+        CLONED
+    }
+
+    private final String name;
+    private final String uri;
+    private Action action = Action.SKIPPED;
+    private long durationMillis;
+    private int probes;
+    private int fetches;
+    private long objectsReceived;
+    private long bytesReceived;
+    private String commit = "";
+
+    public SyncMetrics(String name, String uri) {
+        this.name = name;
+        this.uri = uri;
+    }
+
+    /**
+     * Records that the remote was asked for the state of a ref.
+     */
+    public void probed() {
+        probes++;
+    }
+
+    /**
+     * Records a fetch from the remote.
+     * @param objects the number of objects received, as reported by git
+     * @param bytes the number of bytes received
+     */
+    public void fetched(long objects, long bytes) {
+        fetches++;
+        objectsReceived += objects;
+        bytesReceived += bytes;
+    }
+
+    void completed(boolean cloned, long durationMillis, String commit) {
+        if (cloned) {
+            action = Action.CLONED;
+        } else if (fetches > 0) {
+            action = Action.FETCHED;
+        } else if (probes > 0) {
+            action = Action.PROBED;
+        }
+        this.durationMillis = durationMillis;
+        this.commit = commit;
+    }
+
+    void local() {
+        action = Action.LOCAL;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public int getProbes() {
+        return probes;
+    }
+
+    public int getFetches() {
+        return fetches;
+    }
+
+    public long getObjectsReceived() {
+        return objectsReceived;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * The commit which is checked out, or an empty string if unknown.
+     * @return the commit
+     */
+    public String getCommit() {
+        return commit;
+    }
+}
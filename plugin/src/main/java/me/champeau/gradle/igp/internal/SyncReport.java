@@ -0,0 +1,161 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.champeau.gradle.igp.internal;
+
+import org.gradle.api.logging.Logging;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Collects the {@link SyncMetrics} of the included repositories, writes them to a JSON
+ * report, and summarizes them in the console. The summary is logged at lifecycle level
+ * if a repository was cloned or fetched, and at info level otherwise.
+ */
+public class SyncReport {
+    public static final String REPORT_PATH = "build/includegit/sync-report.json";
+
+    private final List<SyncMetrics> repositories = new ArrayList<>();
+    private int summarized;
+
+    public synchronized void add(SyncMetrics metrics) {
+        repositories.add(metrics);
+    }
+
+    /**
+     * Logs a summary of the repositories which were added since the last summary.
+     * @param logger the logger
+     * @param durationMillis the time it took to synchronize these repositories
+     */
+    public synchronized void logSummary(Logger logger, long durationMillis) {
+        List<SyncMetrics> synced = repositories.subList(summarized, repositories.size());
+        summarized = repositories.size();
+        if (synced.isEmpty()) {
+            return;
+        }
+        Map<SyncMetrics.Action, Integer> counts = new EnumMap<>(SyncMetrics.Action.class);
+        for (SyncMetrics metrics : synced) {
+            counts.merge(metrics.getAction(), 1, Integer::sum);
+        }
+        boolean transferred = counts.containsKey(SyncMetrics.Action.CLONED) || counts.containsKey(SyncMetrics.Action.FETCHED);
+        log(logger, transferred, "Synchronized " + synced.size() + (synced.size() == 1 ? " Git repository" : " Git repositories")
+                + " in " + durationMillis + " ms: "
+                + counts.entrySet().stream().map(e -> e.getValue() + " " + label(e.getKey())).collect(Collectors.joining(", ")));
+        for (SyncMetrics metrics : synced) {
+            StringBuilder line = new StringBuilder("  ")
+                    .append(metrics.getName())
+                    .append(": ")
+                    .append(label(metrics.getAction()));
+            if (metrics.getAction() != SyncMetrics.Action.LOCAL) {
+                line.append(" in ").append(metrics.getDurationMillis()).append(" ms");
+            }
+            if (metrics.getFetches() > 0) {
+                line.append(", ").append(metrics.getObjectsReceived()).append(" objects, ")
+                        .append(formatBytes(metrics.getBytesReceived())).append(" received");
+            }
+            log(logger, transferred, line.toString());
+        }
+    }
+
+    /**
+     * Writes the metrics of all the repositories synchronized by this build.
+     * @param file the report file
+     * @param logger the logger used to report failures
+     */
+    public synchronized void write(File file, Logger logger) {
+        StringBuilder json = new StringBuilder("{\n  \"repositories\": [");
+        for (int i = 0; i < repositories.size(); i++) {
+            SyncMetrics metrics = repositories.get(i);
+            json.append(i == 0 ? "\n" : ",\n")
+                    .append("    {\n")
+                    .append("      \"name\": ").append(quote(metrics.getName())).append(",\n")
+                    .append("      \"uri\": ").append(quote(metrics.getUri())).append(",\n")
+                    .append("      \"action\": ").append(quote(label(metrics.getAction()))).append(",\n")
+                    .append("      \"durationMillis\": ").append(metrics.getDurationMillis()).append(",\n")
+                    .append("      \"probes\": ").append(metrics.getProbes()).append(",\n")
+                    .append("      \"fetches\": ").append(metrics.getFetches()).append(",\n")
+                    .append("      \"objectsReceived\": ").append(metrics.getObjectsReceived()).append(",\n")
+                    .append("      \"bytesReceived\": ").append(metrics.getBytesReceived()).append(",\n")
+                    .append("      \"commit\": ").append(quote(metrics.getCommit())).append("\n")
+                    .append("    }");
+        }
+        json.append(repositories.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+            Files.write(file.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            logger.warn("Unable to write synchronization report {}: {}", file, e.getMessage());
+        }
+    }
+
+    private static void log(Logger logger, boolean lifecycle, String message) {
+        if (lifecycle) {
+            logger.info(Logging.LIFECYCLE, message);
+        } else {
+            logger.info(message);
+        }
+    }
+
+    private static String label(SyncMetrics.Action action) {
+        return action.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1f KiB", bytes / 1024d);
+        }
+        return String.format(Locale.ROOT, "%.1f MiB", bytes / (1024d * 1024d));
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,98 @@
+package me.champeau.gradle.igp.internal.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * Computes the paths which changed in a checkout between two commits, by comparing their trees.
+ */
+public abstract class ChangedPaths {
+
+  /**
+   * Returns the paths of the files which differ between two commits of a checkout. If the
+   * previous commit is unknown, or isn't available in the repository anymore, all the files
+   * of the current commit are returned. Checkouts which aren't Git repositories return all
+   * their files.
+   *
+   * @param repoDir the checkout directory
+   * @param previousCommit the previous commit, or an empty string if unknown
+   * @param commit the current commit, or an empty string if unknown
+   * @return the sorted paths, relative to the checkout directory, using forward slashes
+   */
+  public static Set<String> between(File repoDir, String previousCommit, String commit) {
+    if (!previousCommit.isEmpty() && previousCommit.equals(commit)) {
+      return Collections.emptySet();
+    }
+    try {
+      File gitDir = GitHead.gitDir(repoDir);
+      if (commit.isEmpty() || !gitDir.exists()) {
+        return listFiles(repoDir);
+      }
+      try (Repository repository = new FileRepositoryBuilder()
+          .setGitDir(GitHead.commonDir(gitDir))
+          .setMustExist(true)
+          .build()) {
+        if (!previousCommit.isEmpty()) {
+          try {
+            return diff(repository, previousCommit, commit);
+          } catch (MissingObjectException | IllegalArgumentException e) {
+            // for example outside a shallow history, or if the checkout was cloned from another repository
+          }
+        }
+        return diff(repository, null, commit);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static Set<String> diff(Repository repository, String previousCommit, String commit) throws IOException {
+    Set<String> paths = new TreeSet<>();
+    try (RevWalk revWalk = new RevWalk(repository); TreeWalk treeWalk = new TreeWalk(repository)) {
+      treeWalk.setRecursive(true);
+      if (previousCommit == null) {
+        treeWalk.addTree(new EmptyTreeIterator());
+      } else {
+        treeWalk.addTree(revWalk.parseCommit(ObjectId.fromString(previousCommit)).getTree());
+      }
+      treeWalk.addTree(revWalk.parseCommit(ObjectId.fromString(commit)).getTree());
+      treeWalk.setFilter(TreeFilter.ANY_DIFF);
+      while (treeWalk.next()) {
+        paths.add(treeWalk.getPathString());
+      }
+    }
+    return Collections.unmodifiableSet(paths);
+  }
+
+  private static Set<String> listFiles(File repoDir) throws IOException {
+    Path root = repoDir.toPath();
+    if (!Files.isDirectory(root)) {
+      return Collections.emptySet();
+    }
+    try (Stream<Path> files = Files.walk(root)) {
+      Set<String> paths = files
+          .filter(Files::isRegularFile)
+          .map(file -> root.relativize(file).toString().replace(File.separatorChar, '/'))
+          .filter(path -> !path.equals(SnapshotStore.MARKER_FILE_NAME)
+              && !path.equals(".git") && !path.startsWith(".git/"))
+          .collect(Collectors.toCollection(TreeSet::new));
+      return Collections.unmodifiableSet(paths);
+    }
+  }
+}
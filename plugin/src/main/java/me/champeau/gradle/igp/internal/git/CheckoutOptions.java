@@ -0,0 +1,69 @@
+package me.champeau.gradle.igp.internal.git;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Options of a checkout which are specific to an included repository.
+ */
+public class CheckoutOptions implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final int depth;
+  private final String filter;
+  private final List<String> sparseDirectories;
+  private final boolean tag;
+
+  public CheckoutOptions(int depth, String filter, List<String> sparseDirectories, boolean tag) {
+    this.depth = depth;
+    this.filter = filter;
+    this.sparseDirectories = Collections.unmodifiableList(new ArrayList<>(sparseDirectories));
+    this.tag = tag;
+  }
+
+  /**
+   * The number of commits to fetch from the tip of each branch, or 0 to fetch the whole history.
+   * @return the depth
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * The partial clone filter, for example {@code blob:none}, or an empty string to fetch all objects.
+   * @return the filter
+   */
+  public String getFilter() {
+    return filter;
+  }
+
+  /**
+   * The normalized directories of the sparse checkout cone, or an empty list to check out the whole tree.
+   * @return the directories
+   */
+  public List<String> getSparseDirectories() {
+    return sparseDirectories;
+  }
+
+  /**
+   * Whether the requested branch or tag was configured as a tag.
+   * @return true for a tag
+   */
+  public boolean isTag() {
+    return tag;
+  }
+
+  public boolean isShallow() {
+    return depth > 0;
+  }
+
+  public boolean isPartial() {
+    return !filter.isEmpty();
+  }
+
+  public boolean isSparse() {
+    return !sparseDirectories.isEmpty();
+  }
+}
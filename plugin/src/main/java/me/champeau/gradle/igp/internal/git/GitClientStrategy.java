@@ -1,22 +1,40 @@
 package me.champeau.gradle.igp.internal.git;
 
 import java.io.File;
-import java.util.Map;
 import java.util.Objects;
 import me.champeau.gradle.igp.internal.CheckoutMetadata;
-import me.champeau.gradle.igp.internal.git.jgit.DefaultAuthentication;
+import me.champeau.gradle.igp.internal.CheckoutMetadataStore;
+import me.champeau.gradle.igp.internal.SyncMetrics;
+import me.champeau.gradle.igp.internal.git.jgit.Credentials;
+import org.gradle.api.GradleException;
 
 public interface GitClientStrategy {
-  void cloneRepository(File repoDir, String uri, String rev, String branchOrTag, CheckoutMetadata current, DefaultAuthentication auth);
-  void updateRepository(File repoDir, String uri, String rev, String branchOrTag, CheckoutMetadata current, DefaultAuthentication auth);
+  void cloneRepository(File repoDir, String uri, String rev, String branchOrTag, CheckoutMetadata current, Credentials auth, CheckoutOptions options, SyncMetrics metrics);
+  void updateRepository(File repoDir, String uri, String rev, String branchOrTag, CheckoutMetadata current, Credentials auth, CheckoutOptions options, SyncMetrics metrics);
+
+  /**
+   * Fetches the branch of an existing checkout from its remote, without moving the checkout,
+   * so that the next update only has to fast-forward it.
+   */
+  void prefetch(File repoDir, String uri, String branchOrTag, Credentials auth, CheckoutOptions options, SyncMetrics metrics);
+
+  /**
+   * Asks a remote for the object id of a single ref, without fetching anything, to check
+   * that the remote can be reached and how up-to-date it is. Only the requested ref is
+   * advertised by remotes which speak protocol v2.
+   *
+   * @param refName the full name of the ref, for example {@code refs/heads/main}
+   * @return the object id, or null if the remote doesn't have the ref
+   * @throws GradleException if the remote can't be reached
+   */
+  String ping(String uri, String refName, Credentials auth);
 
   default boolean containsKey(
-      Map<String, CheckoutMetadata> checkoutMetadata,
-      String uri,
+      CheckoutMetadataStore checkoutMetadata,
       CheckoutMetadata current,
       long refreshIntervalMillis
   ) {
-    CheckoutMetadata old = checkoutMetadata.get(uri);
+    CheckoutMetadata old = checkoutMetadata.get(current);
 
     // Can happen when checking out forks.
     if (old == null) {
@@ -29,4 +47,12 @@ public interface GitClientStrategy {
 
     return sameRef && sameBranch && upToDate;
   }
+
+  /**
+   * The failure of a checkout of a commit which would have to be fetched while Git repositories are offline.
+   */
+  static GradleException commitUnavailableOffline(String rev, File repoDir) {
+    return new GradleException("Commit " + rev + " isn't available in " + repoDir
+        + " and Git repositories are offline. Run the build online once to fetch it.");
+  }
 }
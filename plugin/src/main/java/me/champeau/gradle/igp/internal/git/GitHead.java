@@ -0,0 +1,130 @@
+package me.champeau.gradle.igp.internal.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/**
+ * Reads the state of HEAD directly from the Git directory, which is much
+ * cheaper than opening a repository or starting a git process.
+ */
+public abstract class GitHead {
+  private static final String SYMBOLIC_REF_PREFIX = "ref: ";
+  private static final String GITDIR_PREFIX = "gitdir: ";
+  private static final int MIN_ABBREVIATED_LENGTH = 4;
+
+  /**
+   * Returns the Git directory of a checkout, following {@code .git} files
+   * which point to the actual Git directory.
+   *
+   * @param repoDir the checkout directory
+   * @return the Git directory
+   */
+  public static File gitDir(File repoDir) {
+    File dotGit = new File(repoDir, ".git");
+    if (dotGit.isFile()) {
+      String content = readFirstLine(dotGit);
+      if (content != null && content.startsWith(GITDIR_PREFIX)) {
+        File gitDir = new File(content.substring(GITDIR_PREFIX.length()));
+        return gitDir.isAbsolute() ? gitDir : new File(repoDir, gitDir.getPath());
+      }
+    }
+    return dotGit;
+  }
+
+  /**
+   * Returns the Git directory holding the refs and objects shared by all the
+   * worktrees of a repository, which is the Git directory itself unless it
+   * belongs to a linked worktree.
+   *
+   * @param gitDir the Git directory
+   * @return the common Git directory
+   */
+  public static File commonDir(File gitDir) {
+    String content = readFirstLine(new File(gitDir, "commondir"));
+    if (content == null || content.isEmpty()) {
+      return gitDir;
+    }
+    File commonDir = new File(content);
+    return commonDir.isAbsolute() ? commonDir : new File(gitDir, content);
+  }
+
+  /**
+   * Returns the full name of the branch HEAD points to.
+   *
+   * @param gitDir the Git directory
+   * @return the full branch name, or an empty string if HEAD is detached or can't be read
+   */
+  public static String currentBranch(File gitDir) {
+    String head = readFirstLine(new File(gitDir, "HEAD"));
+    if (head != null && head.startsWith(SYMBOLIC_REF_PREFIX)) {
+      return head.substring(SYMBOLIC_REF_PREFIX.length()).trim();
+    }
+    return "";
+  }
+
+  /**
+   * Tells if HEAD is detached at the given commit, which may be abbreviated.
+   *
+   * @param gitDir the Git directory
+   * @param rev the commit id
+   * @return true if HEAD is detached at this commit
+   */
+  public static boolean isDetachedAt(File gitDir, String rev) {
+    String commit = rev.toLowerCase(Locale.ROOT);
+    if (commit.length() < MIN_ABBREVIATED_LENGTH || !commit.chars().allMatch(c -> Character.digit(c, 16) >= 0)) {
+      return false;
+    }
+    String head = readFirstLine(new File(gitDir, "HEAD"));
+    return head != null && !head.startsWith(SYMBOLIC_REF_PREFIX) && head.startsWith(commit);
+  }
+
+  /**
+   * Resolves the commit HEAD points to, reading loose and packed refs, which
+   * are shared by all the worktrees of a repository.
+   *
+   * @param gitDir the Git directory
+   * @return the commit id, or an empty string if it can't be resolved
+   */
+  public static String resolveCommit(File gitDir) {
+    String head = readFirstLine(new File(gitDir, "HEAD"));
+    if (head == null) {
+      return "";
+    }
+    if (!head.startsWith(SYMBOLIC_REF_PREFIX)) {
+      return head;
+    }
+    String ref = head.substring(SYMBOLIC_REF_PREFIX.length()).trim();
+    File commonDir = commonDir(gitDir);
+    String loose = readFirstLine(new File(commonDir, ref));
+    if (loose != null && !loose.isEmpty()) {
+      return loose.startsWith(SYMBOLIC_REF_PREFIX) ? "" : loose;
+    }
+    try {
+      File packedRefs = new File(commonDir, "packed-refs");
+      if (packedRefs.exists()) {
+        for (String line : Files.readAllLines(packedRefs.toPath(), StandardCharsets.UTF_8)) {
+          if (line.endsWith(" " + ref)) {
+            return line.substring(0, line.indexOf(' '));
+          }
+        }
+      }
+    } catch (IOException e) {
+      return "";
+    }
+    return "";
+  }
+
+  private static String readFirstLine(File file) {
+    try {
+      byte[] bytes = Files.readAllBytes(file.toPath());
+      String content = new String(bytes, StandardCharsets.UTF_8);
+      int eol = content.indexOf('\n');
+      return (eol < 0 ? content : content.substring(0, eol)).trim();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package me.champeau.gradle.igp.internal.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.stream.Stream;
+
+/**
+ * Measures the object storage of a repository. Neither git nor jgit reliably report the
+ * number of bytes a fetch received, but both store the received pack, or the objects it
+ * contained, so the growth of the object storage is a close approximation.
+ */
+public abstract class ObjectStorage {
+
+  /**
+   * Returns the total size of the packs and loose objects of a repository.
+   *
+   * @param repository a checkout directory, or the directory of a bare repository
+   * @return the size in bytes, or 0 if the repository doesn't exist
+   */
+  public static long size(File repository) {
+    File objects = new File(repository, "objects");
+    if (!objects.isDirectory()) {
+      objects = new File(GitHead.commonDir(GitHead.gitDir(repository)), "objects");
+    }
+    if (!objects.isDirectory()) {
+      return 0;
+    }
+    try (Stream<Path> files = Files.walk(objects.toPath())) {
+      return files
+          .filter(path -> !path.getParent().getFileName().toString().equals("info"))
+          .mapToLong(ObjectStorage::fileSize)
+          .sum();
+    } catch (IOException | UncheckedIOException e) {
+      // files are removed concurrently by gc, for example
+      return 0;
+    }
+  }
+
+  private static long fileSize(Path path) {
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      return attributes.isRegularFile() ? attributes.size() : 0;
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+}
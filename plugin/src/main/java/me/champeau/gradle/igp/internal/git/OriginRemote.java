@@ -0,0 +1,55 @@
+package me.champeau.gradle.igp.internal.git;
+
+import java.io.File;
+import java.io.IOException;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.util.FS;
+
+/**
+ * Reads and changes the URL of the origin remote of a checkout, directly in its Git
+ * configuration, so that both Git clients fetch from the same remote afterwards. The
+ * URL of the origin remote of a bare repository can be read the same way.
+ */
+public abstract class OriginRemote {
+
+  /**
+   * Returns the URL of the origin remote of a checkout.
+   *
+   * @param repoDir the checkout directory, or the directory of a bare repository
+   * @return the URL, or an empty string if the repository has no origin remote
+   */
+  public static String url(File repoDir) throws IOException {
+    String url = load(repoDir).getString(ConfigConstants.CONFIG_REMOTE_SECTION, Constants.DEFAULT_REMOTE_NAME, ConfigConstants.CONFIG_KEY_URL);
+    return url == null ? "" : url;
+  }
+
+  /**
+   * Changes the URL of the origin remote of a checkout.
+   *
+   * @param repoDir the checkout directory
+   * @param uri the new URL
+   */
+  public static void setUrl(File repoDir, String uri) throws IOException {
+    FileBasedConfig config = load(repoDir);
+    config.setString(ConfigConstants.CONFIG_REMOTE_SECTION, Constants.DEFAULT_REMOTE_NAME, ConfigConstants.CONFIG_KEY_URL, uri);
+    config.save();
+  }
+
+  private static FileBasedConfig load(File repoDir) throws IOException {
+    File gitDir = GitHead.gitDir(repoDir);
+    if (!gitDir.exists() && new File(repoDir, Constants.HEAD).isFile()) {
+      // bare repository
+      gitDir = repoDir;
+    }
+    FileBasedConfig config = new FileBasedConfig(new File(GitHead.commonDir(gitDir), Constants.CONFIG), FS.DETECTED);
+    try {
+      config.load();
+    } catch (ConfigInvalidException e) {
+      throw new IOException("Invalid Git configuration in " + repoDir + ": " + e.getMessage(), e);
+    }
+    return config;
+  }
+}
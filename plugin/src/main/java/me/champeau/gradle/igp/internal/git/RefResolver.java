@@ -0,0 +1,177 @@
+package me.champeau.gradle.igp.internal.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves the branch or tag of a checkout with exact lookups of the names it can
+ * designate, instead of scanning all the refs of the repository, which is slow and
+ * ambiguous for repositories with many refs.
+ *
+ * The git CLI client caches the resolved refs per repository, for as long as the
+ * plugin class loader is reused by the daemon, which saves a git process per lookup.
+ * A cached ref is only used if neither the {@code packed-refs} file nor the loose
+ * files of the candidate refs changed since it was resolved.
+ */
+public class RefResolver {
+  private static final String REFS = "refs/";
+  private static final RefResolver SHARED = new RefResolver(4096);
+
+  private final int maxEntries;
+  private final Map<String, CachedRef> cache;
+
+  RefResolver(int maxEntries) {
+    this.maxEntries = maxEntries;
+    this.cache = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  public static RefResolver shared() {
+    return SHARED;
+  }
+
+  /**
+   * Returns the full names a branch or tag can designate, in order of precedence.
+   * Full names only designate themselves. Otherwise the precedence rules of git
+   * apply, followed by the remote tracking branch, since a checkout doesn't have
+   * local branches for the branches it only fetched.
+   *
+   * @param branchOrTag the short or full name of the branch or tag
+   * @return the candidate names, empty for an empty name
+   */
+  public static List<String> candidates(String branchOrTag) {
+    if (branchOrTag.isEmpty()) {
+      return List.of();
+    }
+    if (branchOrTag.startsWith(REFS)) {
+      return List.of(branchOrTag);
+    }
+    return List.of(
+        REFS + branchOrTag,
+        REFS + "tags/" + branchOrTag,
+        REFS + "heads/" + branchOrTag,
+        REFS + "remotes/" + branchOrTag,
+        REFS + "remotes/origin/" + branchOrTag);
+  }
+
+  /**
+   * Resolves a branch or tag, reusing the previous resolution if the refs didn't change.
+   *
+   * @param gitDir the git directory of the repository
+   * @param branchOrTag the short or full name of the branch or tag
+   * @param lookup finds the first existing ref among the candidates
+   * @return the resolved ref, or null if not found
+   */
+  public ResolvedRef resolve(File gitDir, String branchOrTag, Lookup lookup) throws IOException {
+    List<String> candidates = candidates(branchOrTag);
+    if (candidates.isEmpty()) {
+      return null;
+    }
+    File commonDir = GitHead.commonDir(gitDir);
+    if (new File(commonDir, "reftable").isDirectory()) {
+      // the files of a reftable don't tell which refs changed
+      return lookup.find(candidates);
+    }
+    String key = commonDir.getAbsolutePath() + "\n" + branchOrTag;
+    String stamp = stamp(commonDir, candidates);
+    synchronized (this) {
+      CachedRef cached = cache.get(key);
+      if (cached != null && cached.stamp.equals(stamp)) {
+        return cached.ref;
+      }
+    }
+    ResolvedRef ref = lookup.find(candidates);
+    if (ref != null) {
+      synchronized (this) {
+        cache.put(key, new CachedRef(ref, stamp));
+        if (cache.size() > maxEntries) {
+          cache.remove(cache.keySet().iterator().next());
+        }
+      }
+    }
+    return ref;
+  }
+
+  /**
+   * Identifies the state of the files which store the candidate refs: the loose ref
+   * files, which take precedence, and the packed-refs file. Refs are updated by
+   * renaming a lock file, so the file key, which is the inode on Unix, changes with
+   * every update.
+   */
+  private static String stamp(File commonDir, List<String> candidates) {
+    List<String> stamps = new ArrayList<>(candidates.size() + 1);
+    stamps.add(stamp(new File(commonDir, "packed-refs")));
+    for (String candidate : candidates) {
+      stamps.add(stamp(new File(commonDir, candidate)));
+    }
+    return String.join("|", stamps);
+  }
+
+  private static String stamp(File file) {
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+      return attributes.fileKey() + ":" + attributes.size() + ":" + attributes.lastModifiedTime().toMillis();
+    } catch (IOException e) {
+      return "";
+    }
+  }
+
+  /**
+   * Finds the first ref which exists among the candidates.
+   */
+  @FunctionalInterface
+  public interface Lookup {
+    ResolvedRef find(List<String> candidates) throws IOException;
+  }
+
+  /**
+   * A resolved branch or tag.
+   */
+  public static class ResolvedRef {
+    private final String name;
+    private final String objectId;
+    private final String commitId;
+
+    public ResolvedRef(String name, String objectId, String commitId) {
+      this.name = name;
+      this.objectId = objectId;
+      this.commitId = commitId;
+    }
+
+    /**
+     * Returns the full name of the ref.
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Returns the object the ref points to, which is a tag object for annotated tags.
+     */
+    public String getObjectId() {
+      return objectId;
+    }
+
+    /**
+     * Returns the commit the ref points to, peeling annotated tags.
+     */
+    public String getCommitId() {
+      return commitId;
+    }
+  }
+
+  private static class CachedRef {
+    private final ResolvedRef ref;
+    private final String stamp;
+
+    private CachedRef(ResolvedRef ref, String stamp) {
+      this.ref = ref;
+      this.stamp = stamp;
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package me.champeau.gradle.igp.internal.git;
+
+import java.util.Locale;
+import org.eclipse.jgit.lib.Constants;
+
+/**
+ * The refspecs used to only fetch the ref which is checked out, instead of all the
+ * branches and tags of a remote. Both clients fall back to fetching all branches if
+ * the narrow fetch fails, for example because a tag was configured as a branch, or
+ * because the server doesn't allow fetching commits by id.
+ */
+public abstract class RefSpecs {
+  public static final String ALL_BRANCHES = "+refs/heads/*:refs/remotes/origin/*";
+
+  private static final int COMMIT_ID_LENGTH = 40;
+
+  public static String branch(String branch) {
+    return "+refs/heads/" + branch + ":refs/remotes/origin/" + branch;
+  }
+
+  public static String tag(String tag) {
+    return "+refs/tags/" + tag + ":refs/tags/" + tag;
+  }
+
+  /**
+   * Returns the refspec which fetches only the requested ref.
+   *
+   * @param rev the commit, or an empty string
+   * @param branchOrTag the branch or tag, or an empty string for the default branch
+   * @param tag true if {@code branchOrTag} is a tag
+   * @return the refspec, or null if all branches must be fetched
+   */
+  public static String narrow(String rev, String branchOrTag, boolean tag) {
+    if (!rev.isEmpty()) {
+      // abbreviated commit ids can't be fetched
+      return isCommitId(rev) ? rev : null;
+    }
+    if (branchOrTag.isEmpty() || branchOrTag.startsWith("refs/")) {
+      return null;
+    }
+    return tag ? tag(branchOrTag) : branch(branchOrTag);
+  }
+
+  /**
+   * Tells if a ref designates a single branch, which the remote can be configured to track.
+   *
+   * @param rev the commit, or an empty string
+   * @param branchOrTag the branch or tag, or an empty string for the default branch
+   * @param tag true if {@code branchOrTag} is a tag
+   * @return true for a single branch
+   */
+  public static boolean isSingleBranch(String rev, String branchOrTag, boolean tag) {
+    return rev.isEmpty() && !tag && narrow(rev, branchOrTag, false) != null;
+  }
+
+  /**
+   * Returns the ref which is compared between remotes, to tell if they are up-to-date.
+   *
+   * @param branchOrTag the branch or tag, or an empty string for the default branch
+   * @param tag true if {@code branchOrTag} is a tag
+   * @return the full name of the ref
+   */
+  public static String probedRef(String branchOrTag, boolean tag) {
+    if (branchOrTag.isEmpty()) {
+      return Constants.HEAD;
+    }
+    if (branchOrTag.startsWith("refs/")) {
+      return branchOrTag;
+    }
+    return (tag ? Constants.R_TAGS : Constants.R_HEADS) + branchOrTag;
+  }
+
+  public static boolean isCommitId(String rev) {
+    return rev.length() == COMMIT_ID_LENGTH
+        && rev.toLowerCase(Locale.ROOT).chars().allMatch(c -> Character.digit(c, 16) >= 0);
+  }
+}
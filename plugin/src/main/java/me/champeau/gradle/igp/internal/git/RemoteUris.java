@@ -0,0 +1,109 @@
+package me.champeau.gradle.igp.internal.git;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Utilities to compare remote URIs regardless of the protocol used to
+ * access them, so that {@code git@host:org/repo.git} and
+ * {@code https://host/org/repo} are considered the same repository.
+ */
+public abstract class RemoteUris {
+  private static final Pattern SCHEME = Pattern.compile("^[a-zA-Z][a-zA-Z0-9+.-]*://");
+  private static final Pattern SCP_LIKE = Pattern.compile("^(?:[^@/]+@)?([^:/]+):(?!//)(.*)$");
+
+  /**
+   * Normalizes a remote URI by removing the scheme, user information, port,
+   * trailing slashes and the {@code .git} suffix. Host names are lower-cased.
+   *
+   * @param uri the remote URI
+   * @return the normalized URI
+   */
+  public static String normalize(String uri) {
+    String result = uri.trim().replace('\\', '/');
+    Matcher scheme = SCHEME.matcher(result);
+    if (scheme.find()) {
+      result = result.substring(scheme.end());
+      if (result.startsWith("/")) {
+        // file:///path
+        return stripSuffix(result);
+      }
+      int slash = result.indexOf('/');
+      String authority = slash < 0 ? result : result.substring(0, slash);
+      String path = slash < 0 ? "" : result.substring(slash);
+      int at = authority.lastIndexOf('@');
+      if (at >= 0) {
+        authority = authority.substring(at + 1);
+      }
+      int colon = authority.indexOf(':');
+      if (colon >= 0) {
+        authority = authority.substring(0, colon);
+      }
+      return stripSuffix(authority.toLowerCase(Locale.ROOT) + path);
+    }
+    Matcher scp = SCP_LIKE.matcher(result);
+    if (scp.matches() && scp.group(1).length() > 1) {
+      String path = scp.group(2);
+      return stripSuffix(scp.group(1).toLowerCase(Locale.ROOT) + (path.startsWith("/") ? "" : "/") + path);
+    }
+    return stripSuffix(result);
+  }
+
+  /**
+   * Returns a file system friendly key for the remote, made of the repository
+   * name and a hash of the normalized URI.
+   *
+   * @param uri the remote URI
+   * @return the key
+   */
+  public static String key(String uri) {
+    String normalized = normalize(uri);
+    String name = normalized.substring(normalized.lastIndexOf('/') + 1).replaceAll("[^a-zA-Z0-9._-]", "_");
+    return name + "-" + sha1(normalized).substring(0, 16);
+  }
+
+  /**
+   * Returns the host of a remote, or {@code localhost} for a repository of the local file system.
+   *
+   * @param uri the remote URI
+   * @return the lower-cased host name
+   */
+  public static String host(String uri) {
+    String normalized = normalize(uri);
+    int slash = normalized.indexOf('/');
+    if (slash <= 0 || normalized.substring(0, slash).endsWith(":")) {
+      // absolute path, or Windows drive
+      return "localhost";
+    }
+    return normalized.substring(0, slash);
+  }
+
+  private static String stripSuffix(String uri) {
+    String result = uri;
+    while (result.endsWith("/")) {
+      result = result.substring(0, result.length() - 1);
+    }
+    if (result.endsWith(".git")) {
+      result = result.substring(0, result.length() - 4);
+    }
+    return result;
+  }
+
+  private static String sha1(String value) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      byte[] hash = digest.digest(value.getBytes(StandardCharsets.UTF_8));
+      StringBuilder sb = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        sb.append(String.format("%02x", b));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
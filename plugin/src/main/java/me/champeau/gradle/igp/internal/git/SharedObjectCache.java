@@ -0,0 +1,84 @@
+package me.champeau.gradle.igp.internal.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import me.champeau.gradle.igp.internal.FileLocks;
+import org.slf4j.Logger;
+
+/**
+ * A cache of bare repositories, one per normalized remote URI, which is
+ * shared by all checkouts on the machine. Checkouts reference the objects
+ * of the cache through Git alternates, so that a clone only needs to
+ * download the objects which are missing from the cache.
+ *
+ * Objects are never pruned from the cache, since checkouts depend on them:
+ * the cache repositories are created with automatic garbage collection
+ * disabled, so that the objects which become unreachable, for example after
+ * a force push, aren't pruned by the fetches which update the cache.
+ */
+public class SharedObjectCache {
+  public static final List<String> CACHE_REFSPECS = List.of(
+      "+refs/heads/*:refs/heads/*",
+      "+refs/tags/*:refs/tags/*"
+  );
+  /**
+   * The configuration of the repositories whose objects are borrowed by other
+   * repositories through alternates, which disables automatic garbage collection
+   * and the pruning of unreachable objects.
+   */
+  public static final Map<String, String> NO_GC_CONFIG = Map.of(
+      "gc.auto", "0",
+      "gc.pruneExpire", "never"
+  );
+  private static final String LOCK_FILE_NAME = "includegit.lock";
+
+  private final File rootDir;
+
+  public SharedObjectCache(File rootDir) {
+    this.rootDir = rootDir;
+  }
+
+  /**
+   * Returns the bare repository caching the objects of the given remote.
+   * The repository may not exist yet.
+   *
+   * @param uri the remote URI
+   * @return the cache repository directory
+   */
+  public File repositoryFor(String uri) {
+    return new File(rootDir, RemoteUris.key(uri) + ".git");
+  }
+
+  /**
+   * Acquires the lock which must be held while the cache repository of
+   * the given remote is updated. The lock is shared by all builds using
+   * the same cache, including builds running in other processes. The lock file
+   * lives in the cache repository, which is therefore created if it doesn't exist.
+   *
+   * @param uri the remote URI
+   * @param logger the logger
+   * @return the lock, which must be closed to be released
+   */
+  public FileLocks.Handle lock(String uri, Logger logger) {
+    File repository = repositoryFor(uri);
+    return FileLocks.lock(new File(repository, LOCK_FILE_NAME), "shared object cache " + repository, logger);
+  }
+
+  /**
+   * Configures the repository found in the Git directory to use the
+   * objects of the cache repository as alternates.
+   *
+   * @param gitDir the .git directory of the checkout
+   * @param cacheRepository the cache repository
+   */
+  public static void writeAlternates(File gitDir, File cacheRepository) throws IOException {
+    File info = new File(gitDir, "objects/info");
+    Files.createDirectories(info.toPath());
+    String objects = new File(cacheRepository, "objects").getAbsolutePath().replace('\\', '/');
+    Files.write(new File(info, "alternates").toPath(), (objects + "\n").getBytes(StandardCharsets.UTF_8));
+  }
+}
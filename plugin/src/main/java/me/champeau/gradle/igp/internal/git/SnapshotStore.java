@@ -0,0 +1,230 @@
+package me.champeau.gradle.igp.internal.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileStore;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import me.champeau.gradle.igp.internal.FileLocks;
+import org.slf4j.Logger;
+
+/**
+ * Immutable snapshots of the trees of pinned commits, one per remote and commit, which
+ * are shared by all builds using the same Gradle user home. A snapshot is populated once,
+ * then the checkouts of its commit are made of hard links to its files, or of copies if
+ * the file system doesn't support hard links, instead of checking out the commit again.
+ *
+ * A snapshot is published by renaming the directory it was populated in, so that a
+ * snapshot which exists is always complete. Its files are read-only, since checkouts
+ * share them. On file systems with DOS attributes, such as NTFS, the read-only attribute
+ * is shared by hard links, so checkouts are always copies there, which are writable.
+ */
+public class SnapshotStore {
+  public static final String MARKER_FILE_NAME = ".includegit-snapshot";
+  private static final String LOCK_FILE_NAME = "includegit.lock";
+
+  private final File rootDir;
+
+  public SnapshotStore(File rootDir) {
+    this.rootDir = rootDir;
+  }
+
+  /**
+   * Tells if a commit can be snapshotted, which requires a full commit id, since
+   * abbreviated ids can designate other commits as the repository grows.
+   *
+   * @param rev the commit, or an empty string
+   * @return true if the commit can be snapshotted
+   */
+  public static boolean canSnapshot(String rev) {
+    return RefSpecs.isCommitId(rev);
+  }
+
+  /**
+   * Returns the snapshot of a commit. The snapshot may not exist yet.
+   *
+   * @param uri the remote URI
+   * @param commit the full commit id
+   * @return the snapshot directory
+   */
+  public File snapshotFor(String uri, String commit) {
+    return new File(new File(rootDir, RemoteUris.key(uri)), commit);
+  }
+
+  /**
+   * Returns the snapshot of a commit, populating it first if it doesn't exist.
+   *
+   * @param uri the remote URI
+   * @param commit the full commit id
+   * @param logger the logger
+   * @param checkout checks out the commit in a directory which doesn't exist yet
+   * @return the snapshot directory
+   */
+  public File populate(String uri, String commit, Logger logger, Checkout checkout) throws IOException {
+    File snapshot = snapshotFor(uri, commit);
+    if (snapshot.isDirectory()) {
+      return snapshot;
+    }
+    File remoteDir = snapshot.getParentFile();
+    try (FileLocks.Handle ignored = FileLocks.lock(new File(remoteDir, LOCK_FILE_NAME), "snapshots " + remoteDir, logger)) {
+      if (snapshot.isDirectory()) {
+        return snapshot;
+      }
+      File work = new File(remoteDir, commit + ".tmp");
+      delete(work);
+      logger.info("Populating snapshot {} of {}", snapshot, uri);
+      checkout.checkout(work);
+      delete(new File(work, ".git"));
+      try (Stream<Path> files = Files.walk(work.toPath())) {
+        files.filter(file -> Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)).forEach(file -> file.toFile().setWritable(false, false));
+      }
+      Files.move(work.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Makes a checkout of a snapshot, by hard linking its files into the checkout
+   * directory, or copying them, then records the commit the checkout was made from.
+   *
+   * @param snapshot the snapshot
+   * @param repoDir the checkout directory
+   * @param uri the remote URI
+   * @param commit the full commit id
+   */
+  public static void link(File snapshot, File repoDir, String uri, String commit) throws IOException {
+    Path source = snapshot.toPath();
+    Path target = repoDir.toPath();
+    boolean dosAttributes = hasDosAttributes(source);
+    Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+      private boolean hardLinks = !dosAttributes;
+
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        Files.createDirectories(target.resolve(source.relativize(dir)));
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Path copy = target.resolve(source.relativize(file));
+        Files.deleteIfExists(copy);
+        if (hardLinks && attrs.isRegularFile()) {
+          try {
+            Files.createLink(copy, file);
+            return FileVisitResult.CONTINUE;
+          } catch (IOException | UnsupportedOperationException e) {
+            // for example because the checkout is on another file system
+            hardLinks = false;
+          }
+        }
+        Files.copy(file, copy, LinkOption.NOFOLLOW_LINKS);
+        if (attrs.isRegularFile()) {
+          // only the snapshot is read-only
+          copy.toFile().setWritable(true);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    Files.write(new File(repoDir, MARKER_FILE_NAME).toPath(),
+        (uri + "\n" + commit + "\n").getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Returns the commit of the snapshot a checkout was made from.
+   *
+   * @param repoDir the checkout directory
+   * @return the full commit id, or null if the checkout wasn't made from a snapshot
+   */
+  public static String linkedCommit(File repoDir) {
+    List<String> marker = readMarker(repoDir);
+    return marker.size() == 2 ? marker.get(1) : null;
+  }
+
+  /**
+   * Returns the commit of the snapshot a checkout was made from, if the snapshot
+   * belongs to the given remote.
+   *
+   * @param repoDir the checkout directory
+   * @param uri the remote URI
+   * @return the full commit id, or null if the checkout wasn't made from a snapshot of the remote
+   */
+  public static String linkedCommit(File repoDir, String uri) {
+    List<String> marker = readMarker(repoDir);
+    if (marker.size() == 2 && RemoteUris.normalize(marker.get(0)).equals(RemoteUris.normalize(uri))) {
+      return marker.get(1);
+    }
+    return null;
+  }
+
+  private static List<String> readMarker(File repoDir) {
+    File marker = new File(repoDir, MARKER_FILE_NAME);
+    if (!marker.isFile()) {
+      return List.of();
+    }
+    try {
+      return Files.readAllLines(marker.toPath(), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      return List.of();
+    }
+  }
+
+  /**
+   * Deletes a directory recursively. With POSIX permissions, the read-only files of a
+   * checkout linked to a snapshot can be deleted without touching their permissions,
+   * which they share with the snapshot. With DOS attributes, where read-only files can't
+   * be deleted, the read-only attribute is cleared first, which is safe since checkouts
+   * are copies there.
+   *
+   * @param dir the directory
+   */
+  public static void delete(File dir) throws IOException {
+    if (!dir.exists()) {
+      return;
+    }
+    try (Stream<Path> files = Files.walk(dir.toPath())) {
+      for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        try {
+          Files.delete(file);
+        } catch (AccessDeniedException e) {
+          DosFileAttributeView dos = Files.getFileAttributeView(file, DosFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+          if (dos == null || !hasDosAttributes(file)) {
+            throw e;
+          }
+          dos.setReadOnly(false);
+          Files.delete(file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Tells if a file is on a file system with DOS attributes and without POSIX permissions,
+   * where the read-only attribute is shared by hard links and prevents deleting files.
+   */
+  private static boolean hasDosAttributes(Path path) throws IOException {
+    FileStore store = Files.getFileStore(path);
+    return store.supportsFileAttributeView(DosFileAttributeView.class)
+        && !store.supportsFileAttributeView(PosixFileAttributeView.class);
+  }
+
+  /**
+   * Checks out a commit in a directory which doesn't exist yet.
+   */
+  @FunctionalInterface
+  public interface Checkout {
+    void checkout(File dir) throws IOException;
+  }
+}
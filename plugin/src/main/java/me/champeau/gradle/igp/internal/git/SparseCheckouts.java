@@ -0,0 +1,139 @@
+package me.champeau.gradle.igp.internal.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * Utilities to deal with cone mode sparse checkouts, where the checked out files
+ * are all the files of the root directory, all the files of the directories in
+ * the cone, and the files found directly in the parent directories of the cone.
+ */
+public abstract class SparseCheckouts {
+
+  /**
+   * Normalizes a list of directories relative to the root of a repository.
+   * Nested directories are removed, since their parent is already part of
+   * the cone. If one of the directories is the root directory, an empty list
+   * is returned, meaning that the whole tree must be checked out.
+   *
+   * @param directories the directories
+   * @return the normalized directories, sorted
+   */
+  public static List<String> normalize(Collection<String> directories) {
+    Set<String> result = new TreeSet<>();
+    for (String directory : directories) {
+      String dir = directory.replace('\\', '/');
+      while (dir.startsWith("./")) {
+        dir = dir.substring(2);
+      }
+      while (dir.startsWith("/")) {
+        dir = dir.substring(1);
+      }
+      while (dir.endsWith("/")) {
+        dir = dir.substring(0, dir.length() - 1);
+      }
+      if (dir.isEmpty() || ".".equals(dir)) {
+        return Collections.emptyList();
+      }
+      result.add(dir);
+    }
+    return result.stream()
+        .filter(dir -> result.stream().noneMatch(other -> dir.startsWith(other + "/")))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Tells if a file belongs to the cone defined by the directories.
+   *
+   * @param path the path of the file, relative to the root of the repository
+   * @param directories the normalized directories of the cone
+   * @return true if the file must be checked out
+   */
+  public static boolean isInCone(String path, List<String> directories) {
+    if (directories.isEmpty()) {
+      return true;
+    }
+    int lastSlash = path.lastIndexOf('/');
+    if (lastSlash < 0) {
+      return true;
+    }
+    String parent = path.substring(0, lastSlash);
+    for (String directory : directories) {
+      if (path.startsWith(directory + "/") || directory.equals(parent) || directory.startsWith(parent + "/")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Generates the contents of the {@code info/sparse-checkout} file, using the
+   * same format as {@code git sparse-checkout set --cone}.
+   *
+   * @param directories the normalized directories of the cone
+   * @return the patterns
+   */
+  public static String toConePatterns(List<String> directories) {
+    Set<String> parents = new TreeSet<>();
+    for (String directory : directories) {
+      int idx = directory.indexOf('/');
+      while (idx > 0) {
+        parents.add(directory.substring(0, idx));
+        idx = directory.indexOf('/', idx + 1);
+      }
+    }
+    StringBuilder sb = new StringBuilder("/*\n!/*/\n");
+    for (String parent : parents) {
+      sb.append('/').append(parent).append("/\n");
+      sb.append("!/").append(parent).append("/*/\n");
+    }
+    for (String directory : directories) {
+      sb.append('/').append(directory).append("/\n");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Reads the directories of the cone from the {@code info/sparse-checkout} file.
+   *
+   * @param gitDir the .git directory
+   * @return the normalized directories, or an empty list if the checkout isn't sparse
+   */
+  public static List<String> readConeDirectories(File gitDir) {
+    File file = sparseCheckoutFile(gitDir);
+    if (!file.exists()) {
+      return Collections.emptyList();
+    }
+    try {
+      Set<String> positives = new LinkedHashSet<>();
+      Set<String> parents = new LinkedHashSet<>();
+      for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+        String pattern = line.trim();
+        if (pattern.startsWith("!/") && pattern.endsWith("/*/") && pattern.length() > 5) {
+          parents.add(pattern.substring(2, pattern.length() - 3));
+        } else if (pattern.startsWith("/") && pattern.endsWith("/") && pattern.length() > 2) {
+          positives.add(pattern.substring(1, pattern.length() - 1));
+        }
+      }
+      List<String> directories = new ArrayList<>(positives);
+      directories.removeAll(parents);
+      return normalize(directories);
+    } catch (IOException e) {
+      return Collections.emptyList();
+    }
+  }
+
+  public static File sparseCheckoutFile(File gitDir) {
+    return new File(gitDir, "info/sparse-checkout");
+  }
+}
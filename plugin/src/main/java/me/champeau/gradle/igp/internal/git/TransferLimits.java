@@ -0,0 +1,47 @@
+package me.champeau.gradle.igp.internal.git;
+
+/**
+ * Limits on the transfers made by the Git clients, which are enforced by the
+ * {@link TransferThrottle} shared by the builds running in the same Gradle daemon.
+ */
+public class TransferLimits {
+  public static final TransferLimits NONE = new TransferLimits(0, 0, 0);
+
+  private final int maxConcurrentTransfers;
+  private final int maxConcurrentTransfersPerHost;
+  private final long maxBytesPerSecond;
+
+  /**
+   * Creates transfer limits. A limit of 0 means unlimited.
+   *
+   * @param maxConcurrentTransfers the maximum number of concurrent transfers
+   * @param maxConcurrentTransfersPerHost the maximum number of concurrent transfers to the same host
+   * @param maxBytesPerSecond the maximum number of bytes received per second, by all transfers
+   */
+  public TransferLimits(int maxConcurrentTransfers, int maxConcurrentTransfersPerHost, long maxBytesPerSecond) {
+    this.maxConcurrentTransfers = maxConcurrentTransfers;
+    this.maxConcurrentTransfersPerHost = maxConcurrentTransfersPerHost;
+    this.maxBytesPerSecond = maxBytesPerSecond;
+  }
+
+  public int getMaxConcurrentTransfers() {
+    return maxConcurrentTransfers;
+  }
+
+  public int getMaxConcurrentTransfersPerHost() {
+    return maxConcurrentTransfersPerHost;
+  }
+
+  public long getMaxBytesPerSecond() {
+    return maxBytesPerSecond;
+  }
+
+  public boolean isBandwidthLimited() {
+    return maxBytesPerSecond > 0;
+  }
+
+  boolean allows(int transfers, int hostTransfers) {
+    return (maxConcurrentTransfers <= 0 || transfers < maxConcurrentTransfers)
+        && (maxConcurrentTransfersPerHost <= 0 || hostTransfers < maxConcurrentTransfersPerHost);
+  }
+}
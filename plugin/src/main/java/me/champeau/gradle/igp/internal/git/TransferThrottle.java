@@ -0,0 +1,115 @@
+package me.champeau.gradle.igp.internal.git;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.gradle.api.GradleException;
+import org.slf4j.Logger;
+
+/**
+ * Throttles the transfers of the Git clients of all the builds which run in the same
+ * Gradle daemon, as long as the plugin class loader is reused, so that concurrent builds
+ * don't open more connections to a Git server than allowed.
+ *
+ * A transfer waits until both the number of running transfers and the number of running
+ * transfers to its host are below the {@link TransferLimits limits} it was started with.
+ * The bandwidth is shared by all the transfers which are paced: each block of bytes they
+ * receive reserves its share of time on a common timeline.
+ */
+public class TransferThrottle {
+  private static final TransferThrottle SHARED = new TransferThrottle();
+  private static final Permit NESTED = () -> {
+  };
+
+  private final ThreadLocal<Boolean> holdsPermit = new ThreadLocal<>();
+  private final Map<String, Integer> transfersByHost = new HashMap<>();
+  private int transfers;
+  private long nextReadNanos;
+
+  TransferThrottle() {
+  }
+
+  public static TransferThrottle shared() {
+    return SHARED;
+  }
+
+  /**
+   * Waits until a transfer from a remote is allowed. A thread which already holds a
+   * permit gets another one immediately, so that nested transfers can't deadlock.
+   *
+   * @param uri the remote URI
+   * @param limits the limits of the transfer
+   * @param logger the logger
+   * @return the permit, which must be closed once the transfer is done
+   */
+  public Permit acquire(String uri, TransferLimits limits, Logger logger) {
+    if (holdsPermit.get() != null) {
+      return NESTED;
+    }
+    String host = RemoteUris.host(uri);
+    synchronized (this) {
+      boolean waiting = false;
+      while (!limits.allows(transfers, transfersByHost.getOrDefault(host, 0))) {
+        if (!waiting) {
+          logger.info("Waiting for a transfer slot to {}", host);
+          waiting = true;
+        }
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new GradleException("Interrupted while waiting for a transfer slot to " + host, e);
+        }
+      }
+      transfers++;
+      transfersByHost.merge(host, 1, Integer::sum);
+    }
+    holdsPermit.set(Boolean.TRUE);
+    return () -> release(host);
+  }
+
+  private void release(String host) {
+    holdsPermit.remove();
+    synchronized (this) {
+      transfers--;
+      transfersByHost.computeIfPresent(host, (key, count) -> count == 1 ? null : count - 1);
+      notifyAll();
+    }
+  }
+
+  /**
+   * Records that bytes were received, and sleeps as long as needed to keep all the
+   * paced transfers under the given bandwidth.
+   *
+   * @param bytes the number of bytes received
+   * @param maxBytesPerSecond the bandwidth
+   */
+  public void pace(int bytes, long maxBytesPerSecond) {
+    if (bytes <= 0 || maxBytesPerSecond <= 0) {
+      return;
+    }
+    long now = System.nanoTime();
+    long start;
+    synchronized (this) {
+      start = Math.max(now, nextReadNanos);
+      nextReadNanos = start + TimeUnit.SECONDS.toNanos(bytes) / maxBytesPerSecond;
+    }
+    long delayNanos = start - now;
+    if (delayNanos > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(delayNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Allows a transfer to run until it's closed.
+   */
+  @FunctionalInterface
+  public interface Permit extends AutoCloseable {
+    @Override
+    void close();
+  }
+}
@@ -0,0 +1,64 @@
+package me.champeau.gradle.igp.internal.git;
+
+import java.io.File;
+import java.util.List;
+import me.champeau.gradle.igp.internal.FileLocks;
+import org.slf4j.Logger;
+
+/**
+ * The bare repositories used in worktree mode, one per normalized remote URI,
+ * which live in the checkouts directory. Each included repository gets a
+ * worktree of the repository of its remote, in a directory which depends on
+ * the checked out ref, so that all the refs of a remote share the same objects
+ * and that switching between refs reuses the existing worktrees.
+ */
+public class WorktreeStore {
+  public static final String DIRECTORY_NAME = ".repositories";
+  public static final List<String> STORE_REFSPECS = SharedObjectCache.CACHE_REFSPECS;
+  private static final String LOCK_FILE_NAME = "includegit.lock";
+
+  private final File rootDir;
+
+  public WorktreeStore(File rootDir) {
+    this.rootDir = rootDir;
+  }
+
+  /**
+   * Returns the bare repository storing the objects of the given remote.
+   * The repository may not exist yet.
+   *
+   * @param uri the remote URI
+   * @return the repository directory
+   */
+  public File repositoryFor(String uri) {
+    return new File(rootDir, RemoteUris.key(uri) + ".git");
+  }
+
+  /**
+   * Acquires the lock which must be held while the repository of the given
+   * remote is updated, or while worktrees are added to it. The lock file lives in
+   * the repository directory, which is therefore created if it doesn't exist.
+   *
+   * @param uri the remote URI
+   * @param logger the logger
+   * @return the lock, which must be closed to be released
+   */
+  public FileLocks.Handle lock(String uri, Logger logger) {
+    File repository = repositoryFor(uri);
+    return FileLocks.lock(new File(repository, LOCK_FILE_NAME), "worktree store " + repository, logger);
+  }
+
+  /**
+   * Returns the directory of the worktree of a ref, which is a sub-directory
+   * of the checkout directory of the included repository.
+   *
+   * @param checkoutDirectory the checkout directory of the included repository
+   * @param rev the commit, or an empty string
+   * @param branchOrTag the branch or tag, or an empty string for the default branch
+   * @return the worktree directory
+   */
+  public static File worktreeDirectory(File checkoutDirectory, String rev, String branchOrTag) {
+    String ref = !rev.isEmpty() ? rev : !branchOrTag.isEmpty() ? branchOrTag : "HEAD";
+    return new File(checkoutDirectory, ref.replaceAll("[^a-zA-Z0-9._-]", "_"));
+  }
+}
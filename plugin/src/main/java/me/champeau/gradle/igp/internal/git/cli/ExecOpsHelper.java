@@ -1,24 +1,45 @@
 package me.champeau.gradle.igp.internal.git.cli;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import org.gradle.api.Action;
-import org.gradle.api.provider.Provider;
-import org.gradle.api.provider.ProviderFactory;
-import org.gradle.process.ExecOutput;
+import org.gradle.process.ExecOperations;
+import org.gradle.process.ExecResult;
 import org.gradle.process.ExecSpec;
 
+/**
+ * Runs git commands with the {@link ExecOperations} of the build. Outside of a build, for example
+ * when prefetching in the background after the build finished, the commands are run with a
+ * {@link ProcessBuilder} instead: the actions configuring the exec spec can't be applied then,
+ * which is fine since the git client only uses them to ignore the exit value, which is
+ * checked on the result.
+ *
+ * Every command is a separate git process. Long-lived sessions, such as {@code git cat-file --batch},
+ * aren't used: {@link ExecOperations#exec} only returns once the process exited, and the background
+ * prefetch, which is the only user of the {@link ProcessBuilder} path, only runs fetches. The client
+ * keeps the number of processes low instead, by reading the refs it needs with a single
+ * {@code git for-each-ref} (see {@link GitRefs}) and the current branch and commit from the Git directory.
+ */
 class ExecOpsHelper {
 
   static class Result {
-    Provider<String> stdOut;
-    Provider<String> stdErr;
+    Supplier<String> stdOut;
+    Supplier<String> stdErr;
     File workingDir;
     int exitCode;
 
-    Result(Provider<String> stdOut, Provider<String> stdErr, File workingDir, int exitCode) {
+    Result(Supplier<String> stdOut, Supplier<String> stdErr, File workingDir, int exitCode) {
       this.stdOut = stdOut;
       this.stdErr = stdErr;
       this.workingDir = workingDir;
@@ -36,10 +57,13 @@ class ExecOpsHelper {
     }
   }
 
-  private final ProviderFactory providers;
+  private final ExecOperations execOperations;
 
-  ExecOpsHelper(ProviderFactory providers) {
-    this.providers = providers;
+  /**
+   * @param execOperations the exec operations of the build, or null to run the commands with a {@link ProcessBuilder}
+   */
+  ExecOpsHelper(@Nullable ExecOperations execOperations) {
+    this.execOperations = execOperations;
   }
 
   Result exec(@Nonnull Iterable<String> command) {
@@ -55,10 +79,21 @@ class ExecOpsHelper {
   }
 
   Result exec(@Nullable File workingDir, @Nonnull Iterable<String> command, @Nullable Action<ExecSpec> action) {
+    if (execOperations == null) {
+      Result result = run(workingDir, command);
+      if (action == null) {
+        result.assertNormalExitValue();
+      }
+      return result;
+    }
     AtomicReference<File> theWorkingDir = new AtomicReference<>();
+    ByteArrayOutputStream stdOut = new ByteArrayOutputStream();
+    ByteArrayOutputStream stdErr = new ByteArrayOutputStream();
 
-    ExecOutput result = providers.exec(spec -> {
+    ExecResult result = execOperations.exec(spec -> {
       spec.commandLine(command);
+      spec.setStandardOutput(stdOut);
+      spec.setErrorOutput(stdErr);
 
       if (workingDir != null) {
         spec.workingDir(workingDir);
@@ -71,10 +106,46 @@ class ExecOpsHelper {
     });
 
     return new Result(
-        result.getStandardOutput().getAsText(),
-        result.getStandardError().getAsText(),
+        () -> new String(stdOut.toByteArray(), StandardCharsets.UTF_8),
+        () -> new String(stdErr.toByteArray(), StandardCharsets.UTF_8),
         theWorkingDir.get(),
-        result.getResult().get().getExitValue()
+        result.getExitValue()
     );
   }
+
+  private static Result run(@Nullable File workingDir, @Nonnull Iterable<String> command) {
+    List<String> commandLine = new ArrayList<>();
+    command.forEach(commandLine::add);
+    ProcessBuilder builder = new ProcessBuilder(commandLine);
+    if (workingDir != null) {
+      builder.directory(workingDir);
+    }
+    try {
+      Process process = builder.start();
+      process.getOutputStream().close();
+      CompletableFuture<byte[]> stdErr = CompletableFuture.supplyAsync(() -> readAll(process.getErrorStream()));
+      byte[] stdOut = readAll(process.getInputStream());
+      int exitCode = process.waitFor();
+      byte[] errors = stdErr.join();
+      return new Result(
+          () -> new String(stdOut, StandardCharsets.UTF_8),
+          () -> new String(errors, StandardCharsets.UTF_8),
+          workingDir != null ? workingDir : new File(System.getProperty("user.dir")),
+          exitCode
+      );
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to run " + String.join(" ", commandLine), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while running " + String.join(" ", commandLine), e);
+    }
+  }
+
+  private static byte[] readAll(InputStream in) {
+    try (InputStream stream = in) {
+      return stream.readAllBytes();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
 }
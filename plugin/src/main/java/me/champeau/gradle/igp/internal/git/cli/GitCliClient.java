@@ -1,15 +1,33 @@
 package me.champeau.gradle.igp.internal.git.cli;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import me.champeau.gradle.igp.internal.CheckoutMetadata;
+import me.champeau.gradle.igp.internal.CheckoutMetadataStore;
+import me.champeau.gradle.igp.internal.FileLocks;
+import me.champeau.gradle.igp.internal.SyncMetrics;
+import me.champeau.gradle.igp.internal.git.CheckoutOptions;
 import me.champeau.gradle.igp.internal.git.GitClientStrategy;
+import me.champeau.gradle.igp.internal.git.GitHead;
+import me.champeau.gradle.igp.internal.git.ObjectStorage;
+import me.champeau.gradle.igp.internal.git.OriginRemote;
+import me.champeau.gradle.igp.internal.git.RefResolver.ResolvedRef;
+import me.champeau.gradle.igp.internal.git.RefSpecs;
+import me.champeau.gradle.igp.internal.git.SharedObjectCache;
+import me.champeau.gradle.igp.internal.git.SparseCheckouts;
+import me.champeau.gradle.igp.internal.git.TransferLimits;
+import me.champeau.gradle.igp.internal.git.TransferThrottle;
+import me.champeau.gradle.igp.internal.git.WorktreeStore;
 import me.champeau.gradle.igp.internal.git.cli.ExecOpsHelper.Result;
-import me.champeau.gradle.igp.internal.git.jgit.DefaultAuthentication;
+import me.champeau.gradle.igp.internal.git.jgit.Credentials;
+import javax.annotation.Nullable;
 import org.gradle.api.Action;
 import org.gradle.api.GradleException;
-import org.gradle.api.provider.ProviderFactory;
+import org.gradle.process.ExecOperations;
 import org.gradle.process.ExecSpec;
 import org.slf4j.Logger;
 
@@ -19,20 +37,38 @@ public class GitCliClient implements GitClientStrategy {
   private final String git = "git";
   private final ExecOpsHelper ops;
   private final Action<ExecSpec> ignoreExitValue = spec -> spec.setIgnoreExitValue(true);
-  private final Map<String, CheckoutMetadata> checkoutMetadata;
+  private final CheckoutMetadataStore checkoutMetadata;
   private final long refreshIntervalMillis;
+  private final boolean offline;
+  private final SharedObjectCache objectCache;
+  private final WorktreeStore worktrees;
+  private final TransferLimits limits;
+  private final TransferThrottle throttle;
 
-  public GitCliClient(Logger logger, ProviderFactory providers, Map<String, CheckoutMetadata> checkoutMetadata,
-      long refreshIntervalMillis) {
+  /**
+   * Creates a client which runs git with the given exec operations, or with a
+   * {@link ProcessBuilder} if they are null, for example outside of a build.
+   */
+  public GitCliClient(Logger logger, @Nullable ExecOperations execOperations, CheckoutMetadataStore checkoutMetadata,
+      long refreshIntervalMillis, boolean offline, SharedObjectCache objectCache, WorktreeStore worktrees,
+      TransferLimits limits, TransferThrottle throttle) {
 
     this.logger = logger;
-    this.ops = new ExecOpsHelper(providers);
+    this.ops = new ExecOpsHelper(execOperations);
     this.checkoutMetadata = checkoutMetadata;
     this.refreshIntervalMillis = refreshIntervalMillis;
+    this.offline = offline;
+    this.objectCache = objectCache;
+    this.worktrees = worktrees;
+    this.limits = limits;
+    this.throttle = throttle;
+    if (limits.isBandwidthLimited()) {
+      logger.warn("Limiting the bandwidth of transfers is unsupported by the git CLI client, and is therefore ignored.");
+    }
   }
 
   public void cloneRepository(File repoDir, String uri, String rev, String branchOrTag, CheckoutMetadata current,
-      DefaultAuthentication auth) {
+      Credentials auth, CheckoutOptions options, SyncMetrics metrics) {
 
     checkAuth(auth);
 
@@ -43,80 +79,545 @@ public class GitCliClient implements GitClientStrategy {
     // a non-empty directory, which is often the case because Gradle will add a `.gradle/file-system.probe` file
     // very quickly. `git init` (etc) doesn't suffer this same limitation.
     try {
+      if (worktrees != null) {
+        addWorktree(repoDir, uri, rev, branchOrTag, options, metrics);
+        return;
+      }
       repoDir.mkdirs();
 
       ops.exec(repoDir, List.of(git, "init"), ignoreExitValue).assertNormalExitValue();
-      ops.exec(repoDir, List.of(git, "remote", "add", "origin", uri), ignoreExitValue).assertNormalExitValue();
-      ops.exec(repoDir, List.of(git, "fetch"), ignoreExitValue).assertNormalExitValue();
+      if (objectCache != null) {
+        // the fetch below only downloads the objects which are missing from the shared cache
+        SharedObjectCache.writeAlternates(new File(repoDir, ".git"), updateObjectCache(uri, metrics));
+      }
+      // only the requested branch, tag or commit is fetched, unless the server refuses it
+      String refSpec = RefSpecs.narrow(rev, branchOrTag, options.isTag());
+      boolean singleBranch = RefSpecs.isSingleBranch(rev, branchOrTag, options.isTag());
+      List<String> remoteAdd = new ArrayList<>(List.of(git, "remote", "add"));
+      if (singleBranch) {
+        // the remote only tracks the requested branch, so pulls don't fetch the other branches either
+        remoteAdd.addAll(List.of("-t", branchOrTag));
+      }
+      remoteAdd.addAll(List.of("origin", uri));
+      ops.exec(repoDir, remoteAdd, ignoreExitValue).assertNormalExitValue();
+      if (options.isPartial()) {
+        ops.exec(repoDir, List.of(git, "config", "remote.origin.promisor", "true"), ignoreExitValue).assertNormalExitValue();
+        ops.exec(repoDir, List.of(git, "config", "remote.origin.partialclonefilter", options.getFilter()), ignoreExitValue).assertNormalExitValue();
+      }
+      Result fetched = fetch(repoDir, options, options.isShallow(), singleBranch ? null : refSpec, metrics);
+      if (!fetched.isSuccess()) {
+        if (refSpec == null) {
+          fetched.assertNormalExitValue();
+        }
+        logger.info("Unable to fetch {} only, fetching all branches: {}", refSpec, fetched.stdErr.get());
+        fetchAllBranches(repoDir, options, options.isShallow(), metrics).assertNormalExitValue();
+      }
+      if (options.isSparse()) {
+        configureSparseCheckout(repoDir, options);
+      }
+      if (!rev.isEmpty() && !(fetched.isSuccess() && rev.equals(refSpec))) {
+        ensureCommitAvailable(repoDir, GitHead.gitDir(repoDir), rev, options, metrics);
+      }
       ops.exec(repoDir, List.of(git, "checkout", getRev(rev, branchOrTag)), ignoreExitValue).assertNormalExitValue();
     } catch (Exception e) {
       throw new GradleException("Unable to clone repository contents: " + e.getMessage(), e);
     } finally {
-      checkoutMetadata.put(uri, current);
+      checkoutMetadata.update(current, GitHead.resolveCommit(GitHead.gitDir(repoDir)), true);
     }
   }
 
   public void updateRepository(File repoDir, String uri, String rev, String branchOrTag, CheckoutMetadata current,
-      DefaultAuthentication auth) {
+      Credentials auth, CheckoutOptions options, SyncMetrics metrics) {
 
     checkAuth(auth);
 
-    if (containsKey(checkoutMetadata, uri, current, refreshIntervalMillis)) {
+    File gitDir = GitHead.gitDir(repoDir);
+    List<String> sparseDirectories = SparseCheckouts.readConeDirectories(gitDir);
+    boolean sameSparseDirectories = sparseDirectories.equals(options.getSparseDirectories());
+    if (sameSparseDirectories && GitHead.isDetachedAt(gitDir, rev)) {
+      // pinned commits never change, so there's no need to look at the remote
+      logger.info("{} is already checked out at commit {}", repoDir, rev);
+      checkoutMetadata.update(current, GitHead.resolveCommit(gitDir), false);
+      return;
+    }
+    if (sameSparseDirectories && containsKey(checkoutMetadata, current, refreshIntervalMillis)) {
       return;
     }
 
+    boolean fetched = false;
     try {
-      Result result = ops.exec(repoDir, List.of(git, "symbolic-ref", "HEAD"), ignoreExitValue);
-      result.assertNormalExitValue();
+      if (!sameSparseDirectories) {
+        configureSparseCheckout(repoDir, options);
+      }
+      if (worktrees != null) {
+        fetched = updateWorktree(repoDir, uri, rev, branchOrTag, options, metrics);
+        return;
+      }
 
-      String fullBranch = result.stdOut.get();
-      if (fullBranch.startsWith("refs/heads/")) {
-        logger.info("Pulling from {}", uri);
-        ops.exec(repoDir, List.of(git, "pull"), ignoreExitValue).assertNormalExitValue();
+      String fullBranch = GitHead.currentBranch(gitDir);
+      if (offline) {
+        logger.info("Git repositories are offline, not pulling from {}", uri);
+      } else if (fullBranch.startsWith("refs/heads/")) {
+        String remoteId = null;
+        if (rev.isEmpty()
+            && sameSparseDirectories
+            && (branchOrTag.isEmpty() || fullBranch.equals("refs/heads/" + branchOrTag))) {
+          remoteId = probeRemote(repoDir, fullBranch, metrics);
+          if (GitHead.resolveCommit(gitDir).equals(remoteId)) {
+            logger.info("{} is up-to-date with {}", repoDir, uri);
+            return;
+          }
+        }
+        if (remoteId != null && fastForwardToUpstream(repoDir, remoteId)) {
+          logger.info("Fast-forwarded {} to the prefetched commit {}", repoDir, remoteId);
+        } else {
+          logger.info("Pulling from {}", uri);
+          fetched = true;
+          transfer(uri, repoDir, List.of(git, "pull"), metrics).assertNormalExitValue();
+        }
       }
 
-      logger.info("Checking out ref {} of {}", rev, uri);
       if (!rev.isEmpty()) {
+        logger.info("Checking out ref {} of {}", rev, uri);
+        ensureCommitAvailable(repoDir, gitDir, rev, options, metrics);
         ops.exec(repoDir, List.of(git, "checkout", rev), ignoreExitValue).assertNormalExitValue();
-      } else {
-        String resolve = branchOrTag;
-
-        Result revParseResult = ops.exec(repoDir, List.of(git, "rev-parse", "--verify", resolve), ignoreExitValue);
-
-        if (!revParseResult.isSuccess()) {
-          Result showRefResult = ops.exec(repoDir, List.of(git, "show-ref", "--branches", "--tags"), ignoreExitValue);
-          showRefResult.assertNormalExitValue();
-          // If we find `branchOrTag` in the list of all fully-qualified refs, use that, otherwise null and throw below
-          resolve = showRefResult.stdOut.get().lines()
-              .filter(line -> line.endsWith(branchOrTag))
-              .findFirst()
-              .orElse(null);
+      } else if (!branchOrTag.isEmpty() && !fullBranch.equals("refs/heads/" + branchOrTag)) {
+        ResolvedRef resolve = GitRefs.resolve(ops, repoDir, branchOrTag);
+        if (resolve == null && offline) {
+          logger.warn("Branch or tag {} of {} isn't available locally and Git repositories are offline, using the current checkout of {}", branchOrTag, uri, repoDir);
+          return;
         }
-
-        if (resolve != null) {
-          ops.exec(repoDir, List.of(git, "checkout", resolve), ignoreExitValue).assertNormalExitValue();
-        } else {
+        if (resolve == null) {
+          // the checkout may only have fetched the ref it was created for
+          fetched = true;
+          fetchRef(repoDir, gitDir, branchOrTag, options, metrics);
+          resolve = GitRefs.resolve(ops, repoDir, branchOrTag);
+        }
+        if (resolve == null) {
           throw new GradleException("Branch or tag " + branchOrTag + " not found");
         }
+        if (resolve.getName().startsWith("refs/tags/") && fullBranch.isEmpty()
+            && resolve.getCommitId().equals(GitHead.resolveCommit(gitDir))) {
+          logger.info("{} is already checked out at {}", repoDir, resolve.getName());
+        } else {
+          logger.info("Checking out ref {} of {}", resolve.getName(), uri);
+          ops.exec(repoDir, List.of(git, "checkout", checkoutName(resolve.getName())), ignoreExitValue).assertNormalExitValue();
+        }
       }
     } catch (Exception e) {
       throw new GradleException("Unable to update repository contents: " + e.getMessage(), e);
     } finally {
-      checkoutMetadata.put(uri, current);
+      if (!offline) {
+        // an offline build doesn't postpone the next update
+        checkoutMetadata.update(current, GitHead.resolveCommit(gitDir), fetched);
+      }
+    }
+  }
+
+  public String ping(String uri, String refName, Credentials auth) {
+    checkAuth(auth);
+    Result remote;
+    try (TransferThrottle.Permit ignored = throttle.acquire(uri, limits, logger)) {
+      remote = ops.exec(List.of(git, "ls-remote", uri, refName), ignoreExitValue);
+    }
+    if (!remote.isSuccess()) {
+      throw new GradleException("Unable to reach " + uri + ": " + remote.stdErr.get().trim());
+    }
+    return objectIdOf(remote, refName);
+  }
+
+  public void prefetch(File repoDir, String uri, String branchOrTag, Credentials auth, CheckoutOptions options,
+      SyncMetrics metrics) {
+    try {
+      if (worktrees != null) {
+        try (FileLocks.Handle ignored = worktrees.lock(uri, logger)) {
+          updateWorktreeStore(worktrees.repositoryFor(uri), uri, branchOrTag, options, metrics);
+        }
+      } else {
+        // like a pull, which doesn't deepen a shallow checkout
+        fetch(repoDir, options, false, null, metrics).assertNormalExitValue();
+      }
+    } catch (Exception e) {
+      throw new GradleException("Unable to prefetch repository contents: " + e.getMessage(), e);
     }
   }
 
+  /**
+   * Makes sure that the requested commit is available, by fetching it directly, or if
+   * that isn't possible, for example because the commit id is abbreviated, by unshallowing
+   * a shallow repository or fetching all branches.
+   */
+  private void ensureCommitAvailable(File repoDir, File gitDir, String rev, CheckoutOptions options, SyncMetrics metrics) {
+    if (ops.exec(repoDir, List.of(git, "cat-file", "-e", rev + "^{commit}"), ignoreExitValue).isSuccess()) {
+      return;
+    }
+    if (offline) {
+      throw GitClientStrategy.commitUnavailableOffline(rev, repoDir);
+    }
+    boolean shallow = new File(GitHead.commonDir(gitDir), "shallow").exists();
+    if (RefSpecs.isCommitId(rev)) {
+      logger.info("Commit {} isn't available locally, fetching it", rev);
+      Result result = fetch(repoDir, options, shallow && options.isShallow(), rev, metrics);
+      if (result.isSuccess()) {
+        return;
+      }
+      logger.info("Unable to fetch commit {} directly: {}", rev, result.stdErr.get());
+    }
+    if (shallow) {
+      logger.info("Commit {} isn't part of the shallow history, unshallowing repository", rev);
+      transfer(originUrl(repoDir), repoDir, List.of(git, "fetch", "--unshallow"), metrics).assertNormalExitValue();
+    } else {
+      logger.info("Commit {} isn't available locally, fetching all branches", rev);
+      fetchAllBranches(repoDir, options, false, metrics).assertNormalExitValue();
+    }
+  }
+
+  /**
+   * Fetches a branch or tag which isn't known locally. Branches are added to the
+   * branches tracked by the remote once they have been fetched.
+   */
+  private void fetchRef(File repoDir, File gitDir, String branchOrTag, CheckoutOptions options, SyncMetrics metrics) {
+    boolean shallow = options.isShallow() && new File(GitHead.commonDir(gitDir), "shallow").exists();
+    String refSpec = RefSpecs.narrow("", branchOrTag, options.isTag());
+    if (refSpec != null) {
+      logger.info("Fetching {}", branchOrTag);
+      Result result = fetch(repoDir, options, shallow, refSpec, metrics);
+      if (result.isSuccess()) {
+        if (!options.isTag()) {
+          // pulls update the branch from now on
+          ops.exec(repoDir, List.of(git, "remote", "set-branches", "--add", "origin", branchOrTag), ignoreExitValue).assertNormalExitValue();
+        }
+        return;
+      }
+      logger.info("Unable to fetch {} only, fetching all branches: {}", branchOrTag, result.stdErr.get());
+    }
+    fetchAllBranches(repoDir, options, shallow, metrics).assertNormalExitValue();
+  }
+
+  /**
+   * Fetches from origin.
+   *
+   * @param shallow whether to fetch with the depth of the checkout
+   * @param refSpec the refspec to fetch, or null to fetch the refspecs of the remote
+   */
+  private Result fetch(File repoDir, CheckoutOptions options, boolean shallow, String refSpec, SyncMetrics metrics) {
+    List<String> fetch = new ArrayList<>(List.of(git, "fetch"));
+    if (shallow) {
+      fetch.add("--depth=" + options.getDepth());
+    }
+    if (options.isPartial()) {
+      fetch.add("--filter=" + options.getFilter());
+    }
+    fetch.add("origin");
+    if (refSpec != null) {
+      fetch.add(refSpec);
+    }
+    return transfer(originUrl(repoDir), repoDir, fetch, metrics);
+  }
+
+  /**
+   * Runs a git command which fetches from a remote, once the transfer limits allow it, and
+   * records the objects it received, as reported by git, and the growth of the object storage
+   * of the repository.
+   */
+  private Result transfer(String uri, File dir, List<String> command, SyncMetrics metrics) {
+    List<String> withProgress = new ArrayList<>(command);
+    // git only reports progress to a terminal, unless asked to
+    withProgress.add(2, "--progress");
+    long size = ObjectStorage.size(dir);
+    Result result;
+    try (TransferThrottle.Permit ignored = throttle.acquire(uri, limits, logger)) {
+      result = ops.exec(dir, withProgress, ignoreExitValue);
+    }
+    if (result.isSuccess()) {
+      metrics.fetched(TransferProgress.objects(result.stdErr.get()), Math.max(0, ObjectStorage.size(dir) - size));
+    }
+    return result;
+  }
+
+  /**
+   * Makes the remote of a checkout track all branches again, then fetches them.
+   * Bare repositories, like the worktree stores, track all branches already.
+   */
+  private Result fetchAllBranches(File repoDir, CheckoutOptions options, boolean shallow, SyncMetrics metrics) {
+    if (new File(repoDir, ".git").exists()) {
+      ops.exec(repoDir, List.of(git, "remote", "set-branches", "origin", "*"), ignoreExitValue).assertNormalExitValue();
+    }
+    return fetch(repoDir, options, shallow, null, metrics);
+  }
+
+  /**
+   * Probes the remote for a ref with {@code git ls-remote}, and tells if it still
+   * points to the given local object, in which case there's nothing to fetch.
+   */
+  private boolean isUpToDateWithRemote(File repoDir, String remoteRef, String localId, SyncMetrics metrics) {
+    String remoteId = probeRemote(repoDir, remoteRef, metrics);
+    return remoteId != null && remoteId.equals(localId);
+  }
+
+  /**
+   * Asks the remote for the object a ref points to, with {@code git ls-remote}.
+   *
+   * @return the object id, or null if the ref doesn't exist or the remote can't be reached
+   */
+  private String probeRemote(File repoDir, String remoteRef, SyncMetrics metrics) {
+    metrics.probed();
+    Result remote;
+    try (TransferThrottle.Permit ignored = throttle.acquire(originUrl(repoDir), limits, logger)) {
+      remote = ops.exec(repoDir, List.of(git, "ls-remote", "origin", remoteRef), ignoreExitValue);
+    }
+    if (!remote.isSuccess()) {
+      logger.info("Unable to probe the remote state of {}: {}", remoteRef, remote.stdErr.get());
+      return null;
+    }
+    return objectIdOf(remote, remoteRef);
+  }
+
+  /**
+   * Reads the object id of a ref in the output of {@code git ls-remote}, which
+   * also lists the refs whose name only ends with the requested one.
+   */
+  private static String objectIdOf(Result lsRemote, String refName) {
+    return lsRemote.stdOut.get().lines()
+        .map(line -> line.split("\t"))
+        .filter(parts -> parts.length == 2 && parts[1].equals(refName))
+        .map(parts -> parts[0])
+        .findFirst()
+        .orElse(null);
+  }
+
+  /**
+   * Fast-forwards the current branch to its upstream branch if the upstream branch
+   * already points to the commit of the remote, for example because it was prefetched,
+   * which doesn't require fetching again.
+   *
+   * @return true if the branch was fast-forwarded
+   */
+  private boolean fastForwardToUpstream(File repoDir, String remoteId) {
+    Result upstream = ops.exec(repoDir, List.of(git, "rev-parse", "--verify", "-q", "@{upstream}"), ignoreExitValue);
+    if (!upstream.isSuccess() || !upstream.stdOut.get().trim().equals(remoteId)) {
+      return false;
+    }
+    return ops.exec(repoDir, List.of(git, "merge", "--ff-only", "-q", "@{upstream}"), ignoreExitValue).isSuccess();
+  }
+
+  /**
+   * Adds a detached worktree for the requested ref to the repository of the remote,
+   * which is created or updated first. Worktrees are detached because a branch can
+   * only be checked out by a single worktree.
+   */
+  private void addWorktree(File repoDir, String uri, String rev, String branchOrTag, CheckoutOptions options,
+      SyncMetrics metrics)
+      throws Exception {
+    File store = worktrees.repositoryFor(uri);
+    try (FileLocks.Handle ignored = worktrees.lock(uri, logger)) {
+      updateWorktreeStore(store, uri, branchOrTag, options, metrics);
+      if (!rev.isEmpty()) {
+        ensureCommitAvailable(store, store, rev, options, metrics);
+      }
+      // forget about the worktrees which were deleted
+      ops.exec(store, List.of(git, "worktree", "prune"), ignoreExitValue).assertNormalExitValue();
+      logger.info("Adding worktree {} to {}", repoDir, store);
+      List<String> add = new ArrayList<>(List.of(git, "worktree", "add", "--detach"));
+      if (options.isSparse()) {
+        add.add("--no-checkout");
+      }
+      add.add(repoDir.getAbsolutePath());
+      add.add(rev.isEmpty() ? resolveStoreRef(store, branchOrTag).getName() : rev);
+      ops.exec(store, add, ignoreExitValue).assertNormalExitValue();
+    }
+    if (options.isSparse()) {
+      configureSparseCheckout(repoDir, options);
+      ops.exec(repoDir, List.of(git, "read-tree", "-mu", "HEAD"), ignoreExitValue).assertNormalExitValue();
+    }
+  }
+
+  /**
+   * Moves a worktree to the requested ref, after updating the repository of the remote
+   * if the ref changed on the remote, unless Git repositories are offline.
+   *
+   * @return true if the remote was fetched from
+   */
+  private boolean updateWorktree(File repoDir, String uri, String rev, String branchOrTag, CheckoutOptions options,
+      SyncMetrics metrics)
+      throws Exception {
+    if (new File(repoDir, ".git").isDirectory()) {
+      throw new GradleException(repoDir + " isn't a worktree, it was probably checked out by the jgit client. Delete it to check it out again.");
+    }
+    File store = worktrees.repositoryFor(uri);
+    boolean fetched = false;
+    String ref;
+    String target;
+    try (FileLocks.Handle ignored = worktrees.lock(uri, logger)) {
+      boolean upToDate;
+      if (offline) {
+        // whatever the store contains is checked out
+        upToDate = true;
+      } else if (!rev.isEmpty()) {
+        upToDate = ops.exec(store, List.of(git, "cat-file", "-e", rev + "^{commit}"), ignoreExitValue).isSuccess();
+      } else if (branchOrTag.isEmpty()) {
+        upToDate = isUpToDateWithRemote(store, "HEAD", GitHead.resolveCommit(store), metrics);
+      } else {
+        ResolvedRef remoteRef = GitRefs.resolve(ops, store, branchOrTag);
+        upToDate = remoteRef != null && isUpToDateWithRemote(store, remoteRef.getName(), remoteRef.getObjectId(), metrics);
+      }
+      if (!upToDate) {
+        fetched = true;
+        updateWorktreeStore(store, uri, branchOrTag, options, metrics);
+      }
+      if (rev.isEmpty()) {
+        ResolvedRef resolved = resolveStoreRef(store, branchOrTag);
+        ref = resolved.getName();
+        target = resolved.getCommitId();
+      } else {
+        ensureCommitAvailable(store, store, rev, options, metrics);
+        ref = rev;
+        target = null;
+      }
+    }
+    File gitDir = GitHead.gitDir(repoDir);
+    if (target == null ? GitHead.isDetachedAt(gitDir, rev) : target.equals(GitHead.resolveCommit(gitDir))) {
+      logger.info("{} is up-to-date with {}", repoDir, uri);
+    } else {
+      logger.info("Checking out ref {} of {}", ref, uri);
+      ops.exec(repoDir, List.of(git, "checkout", "--detach", ref), ignoreExitValue).assertNormalExitValue();
+    }
+    return fetched;
+  }
+
+  /**
+   * Creates the bare repository of a remote if needed, then fetches all its branches and tags.
+   * Shallow fetches are only performed if the repository is shallow already, since a shallow
+   * fetch would otherwise truncate the history the other worktrees may depend on.
+   */
+  private void updateWorktreeStore(File store, String uri, String branchOrTag, CheckoutOptions options,
+      SyncMetrics metrics)
+      throws Exception {
+    boolean created = false;
+    if (!new File(store, "HEAD").exists()) {
+      created = true;
+      store.mkdirs();
+      ops.exec(store, List.of(git, "init", "--bare"), ignoreExitValue).assertNormalExitValue();
+      if (objectCache != null) {
+        SharedObjectCache.writeAlternates(store, updateObjectCache(uri, metrics));
+      }
+      ops.exec(store, List.of(git, "remote", "add", "origin", uri), ignoreExitValue).assertNormalExitValue();
+      ops.exec(store, List.of(git, "config", "--unset-all", "remote.origin.fetch"), ignoreExitValue).assertNormalExitValue();
+      for (String refSpec : WorktreeStore.STORE_REFSPECS) {
+        ops.exec(store, List.of(git, "config", "--add", "remote.origin.fetch", refSpec), ignoreExitValue).assertNormalExitValue();
+      }
+      if (options.isPartial()) {
+        ops.exec(store, List.of(git, "config", "remote.origin.promisor", "true"), ignoreExitValue).assertNormalExitValue();
+        ops.exec(store, List.of(git, "config", "remote.origin.partialclonefilter", options.getFilter()), ignoreExitValue).assertNormalExitValue();
+      }
+    }
+    logger.info("Updating worktree store {} from {}", store, uri);
+    List<String> fetch = new ArrayList<>(List.of(git, "fetch"));
+    if (options.isShallow() && (created || new File(store, "shallow").exists())) {
+      fetch.add("--depth=" + options.getDepth());
+    }
+    if (options.isPartial()) {
+      fetch.add("--filter=" + options.getFilter());
+    }
+    fetch.add("origin");
+    transfer(uri, store, fetch, metrics).assertNormalExitValue();
+    if (branchOrTag.isEmpty()) {
+      // HEAD of the bare repository tracks the default branch of the remote
+      metrics.probed();
+      Result symref;
+      try (TransferThrottle.Permit ignored = throttle.acquire(uri, limits, logger)) {
+        symref = ops.exec(store, List.of(git, "ls-remote", "--symref", "origin", "HEAD"), ignoreExitValue);
+      }
+      symref.assertNormalExitValue();
+      String defaultBranch = symref.stdOut.get().lines()
+          .filter(line -> line.startsWith("ref: ") && line.endsWith("\tHEAD"))
+          .map(line -> line.substring("ref: ".length(), line.indexOf('\t')))
+          .findFirst()
+          .orElseThrow(() -> new GradleException("Unable to determine the default branch of " + uri));
+      ops.exec(store, List.of(git, "symbolic-ref", "HEAD", defaultBranch), ignoreExitValue).assertNormalExitValue();
+    }
+  }
+
+  /**
+   * Resolves the ref of the repository of a remote which a worktree checks out,
+   * which is the default branch of the remote if no branch or tag is requested.
+   */
+  private ResolvedRef resolveStoreRef(File store, String branchOrTag) throws IOException {
+    ResolvedRef ref = GitRefs.resolve(ops, store, branchOrTag.isEmpty() ? GitHead.currentBranch(store) : branchOrTag);
+    if (ref == null) {
+      throw new GradleException("Branch or tag " + branchOrTag + " not found");
+    }
+    return ref;
+  }
+
+  /**
+   * Returns the name to pass to {@code git checkout} for a ref. Branches are checked out
+   * by their short name, so that HEAD points to the branch instead of being detached, and
+   * remote branches by their short name too, so that a local tracking branch is created.
+   */
+  private static String checkoutName(String ref) {
+    if (ref.startsWith("refs/heads/")) {
+      return ref.substring("refs/heads/".length());
+    }
+    if (ref.startsWith("refs/remotes/origin/")) {
+      return ref.substring("refs/remotes/origin/".length());
+    }
+    return ref;
+  }
+
+  /**
+   * Configures the cone of a sparse checkout, or disables sparse checkout if there
+   * are no sparse directories. The working tree is updated accordingly.
+   */
+  private void configureSparseCheckout(File repoDir, CheckoutOptions options) throws Exception {
+    if (options.isSparse()) {
+      List<String> command = new ArrayList<>(List.of(git, "sparse-checkout", "set", "--cone"));
+      command.addAll(options.getSparseDirectories());
+      ops.exec(repoDir, command, ignoreExitValue).assertNormalExitValue();
+    } else {
+      logger.info("Disabling sparse checkout in {}", repoDir);
+      ops.exec(repoDir, List.of(git, "sparse-checkout", "disable"), ignoreExitValue).assertNormalExitValue();
+      // git keeps the patterns file, which is how sparse checkouts are detected
+      Files.deleteIfExists(SparseCheckouts.sparseCheckoutFile(GitHead.gitDir(repoDir)).toPath());
+    }
+  }
+
+  private File updateObjectCache(String uri, SyncMetrics metrics) {
+    File cacheRepository = objectCache.repositoryFor(uri);
+    try (FileLocks.Handle ignored = objectCache.lock(uri, logger)) {
+      if (!new File(cacheRepository, "HEAD").exists()) {
+        ops.exec(cacheRepository, List.of(git, "init", "--bare"), ignoreExitValue).assertNormalExitValue();
+        for (Map.Entry<String, String> entry : SharedObjectCache.NO_GC_CONFIG.entrySet()) {
+          ops.exec(cacheRepository, List.of(git, "config", entry.getKey(), entry.getValue()), ignoreExitValue).assertNormalExitValue();
+        }
+      }
+      logger.info("Updating shared object cache {} from {}", cacheRepository, uri);
+      List<String> fetch = new ArrayList<>(List.of(git, "fetch", uri));
+      fetch.addAll(SharedObjectCache.CACHE_REFSPECS);
+      transfer(uri, cacheRepository, fetch, metrics).assertNormalExitValue();
+    }
+    return cacheRepository;
+  }
+
   /**
    * {@link GitCliClient} uses authentication provided by the user environment. Setting custom authentication via the
    * DSL is unsupported in this case, so we warn users.
    */
-  private void checkAuth(DefaultAuthentication auth) {
+  private void checkAuth(Credentials auth) {
     if (auth.isUserConfigured()) {
       logger.warn(
           "Custom authentication via the authentication DSL is incompatible with use of the git CLI client, and is therefore ignored.");
     }
   }
 
+  private static String originUrl(File dir) {
+    try {
+      return OriginRemote.url(dir);
+    } catch (IOException e) {
+      return "";
+    }
+  }
+
   private String getRev(String rev, String branchOrTag) {
     if (!rev.isEmpty()) {
       return rev;
@@ -0,0 +1,119 @@
+package me.champeau.gradle.igp.internal.git.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import me.champeau.gradle.igp.internal.git.GitHead;
+import me.champeau.gradle.igp.internal.git.RefResolver;
+
+/**
+ * A snapshot of refs of a repository, read with a single {@code git for-each-ref}
+ * invocation, which answers the queries which would otherwise need a {@code git rev-parse}
+ * or {@code git show-ref} process each. Only the refs a branch or tag can designate are
+ * read, so that the cost doesn't depend on the number of refs of the repository.
+ */
+class GitRefs {
+  static final String FORMAT = "--format=%(refname) %(objectname) %(*objectname)";
+
+  private final Map<String, String> objectIds = new LinkedHashMap<>();
+  private final Map<String, String> commitIds = new LinkedHashMap<>();
+
+  private GitRefs() {
+  }
+
+  /**
+   * Reads the refs with the given names. The names are patterns of {@code git for-each-ref},
+   * which also match the refs they are a directory of, and never match refs by suffix.
+   *
+   * @param ops the exec operations
+   * @param repoDir the checkout directory, or the directory of a bare repository
+   * @param names the full names of the refs
+   * @return the refs
+   */
+  static GitRefs read(ExecOpsHelper ops, File repoDir, List<String> names) {
+    if (names.isEmpty()) {
+      return new GitRefs();
+    }
+    List<String> command = new ArrayList<>(List.of("git", "for-each-ref", FORMAT));
+    command.addAll(names);
+    ExecOpsHelper.Result result = ops.exec(repoDir, command, spec -> spec.setIgnoreExitValue(true));
+    result.assertNormalExitValue();
+    return parse(result.stdOut.get());
+  }
+
+  /**
+   * Resolves a branch or tag, reading only the refs it can designate, unless the ref it
+   * resolved to previously didn't change.
+   *
+   * @param ops the exec operations
+   * @param repoDir the checkout directory, or the directory of a bare repository
+   * @param branchOrTag the short or full name of the branch or tag
+   * @return the resolved ref, or null if not found
+   */
+  static RefResolver.ResolvedRef resolve(ExecOpsHelper ops, File repoDir, String branchOrTag) throws IOException {
+    // the worktree stores are bare repositories
+    File gitDir = new File(repoDir, "HEAD").isFile() ? repoDir : GitHead.gitDir(repoDir);
+    return RefResolver.shared().resolve(gitDir, branchOrTag, candidates -> {
+      GitRefs refs = read(ops, repoDir, candidates);
+      String name = refs.find(branchOrTag);
+      return name == null ? null : new RefResolver.ResolvedRef(name, refs.objectId(name), refs.commitId(name));
+    });
+  }
+
+  /**
+   * Parses the output of {@code git for-each-ref} with the format used by {@link #read}.
+   *
+   * @param output the output
+   * @return the refs
+   */
+  static GitRefs parse(String output) {
+    GitRefs refs = new GitRefs();
+    output.lines().forEach(line -> {
+      String[] parts = line.trim().split(" ");
+      if (parts.length >= 2) {
+        refs.objectIds.put(parts[0], parts[1]);
+        // annotated tags are peeled to the commit they point to
+        refs.commitIds.put(parts[0], parts.length > 2 ? parts[2] : parts[1]);
+      }
+    });
+    return refs;
+  }
+
+  /**
+   * Finds the full name of a branch or tag, using the precedence rules of {@link RefResolver#candidates}.
+   *
+   * @param branchOrTag the short or full name of the branch or tag
+   * @return the full ref name, or null if not found
+   */
+  String find(String branchOrTag) {
+    for (String candidate : RefResolver.candidates(branchOrTag)) {
+      if (objectIds.containsKey(candidate)) {
+        return candidate;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the object a ref points to, which is a tag object for annotated tags.
+   *
+   * @param ref the full ref name
+   * @return the object id, or null if the ref doesn't exist
+   */
+  String objectId(String ref) {
+    return objectIds.get(ref);
+  }
+
+  /**
+   * Returns the commit a ref points to, peeling annotated tags.
+   *
+   * @param ref the full ref name
+   * @return the commit id, or null if the ref doesn't exist
+   */
+  String commitId(String ref) {
+    return commitIds.get(ref);
+  }
+}
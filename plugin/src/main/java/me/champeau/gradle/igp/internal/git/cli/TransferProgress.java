@@ -0,0 +1,30 @@
+package me.champeau.gradle.igp.internal.git.cli;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts the number of objects a fetch received from the progress messages git prints
+ * on the standard error output. The server reports the number of objects it sends in the
+ * pack, and git reports the objects it received or unpacked when this takes long enough.
+ */
+class TransferProgress {
+  private static final Pattern TOTAL = Pattern.compile("remote: Total (\\d+)");
+  private static final Pattern RECEIVED = Pattern.compile("(?:Receiving|Unpacking) objects: 100% \\((\\d+)/\\d+\\)[^\\r\\n]*done\\.");
+
+  private TransferProgress() {
+  }
+
+  static long objects(String stdErr) {
+    long total = sum(TOTAL.matcher(stdErr));
+    return total > 0 ? total : sum(RECEIVED.matcher(stdErr));
+  }
+
+  private static long sum(Matcher matcher) {
+    long sum = 0;
+    while (matcher.find()) {
+      sum += Long.parseLong(matcher.group(1));
+    }
+    return sum;
+  }
+}
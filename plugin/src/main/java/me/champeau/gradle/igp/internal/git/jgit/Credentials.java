@@ -0,0 +1,92 @@
+package me.champeau.gradle.igp.internal.git.jgit;
+
+import java.io.Serializable;
+import java.util.Objects;
+import me.champeau.gradle.igp.SshBackend;
+
+/**
+ * The authentication of an included repository, as configured in the DSL when the
+ * repository was declared. Unlike {@link DefaultAuthentication}, it doesn't hold
+ * Gradle properties, so that it can be used outside of the configuration of the build.
+ * It is never stored by the configuration cache, since it holds secrets.
+ */
+public class Credentials implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  public static final Credentials NONE = new Credentials(Kind.NONE, null, null, null, SshBackend.JSCH);
+
+  enum Kind {
+    NONE,
+    BASIC,
+    SSH_PASSWORD,
+    SSH_PUBLIC_KEY
+  }
+
+  private final Kind kind;
+  private final String username;
+  private final String password;
+  private final String privateKey;
+  private final SshBackend sshBackend;
+
+  Credentials(Kind kind, String username, String password, String privateKey, SshBackend sshBackend) {
+    this.kind = kind;
+    this.username = username;
+    this.password = password;
+    this.privateKey = privateKey;
+    this.sshBackend = sshBackend;
+  }
+
+  Kind getKind() {
+    return kind;
+  }
+
+  String getUsername() {
+    return username;
+  }
+
+  String getPassword() {
+    return password;
+  }
+
+  /**
+   * The path of the private key, or null to use the default identities.
+   */
+  String getPrivateKey() {
+    return privateKey;
+  }
+
+  SshBackend getSshBackend() {
+    return sshBackend;
+  }
+
+  /**
+   * If {@link me.champeau.gradle.igp.internal.git.cli.GitCliClient} is being used, then authentication is handled
+   * by configuring the user environment, and user-configured authentication by the DSL is ignored.
+   *
+   * @return true if the authentication strategy has been configured via the DSL.
+   */
+  public boolean isUserConfigured() {
+    return kind != Kind.NONE || sshBackend != SshBackend.JSCH;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    Credentials that = (Credentials) o;
+    return kind == that.kind
+        && Objects.equals(username, that.username)
+        && Objects.equals(password, that.password)
+        && Objects.equals(privateKey, that.privateKey)
+        && sshBackend == that.sshBackend;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(kind, username, password, privateKey, sshBackend);
+  }
+}
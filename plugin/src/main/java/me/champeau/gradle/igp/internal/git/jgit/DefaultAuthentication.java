@@ -16,16 +16,17 @@
 package me.champeau.gradle.igp.internal.git.jgit;
 
 import me.champeau.gradle.igp.Authentication;
-import me.champeau.gradle.igp.internal.git.cli.GitCliClient;
+import me.champeau.gradle.igp.SshBackend;
 import org.gradle.api.Action;
 import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.Property;
 
 import javax.inject.Inject;
-import java.util.Optional;
 
 public class DefaultAuthentication implements Authentication {
 
     private final ObjectFactory objects;
+    private final Property<SshBackend> sshBackend;
 
     private KeyConfiguration keyConfiguration;
     private BasicAuth basicAuth;
@@ -34,15 +35,7 @@ public class DefaultAuthentication implements Authentication {
     @Inject
     public DefaultAuthentication(ObjectFactory objects) {
         this.objects = objects;
-    }
-
-    /**
-     * If {@link GitCliClient} is being used, then authentication is handled by configuring the user environment, and
-     * user-configured authentication by the DSL is ignored. We want to warn users in this case.
-     * @return true if the authentication strategy has been configured via the DSL.
-     */
-    public boolean isUserConfigured() {
-        return keyConfiguration != null || basicAuth != null || sshWithPassword != null;
+        this.sshBackend = objects.property(SshBackend.class).convention(SshBackend.JSCH);
     }
 
     @Override
@@ -73,15 +66,30 @@ public class DefaultAuthentication implements Authentication {
         spec.execute(sshWithPassword);
     }
 
-    Optional<KeyConfiguration> getSshWithPublicKey() {
-        return Optional.ofNullable(keyConfiguration);
-    }
-
-    Optional<BasicAuth> getBasicAuth() {
-        return Optional.ofNullable(basicAuth);
+    @Override
+    public Property<SshBackend> getSshBackend() {
+        return sshBackend;
     }
 
-    Optional<WithPassword> getSshWithPassword() {
-        return Optional.ofNullable(sshWithPassword);
+    /**
+     * Captures the configured authentication, reading the values of its properties.
+     *
+     * @return the credentials
+     */
+    public Credentials toCredentials() {
+        SshBackend backend = sshBackend.get();
+        if (basicAuth != null) {
+            return new Credentials(Credentials.Kind.BASIC, basicAuth.getUsername().get(), basicAuth.getPassword().get(), null, backend);
+        }
+        if (sshWithPassword != null) {
+            return new Credentials(Credentials.Kind.SSH_PASSWORD, null, sshWithPassword.getPassword().get(), null, backend);
+        }
+        if (keyConfiguration != null) {
+            String privateKey = keyConfiguration.getPrivateKey().isPresent()
+                    ? keyConfiguration.getPrivateKey().get().getAsFile().getAbsolutePath()
+                    : null;
+            return new Credentials(Credentials.Kind.SSH_PUBLIC_KEY, null, null, privateKey, backend);
+        }
+        return backend == SshBackend.JSCH ? Credentials.NONE : new Credentials(Credentials.Kind.NONE, null, null, null, backend);
     }
 }
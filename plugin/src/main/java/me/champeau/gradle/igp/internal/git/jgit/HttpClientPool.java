@@ -0,0 +1,83 @@
+package me.champeau.gradle.igp.internal.git.jgit;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLSocket;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.client.SystemDefaultCredentialsProvider;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.ssl.SSLContexts;
+import org.eclipse.jgit.util.HttpSupport;
+
+/**
+ * HTTP clients which keep the connections to each host alive, so that the transfers
+ * of all the repositories of a host reuse the same TLS sessions. There's a client per
+ * proxy, which is configured like the clients JGit creates for each connection, except
+ * that JGit handles redirects and cookies itself, since the clients are shared.
+ */
+class HttpClientPool {
+  private static final long IDLE_TIMEOUT_SECONDS = 60;
+
+  private final HttpPoolSettings settings;
+  private final Map<Proxy, CloseableHttpClient> clients = new ConcurrentHashMap<>();
+
+  HttpClientPool(HttpPoolSettings settings) {
+    this.settings = settings;
+  }
+
+  CloseableHttpClient client(Proxy proxy) {
+    return clients.computeIfAbsent(proxy == null ? Proxy.NO_PROXY : proxy, this::createClient);
+  }
+
+  private CloseableHttpClient createClient(Proxy proxy) {
+    SSLConnectionSocketFactory sslSocketFactory = new SSLConnectionSocketFactory(SSLContexts.createSystemDefault(),
+        SSLConnectionSocketFactory.getDefaultHostnameVerifier()) {
+      @Override
+      protected void prepareSocket(SSLSocket socket) throws IOException {
+        super.prepareSocket(socket);
+        HttpSupport.configureTLS(socket);
+      }
+    };
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+        RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http", PlainConnectionSocketFactory.getSocketFactory())
+            .register("https", sslSocketFactory)
+            .build(),
+        null, null, null, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    connectionManager.setMaxTotal(settings.getMaxConnections());
+    connectionManager.setDefaultMaxPerRoute(settings.getMaxConnectionsPerHost());
+    // a connection the server closed while it was idle is detected before it's reused
+    connectionManager.setValidateAfterInactivity(2000);
+    RequestConfig.Builder requestConfig = RequestConfig.custom().setRedirectsEnabled(false);
+    if (settings.getConnectTimeoutMillis() > 0) {
+      requestConfig.setConnectTimeout(settings.getConnectTimeoutMillis());
+    }
+    if (settings.getReadTimeoutMillis() > 0) {
+      requestConfig.setSocketTimeout(settings.getReadTimeoutMillis());
+    }
+    HttpClientBuilder builder = HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setDefaultRequestConfig(requestConfig.build())
+        .setDefaultCredentialsProvider(new SystemDefaultCredentialsProvider())
+        .disableRedirectHandling()
+        .disableCookieManagement()
+        .evictIdleConnections(IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    if (!Proxy.NO_PROXY.equals(proxy)) {
+      InetSocketAddress address = (InetSocketAddress) proxy.address();
+      builder.setProxy(new HttpHost(address.getHostName(), address.getPort()));
+    }
+    return builder.build();
+  }
+}
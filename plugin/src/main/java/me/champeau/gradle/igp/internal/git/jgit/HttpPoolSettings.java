@@ -0,0 +1,65 @@
+package me.champeau.gradle.igp.internal.git.jgit;
+
+import java.util.Objects;
+
+/**
+ * The configuration of the pools of HTTP connections used by JGit. Builds which use
+ * the same settings share the same pools.
+ */
+public class HttpPoolSettings {
+  private final int maxConnections;
+  private final int maxConnectionsPerHost;
+  private final int connectTimeoutMillis;
+  private final int readTimeoutMillis;
+
+  /**
+   * Creates pool settings. A timeout of 0 means no timeout.
+   *
+   * @param maxConnections the maximum number of open connections
+   * @param maxConnectionsPerHost the maximum number of open connections to the same host
+   * @param connectTimeoutMillis the timeout to establish a connection
+   * @param readTimeoutMillis the timeout to wait for data
+   */
+  public HttpPoolSettings(int maxConnections, int maxConnectionsPerHost, int connectTimeoutMillis, int readTimeoutMillis) {
+    this.maxConnections = maxConnections;
+    this.maxConnectionsPerHost = maxConnectionsPerHost;
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+  }
+
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  public int getMaxConnectionsPerHost() {
+    return maxConnectionsPerHost;
+  }
+
+  public int getConnectTimeoutMillis() {
+    return connectTimeoutMillis;
+  }
+
+  public int getReadTimeoutMillis() {
+    return readTimeoutMillis;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    HttpPoolSettings that = (HttpPoolSettings) o;
+    return maxConnections == that.maxConnections
+        && maxConnectionsPerHost == that.maxConnectionsPerHost
+        && connectTimeoutMillis == that.connectTimeoutMillis
+        && readTimeoutMillis == that.readTimeoutMillis;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(maxConnections, maxConnectionsPerHost, connectTimeoutMillis, readTimeoutMillis);
+  }
+}
@@ -1,144 +1,707 @@
 package me.champeau.gradle.igp.internal.git.jgit;
 
-import com.jcraft.jsch.JSch;
-import com.jcraft.jsch.JSchException;
-import com.jcraft.jsch.Session;
 import java.io.File;
 import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 import me.champeau.gradle.igp.internal.CheckoutMetadata;
+import me.champeau.gradle.igp.internal.CheckoutMetadataStore;
+import me.champeau.gradle.igp.internal.FileLocks;
+import me.champeau.gradle.igp.internal.SyncMetrics;
+import me.champeau.gradle.igp.internal.git.CheckoutOptions;
 import me.champeau.gradle.igp.internal.git.GitClientStrategy;
+import me.champeau.gradle.igp.internal.git.GitHead;
+import me.champeau.gradle.igp.internal.git.ObjectStorage;
+import me.champeau.gradle.igp.internal.git.RefResolver;
+import me.champeau.gradle.igp.internal.git.RefSpecs;
+import me.champeau.gradle.igp.internal.git.SharedObjectCache;
+import me.champeau.gradle.igp.internal.git.SparseCheckouts;
+import me.champeau.gradle.igp.internal.git.TransferLimits;
+import me.champeau.gradle.igp.internal.git.TransferThrottle;
+import me.champeau.gradle.igp.internal.git.WorktreeStore;
+import org.eclipse.jgit.api.CloneCommand;
+import org.eclipse.jgit.api.CreateBranchCommand;
+import org.eclipse.jgit.api.FetchCommand;
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.MergeCommand;
 import org.eclipse.jgit.api.GitCommand;
 import org.eclipse.jgit.api.TransportCommand;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.api.errors.TransportException;
+import org.eclipse.jgit.errors.UnsupportedCredentialItem;
+import org.eclipse.jgit.lib.BranchConfig;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.lib.Ref;
-import org.eclipse.jgit.transport.SshSessionFactory;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.CredentialItem;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteConfig;
 import org.eclipse.jgit.transport.SshTransport;
+import org.eclipse.jgit.transport.TagOpt;
+import org.eclipse.jgit.transport.TransportHttp;
+import org.eclipse.jgit.transport.URIish;
 import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
-import org.eclipse.jgit.transport.ssh.jsch.JschConfigSessionFactory;
-import org.eclipse.jgit.transport.ssh.jsch.OpenSshConfig;
-import org.eclipse.jgit.util.FS;
 import org.gradle.api.GradleException;
 import org.slf4j.Logger;
 
 public class JGitClient implements GitClientStrategy {
 
   private final Logger logger;
-  private final Map<String, CheckoutMetadata> checkoutMetadata;
+  private final CheckoutMetadataStore checkoutMetadata;
   private final long refreshIntervalMillis;
+  private final boolean offline;
+  private final SharedObjectCache objectCache;
+  private final WorktreeStore worktrees;
+  private final JGitResources resources;
+  private final TransferLimits limits;
+  private final TransferThrottle throttle;
+  private final PooledHttpConnectionFactory httpConnectionFactory;
 
-  public JGitClient(Logger logger, Map<String, CheckoutMetadata> checkoutMetadata,
-      long refreshIntervalMillis) {
+  public JGitClient(Logger logger, CheckoutMetadataStore checkoutMetadata,
+      long refreshIntervalMillis, boolean offline, SharedObjectCache objectCache, WorktreeStore worktrees,
+      JGitResources resources, HttpPoolSettings httpPoolSettings, TransferLimits limits, TransferThrottle throttle) {
     this.logger = logger;
     this.checkoutMetadata = checkoutMetadata;
     this.refreshIntervalMillis = refreshIntervalMillis;
+    this.offline = offline;
+    this.objectCache = objectCache;
+    this.worktrees = worktrees;
+    this.resources = resources;
+    this.limits = limits;
+    this.throttle = throttle;
+    this.httpConnectionFactory = new PooledHttpConnectionFactory(resources.httpClientPool(httpPoolSettings),
+        throttle, limits.getMaxBytesPerSecond());
   }
 
   public void cloneRepository(File repoDir, String uri, String rev, String branchOrTag, CheckoutMetadata current,
-      DefaultAuthentication auth) {
+      Credentials auth, CheckoutOptions options, SyncMetrics metrics) {
 
     logger.info("Checking out {} ref {} in {}", uri, rev, repoDir);
+    if (options.isPartial()) {
+      logger.warn("Partial clones are not supported by jgit, ignoring filter {} of {}. Use the git CLI client to enable partial clones.", options.getFilter(), uri);
+    }
 
+    Credentials fetchAuth = auth;
     try {
-      applyAuth(Git.cloneRepository()
-          .setURI(uri)
-          .setBranch(branchOrTag)
-          .setDirectory(repoDir), auth)
-          .call();
+      if (worktrees != null) {
+        // jgit doesn't support linked worktrees: the checkout fetches from the store
+        // instead, and uses its objects as alternates
+        File store = updateWorktreeStore(uri, branchOrTag, auth, options, metrics);
+        fetchAuth = null;
+        cloneByFetching(repoDir, store.getAbsolutePath(), "", branchOrTag, null, options, store, metrics);
+      } else if (objectCache != null || options.isSparse() || RefSpecs.narrow(rev, branchOrTag, options.isTag()) != null) {
+        File cacheRepository = objectCache == null ? null : updateObjectCache(uri, auth, metrics);
+        cloneByFetching(repoDir, uri, rev, branchOrTag, auth, options, cacheRepository, metrics);
+      } else {
+        CloneCommand clone = Git.cloneRepository()
+            .setURI(uri)
+            .setBranch(branchOrTag)
+            .setDirectory(repoDir);
+        if (options.isShallow()) {
+          clone.setDepth(options.getDepth());
+        }
+        try (Git git = transfer(uri, repoDir, metrics, monitor -> applyAuth(clone.setProgressMonitor(monitor), auth))) {
+          runAutoGcInForeground(git.getRepository());
+        }
+      }
       if (!rev.isEmpty()) {
-        try (Git git = Git.open(repoDir)) {
-          git.checkout()
-              .setName(rev)
-              .call();
+        try (Git git = resources.open(repoDir)) {
+          ensureCommitAvailable(git, rev, fetchAuth, options, metrics);
+          checkout(git, rev, options);
         }
       }
-    } catch (GitAPIException | IOException e) {
+    } catch (GitAPIException | IOException | URISyntaxException e) {
       throw new GradleException("Unable to clone repository contents: " + e.getMessage(), e);
     } finally {
-      checkoutMetadata.put(uri, current);
+      checkoutMetadata.update(current, GitHead.resolveCommit(GitHead.gitDir(repoDir)), true);
     }
   }
 
   public void updateRepository(File repoDir, String uri, String rev, String branchOrTag, CheckoutMetadata current,
-      DefaultAuthentication auth) {
+      Credentials auth, CheckoutOptions options, SyncMetrics metrics) {
 
-    if (containsKey(checkoutMetadata, uri, current, refreshIntervalMillis)) {
+    File gitDir = GitHead.gitDir(repoDir);
+    List<String> sparseDirectories = SparseCheckouts.readConeDirectories(gitDir);
+    boolean sameSparseDirectories = sparseDirectories.equals(options.getSparseDirectories());
+    if (sameSparseDirectories && GitHead.isDetachedAt(gitDir, rev)) {
+      // pinned commits never change, so there's no need to look at the remote
+      logger.info("{} is already checked out at commit {}", repoDir, rev);
+      checkoutMetadata.update(current, GitHead.resolveCommit(gitDir), false);
+      return;
+    }
+    if (sameSparseDirectories && containsKey(checkoutMetadata, current, refreshIntervalMillis)) {
       return;
     }
 
-    try (Git git = Git.open(repoDir)) {
-      String fullBranch = git.getRepository().getFullBranch();
-      if (fullBranch.startsWith("refs/heads/")) {
-        logger.info("Pulling from {}", uri);
-        applyAuth(git.pull(), auth).call();
+    boolean fetched = false;
+    Credentials fetchAuth = auth;
+    if (worktrees != null) {
+      if (new File(repoDir, Constants.DOT_GIT).isFile()) {
+        throw new GradleException(repoDir + " is a linked worktree, which jgit doesn't support, it was probably checked out by the git CLI client. Delete it to check it out again.");
+      }
+      try {
+        if (!offline) {
+          updateWorktreeStore(uri, branchOrTag, auth, options, metrics);
+          fetched = true;
+        }
+        fetchAuth = null;
+      } catch (GitAPIException | IOException | URISyntaxException e) {
+        throw new GradleException("Unable to update repository contents: " + e.getMessage(), e);
+      }
+    }
+    try (Git git = resources.open(repoDir)) {
+      Repository repository = git.getRepository();
+      runAutoGcInForeground(repository);
+      if (!sparseDirectories.isEmpty() && !options.isSparse()) {
+        logger.info("Disabling sparse checkout of {}", uri);
+        SparseCheckout.apply(repository, repository.resolve(Constants.HEAD), Collections.emptyList());
+      }
+      String fullBranch = repository.getFullBranch();
+      if (offline) {
+        logger.info("Git repositories are offline, not pulling from {}", uri);
+      } else if (fullBranch.startsWith("refs/heads/")) {
+        ObjectId remoteId = null;
+        if (rev.isEmpty()
+            && sameSparseDirectories
+            && (branchOrTag.isEmpty() || fullBranch.equals(Constants.R_HEADS + branchOrTag))) {
+          remoteId = probeRemote(git, fullBranch, fetchAuth, metrics);
+          if (remoteId != null && remoteId.equals(repository.resolve(Constants.HEAD))) {
+            logger.info("{} is up-to-date with {}", repoDir, uri);
+            return;
+          }
+        }
+        if (remoteId != null && fastForwardToUpstream(git, fullBranch, remoteId, options)) {
+          logger.info("Fast-forwarded {} to the prefetched commit {}", repoDir, remoteId.name());
+        } else {
+          logger.info("Pulling from {}", uri);
+          fetched = true;
+          if (options.isSparse()) {
+            fetchAndFastForwardToUpstream(git, fullBranch, fetchAuth, metrics);
+          } else {
+            Credentials pullAuth = fetchAuth;
+            transfer(uri, repository.getDirectory(), metrics, monitor -> applyAuth(git.pull().setProgressMonitor(monitor), pullAuth));
+          }
+        }
       }
       logger.info("Checking out ref {} of {}", rev, uri);
       if (!rev.isEmpty()) {
-        git.checkout()
-            .setName(rev)
-            .call();
+        ensureCommitAvailable(git, rev, fetchAuth, options, metrics);
+        checkout(git, rev, options);
       } else {
-        Ref resolve = git.getRepository().findRef(branchOrTag);
-        if (resolve == null) {
-          List<Ref> refs = git.getRepository().getRefDatabase().getRefs();
-          for (Ref ref : refs) {
-            if (ref.getName().endsWith(branchOrTag)) {
-              resolve = ref;
-              break;
-            }
-          }
-        }
+        Ref resolve = resolveRef(repository, branchOrTag);
         if (resolve != null) {
-          git.checkout()
-              .setName(resolve.getName())
-              .call();
+          checkout(git, resolve.getName(), options);
+        } else if (offline) {
+          if (!branchOrTag.isEmpty()) {
+            logger.warn("Branch or tag {} of {} isn't available locally and Git repositories are offline, using the current checkout of {}", branchOrTag, uri, repoDir);
+          }
         } else {
-          throw new GradleException("Branch or tag " + branchOrTag + " not found");
+          // the checkout may only have fetched the ref it was created for
+          fetched = true;
+          fetchRef(git, branchOrTag, fetchAuth, options, metrics);
+          checkoutBranchOrTag(git, branchOrTag, options);
         }
       }
     } catch (GitAPIException | IOException e) {
       throw new GradleException("Unable to update repository contents: " + e.getMessage(), e);
     } finally {
-      checkoutMetadata.put(uri, current);
+      if (!offline) {
+        // an offline build doesn't postpone the next update
+        checkoutMetadata.update(current, GitHead.resolveCommit(gitDir), fetched);
+      }
     }
   }
 
-  <C extends GitCommand<?>, R, TC extends TransportCommand<C, R>> TC applyAuth(TC command,
-      DefaultAuthentication authentication) {
-    authentication.getBasicAuth()
-        .ifPresent(auth -> command.setCredentialsProvider(new UsernamePasswordCredentialsProvider(
-            auth.getUsername().get(),
-            auth.getPassword().get()
-        )));
-    authentication.getSshWithPassword().ifPresent(auth -> {
-      SshSessionFactory sshSessionFactory = new JschConfigSessionFactory() {
-        @Override
-        protected void configure(OpenSshConfig.Host host, Session session) {
-          session.setPassword(auth.getPassword().get());
+  /**
+   * Finds a branch or tag using the precedence rules of {@link RefResolver#candidates},
+   * with exact lookups which don't read all the refs of the repository. Unlike the git
+   * CLI client, this doesn't use the {@link RefResolver} cache, since the ref database of
+   * a repository which is kept open already caches the packed refs.
+   *
+   * @return the ref, or null if not found
+   */
+  static Ref resolveRef(Repository repository, String branchOrTag) throws IOException {
+    return repository.getRefDatabase().firstExactRef(RefResolver.candidates(branchOrTag).toArray(new String[0]));
+  }
+
+  /**
+   * Clones the repository by initializing an empty repository and fetching from the remote,
+   * which is required when the shared object cache or worktrees are used, when the checkout
+   * is sparse, or when only the requested branch, tag or commit is fetched. If an alternate
+   * repository is given, the checkout uses its objects as alternates, so that the fetch of
+   * the checkout itself only downloads the objects which are missing from the alternate
+   * repository.
+   */
+  private void cloneByFetching(File repoDir, String uri, String rev, String branchOrTag, Credentials auth,
+      CheckoutOptions options, File alternateRepository, SyncMetrics metrics) throws GitAPIException, IOException, URISyntaxException {
+    Git.init().setDirectory(repoDir).call().close();
+    if (alternateRepository != null) {
+      SharedObjectCache.writeAlternates(new File(repoDir, Constants.DOT_GIT), alternateRepository);
+    }
+    try (Git git = resources.open(repoDir)) {
+      Repository repository = git.getRepository();
+      String refSpec = RefSpecs.narrow(rev, branchOrTag, options.isTag());
+      boolean singleBranch = RefSpecs.isSingleBranch(rev, branchOrTag, options.isTag());
+      // the remote only tracks the requested branch, so pulls don't fetch the other branches either
+      configureOrigin(repository, uri, List.of(singleBranch ? refSpec : RefSpecs.ALL_BRANCHES));
+      FetchResult result = null;
+      if (refSpec != null) {
+        try {
+          result = fetch(git, auth, options, options.isShallow(), singleBranch ? null : refSpec, TagOpt.AUTO_FOLLOW, metrics);
+        } catch (TransportException e) {
+          logger.info("Unable to fetch {} only, fetching all branches: {}", refSpec, e.getMessage());
+          configureFetchRefSpec(repository, RefSpecs.ALL_BRANCHES, true);
         }
-      };
-      command.setTransportConfigCallback(transport -> {
-        SshTransport sshTransport = (SshTransport) transport;
-        sshTransport.setSshSessionFactory(sshSessionFactory);
-      });
-    });
-    authentication.getSshWithPublicKey().ifPresent(keyConfig -> {
-      SshSessionFactory sshSessionFactory = new JschConfigSessionFactory() {
+      }
+      if (result == null) {
+        result = fetch(git, auth, options, options.isShallow(), null, TagOpt.FETCH_TAGS, metrics);
+      } else if (refSpec.equals(rev)) {
+        // the commit is checked out by the caller
+        return;
+      }
+      checkoutBranchOrTag(git, branchOrTag.isEmpty() ? remoteDefaultBranch(result) : branchOrTag, options);
+    }
+  }
+
+  /**
+   * Fetches from origin.
+   *
+   * @param shallow whether to fetch with the depth of the checkout
+   * @param refSpec the refspec to fetch, or null to fetch the refspecs of the remote
+   */
+  private FetchResult fetch(Git git, Credentials auth, CheckoutOptions options, boolean shallow,
+      String refSpec, TagOpt tagOpt, SyncMetrics metrics) throws GitAPIException {
+    FetchCommand fetch = git.fetch()
+        .setRemote(Constants.DEFAULT_REMOTE_NAME)
+        .setTagOpt(tagOpt);
+    if (refSpec != null) {
+      fetch.setRefSpecs(new RefSpec(refSpec));
+    }
+    if (shallow) {
+      fetch.setDepth(options.getDepth());
+    }
+    return transfer(originUrl(git.getRepository()), git.getRepository().getDirectory(), metrics, monitor -> applyAuth(fetch.setProgressMonitor(monitor), auth));
+  }
+
+  /**
+   * Runs a command which fetches from a remote, once the transfer limits allow it, and
+   * records the objects it received, as reported to the progress monitor, and the growth
+   * of the object storage of the repository.
+   */
+  private <T> T transfer(String uri, File repository, SyncMetrics metrics, Function<ProgressMonitor, GitCommand<T>> command)
+      throws GitAPIException {
+    ReceivedObjectsMonitor monitor = new ReceivedObjectsMonitor();
+    long size = ObjectStorage.size(repository);
+    T result;
+    try (TransferThrottle.Permit ignored = throttle.acquire(uri, limits, logger)) {
+      result = command.apply(monitor).call();
+    }
+    metrics.fetched(monitor.getObjects(), Math.max(0, ObjectStorage.size(repository) - size));
+    return result;
+  }
+
+  private static String originUrl(Repository repository) {
+    String url = repository.getConfig().getString(ConfigConstants.CONFIG_REMOTE_SECTION, Constants.DEFAULT_REMOTE_NAME, ConfigConstants.CONFIG_KEY_URL);
+    return url == null ? "" : url;
+  }
+
+  /**
+   * Fetches a branch or tag which isn't known locally. Branches are added to the
+   * branches tracked by the remote once they have been fetched, so that pulls
+   * update them.
+   */
+  private void fetchRef(Git git, String branchOrTag, Credentials auth, CheckoutOptions options,
+      SyncMetrics metrics)
+      throws GitAPIException, IOException {
+    Repository repository = git.getRepository();
+    boolean shallow = options.isShallow() && new File(repository.getDirectory(), "shallow").exists();
+    String refSpec = RefSpecs.narrow("", branchOrTag, options.isTag());
+    if (refSpec != null) {
+      logger.info("Fetching {}", branchOrTag);
+      try {
+        fetch(git, auth, options, shallow, refSpec, TagOpt.AUTO_FOLLOW, metrics);
+        if (!options.isTag()) {
+          configureFetchRefSpec(repository, refSpec, false);
+        }
+        return;
+      } catch (TransportException e) {
+        logger.info("Unable to fetch {} only, fetching all branches: {}", branchOrTag, e.getMessage());
+      }
+    }
+    configureFetchRefSpec(repository, RefSpecs.ALL_BRANCHES, true);
+    fetch(git, auth, options, shallow, null, TagOpt.FETCH_TAGS, metrics);
+  }
+
+  private File updateObjectCache(String uri, Credentials auth, SyncMetrics metrics)
+      throws GitAPIException, IOException, URISyntaxException {
+    File cacheRepository = objectCache.repositoryFor(uri);
+    try (FileLocks.Handle ignored = objectCache.lock(uri, logger)) {
+      if (!new File(cacheRepository, Constants.HEAD).exists()) {
+        initWithoutGc(cacheRepository);
+      }
+      try (Git cache = resources.open(cacheRepository)) {
+        logger.info("Updating shared object cache {} from {}", cacheRepository, uri);
+        configureOrigin(cache.getRepository(), uri, SharedObjectCache.CACHE_REFSPECS);
+        transfer(uri, cacheRepository, metrics, monitor -> applyAuth(cache.fetch()
+            .setRemote(Constants.DEFAULT_REMOTE_NAME)
+            .setProgressMonitor(monitor), auth));
+      }
+    }
+    return cacheRepository;
+  }
+
+  /**
+   * Creates a bare repository whose objects are borrowed by other checkouts, so objects
+   * which become unreachable must not be pruned by the automatic garbage collection which
+   * runs after fetches.
+   */
+  private static void initWithoutGc(File repository) throws GitAPIException, IOException {
+    try (Git git = Git.init().setBare(true).setDirectory(repository).call()) {
+      StoredConfig config = git.getRepository().getConfig();
+      for (Map.Entry<String, String> entry : SharedObjectCache.NO_GC_CONFIG.entrySet()) {
+        String[] key = entry.getKey().split("\\.");
+        config.setString(key[0], null, key[1], entry.getValue());
+      }
+      config.save();
+    }
+  }
+
+  /**
+   * Creates the bare repository of a remote if needed, then fetches all its branches and tags.
+   * Shallow fetches are only performed if the repository is shallow already, since a shallow
+   * fetch would otherwise truncate the history the other checkouts may depend on.
+   */
+  private File updateWorktreeStore(String uri, String branchOrTag, Credentials auth, CheckoutOptions options,
+      SyncMetrics metrics)
+      throws GitAPIException, IOException, URISyntaxException {
+    File store = worktrees.repositoryFor(uri);
+    try (FileLocks.Handle ignored = worktrees.lock(uri, logger)) {
+      boolean created = !new File(store, Constants.HEAD).exists();
+      if (created) {
+        // the worktrees borrow the objects of the store
+        initWithoutGc(store);
+        if (objectCache != null) {
+          SharedObjectCache.writeAlternates(store, updateObjectCache(uri, auth, metrics));
+        }
+      }
+      try (Git git = resources.open(store)) {
+        logger.info("Updating worktree store {} from {}", store, uri);
+        configureOrigin(git.getRepository(), uri, WorktreeStore.STORE_REFSPECS);
+        FetchCommand fetch = git.fetch().setRemote(Constants.DEFAULT_REMOTE_NAME);
+        if (options.isShallow() && (created || new File(store, "shallow").exists())) {
+          fetch.setDepth(options.getDepth());
+        }
+        FetchResult result = transfer(uri, store, metrics, monitor -> applyAuth(fetch.setProgressMonitor(monitor), auth));
+        if (branchOrTag.isEmpty()) {
+          // HEAD of the bare repository tracks the default branch of the remote
+          RefUpdate head = git.getRepository().updateRef(Constants.HEAD);
+          head.link(Constants.R_HEADS + remoteDefaultBranch(result));
+        }
+      }
+    }
+    return store;
+  }
+
+  /**
+   * Probes the remote for the upstream ref of the current branch.
+   *
+   * @return the commit the upstream ref points to, or null if it doesn't exist or the remote can't be reached
+   */
+  private ObjectId probeRemote(Git git, String fullBranch, Credentials auth, SyncMetrics metrics) {
+    metrics.probed();
+    Repository repository = git.getRepository();
+    String remoteRef = new BranchConfig(repository.getConfig(), Repository.shortenRefName(fullBranch)).getMerge();
+    try (TransferThrottle.Permit ignored = throttle.acquire(originUrl(repository), limits, logger)) {
+      return applyAuth(new RemoteRefProbe(repository)
+          .setRefName(remoteRef == null ? fullBranch : remoteRef), auth)
+          .call();
+    } catch (GitAPIException e) {
+      logger.info("Unable to probe the remote state of {}: {}", fullBranch, e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Fast-forwards the current branch to its upstream branch if the upstream branch
+   * already points to the commit of the remote, for example because it was prefetched,
+   * which doesn't require fetching again. Sparse checkouts only fast-forward the branch,
+   * since the working tree is updated by the sparse checkout which follows.
+   *
+   * @return true if the branch was fast-forwarded
+   */
+  private static boolean fastForwardToUpstream(Git git, String fullBranch, ObjectId remoteId, CheckoutOptions options)
+      throws GitAPIException, IOException {
+    Repository repository = git.getRepository();
+    String upstream = new BranchConfig(repository.getConfig(), Repository.shortenRefName(fullBranch)).getRemoteTrackingBranch();
+    if (upstream == null || !remoteId.equals(repository.resolve(upstream))) {
+      return false;
+    }
+    if (options.isSparse()) {
+      fastForwardToUpstreamBranch(repository, fullBranch);
+      return true;
+    }
+    return git.merge()
+        .include(remoteId)
+        .setFastForward(MergeCommand.FastForwardMode.FF_ONLY)
+        .call()
+        .getMergeStatus()
+        .isSuccessful();
+  }
+
+  /**
+   * Fetches from the remote and fast-forwards the current branch to its upstream branch, without
+   * touching the working tree, which is updated by the sparse checkout which follows.
+   */
+  private void fetchAndFastForwardToUpstream(Git git, String fullBranch, Credentials auth, SyncMetrics metrics)
+      throws GitAPIException, IOException {
+    Repository repository = git.getRepository();
+    transfer(originUrl(repository), repository.getDirectory(), metrics, monitor -> applyAuth(git.fetch()
+        .setRemote(Constants.DEFAULT_REMOTE_NAME)
+        .setProgressMonitor(monitor), auth));
+    fastForwardToUpstreamBranch(repository, fullBranch);
+  }
+
+  private static void fastForwardToUpstreamBranch(Repository repository, String fullBranch) throws IOException {
+    String upstream = new BranchConfig(repository.getConfig(), Repository.shortenRefName(fullBranch)).getRemoteTrackingBranch();
+    ObjectId upstreamId = upstream == null ? null : repository.resolve(upstream);
+    ObjectId headId = repository.resolve(fullBranch);
+    if (upstreamId == null || upstreamId.equals(headId)) {
+      return;
+    }
+    SparseCheckout.ensureClean(repository);
+    try (RevWalk walk = new RevWalk(repository)) {
+      RevCommit upstreamCommit = walk.parseCommit(upstreamId);
+      if (headId != null && walk.isMergedInto(upstreamCommit, walk.parseCommit(headId))) {
+        // the local branch is ahead of its upstream branch
+        return;
+      }
+      RefUpdate update = repository.updateRef(fullBranch);
+      update.setExpectedOldObjectId(headId);
+      update.setNewObjectId(upstreamId);
+      RefUpdate.Result result = update.update(walk);
+      if (result != RefUpdate.Result.FAST_FORWARD && result != RefUpdate.Result.NEW) {
+        // like a fast-forward only pull
+        throw new GradleException("Unable to fast-forward " + Repository.shortenRefName(fullBranch) + " of "
+            + repository.getWorkTree() + " to " + upstream + ", the branches have diverged");
+      }
+    }
+  }
+
+  public String ping(String uri, String refName, Credentials auth) {
+    try (TransferThrottle.Permit ignored = throttle.acquire(uri, limits, logger)) {
+      ObjectId id = applyAuth(new RemoteRefProbe(uri).setRefName(refName), auth).call();
+      return id == null ? null : id.name();
+    } catch (GitAPIException e) {
+      throw new GradleException("Unable to reach " + uri + ": " + e.getMessage(), e);
+    }
+  }
+
+  public void prefetch(File repoDir, String uri, String branchOrTag, Credentials auth, CheckoutOptions options,
+      SyncMetrics metrics) {
+    try {
+      if (worktrees != null) {
+        updateWorktreeStore(uri, branchOrTag, auth, options, metrics);
+      } else {
+        try (Git git = resources.open(repoDir)) {
+          // like a pull, which doesn't deepen a shallow checkout
+          fetch(git, auth, options, false, null, TagOpt.AUTO_FOLLOW, metrics);
+        }
+      }
+    } catch (GitAPIException | IOException | URISyntaxException e) {
+      throw new GradleException("Unable to prefetch repository contents: " + e.getMessage(), e);
+    }
+  }
+
+  private static void checkout(Git git, String name, CheckoutOptions options) throws GitAPIException, IOException {
+    if (options.isSparse()) {
+      SparseCheckout.checkout(git.getRepository(), name, options.getSparseDirectories());
+    } else {
+      git.checkout()
+          .setName(name)
+          .call();
+    }
+  }
+
+  /**
+   * Makes sure that the requested commit is available, by fetching it directly, or if
+   * that isn't possible, for example because the commit id is abbreviated, by unshallowing
+   * a shallow repository or fetching all branches.
+   */
+  private void ensureCommitAvailable(Git git, String rev, Credentials auth, CheckoutOptions options,
+      SyncMetrics metrics)
+      throws GitAPIException, IOException {
+    Repository repository = git.getRepository();
+    if (repository.resolve(rev + "^{commit}") != null) {
+      return;
+    }
+    if (offline) {
+      throw GitClientStrategy.commitUnavailableOffline(rev, repository.getWorkTree());
+    }
+    boolean shallow = new File(repository.getDirectory(), "shallow").exists();
+    if (ObjectId.isId(rev)) {
+      logger.info("Commit {} isn't available locally, fetching it", rev);
+      try {
+        fetch(git, auth, options, shallow && options.isShallow(), rev, TagOpt.NO_TAGS, metrics);
+        if (repository.resolve(rev + "^{commit}") != null) {
+          return;
+        }
+      } catch (GitAPIException e) {
+        logger.info("Unable to fetch commit {} directly: {}", rev, e.getMessage());
+      }
+    }
+    if (shallow) {
+      logger.info("Commit {} isn't part of the shallow history, unshallowing repository", rev);
+      transfer(originUrl(repository), repository.getDirectory(), metrics, monitor -> applyAuth(git.fetch()
+          .setRemote(Constants.DEFAULT_REMOTE_NAME)
+          .setUnshallow(true)
+          .setProgressMonitor(monitor), auth));
+    } else {
+      logger.info("Commit {} isn't available locally, fetching all branches", rev);
+      configureFetchRefSpec(repository, RefSpecs.ALL_BRANCHES, true);
+      fetch(git, auth, options, false, null, TagOpt.FETCH_TAGS, metrics);
+    }
+  }
+
+  private static void configureOrigin(Repository repository, String uri, List<String> refSpecs)
+      throws IOException, URISyntaxException {
+    StoredConfig config = repository.getConfig();
+    RemoteConfig remote = new RemoteConfig(config, Constants.DEFAULT_REMOTE_NAME);
+    for (URIish existing : new ArrayList<>(remote.getURIs())) {
+      remote.removeURI(existing);
+    }
+    remote.addURI(new URIish(uri));
+    remote.setFetchRefSpecs(refSpecs.stream().map(RefSpec::new).collect(Collectors.toList()));
+    remote.update(config);
+    config.setBoolean(ConfigConstants.CONFIG_GC_SECTION, null, ConfigConstants.CONFIG_KEY_AUTODETACH, false);
+    config.save();
+  }
+
+  /**
+   * Makes jgit run the automatic garbage collection which follows fetches on the fetching
+   * thread. A detached collection reads the repository from a thread of its own, and the
+   * configuration cache records the files read by any thread other than the one which
+   * synchronizes the repositories as inputs of the build, even though they are the outputs
+   * of the synchronization.
+   */
+  private static void runAutoGcInForeground(Repository repository) throws IOException {
+    StoredConfig config = repository.getConfig();
+    if (config.getBoolean(ConfigConstants.CONFIG_GC_SECTION, ConfigConstants.CONFIG_KEY_AUTODETACH, true)) {
+      config.setBoolean(ConfigConstants.CONFIG_GC_SECTION, null, ConfigConstants.CONFIG_KEY_AUTODETACH, false);
+      config.save();
+    }
+  }
+
+  /**
+   * Adds a fetch refspec to origin, or replaces its fetch refspecs.
+   */
+  private static void configureFetchRefSpec(Repository repository, String refSpec, boolean replace)
+      throws IOException {
+    StoredConfig config = repository.getConfig();
+    try {
+      RemoteConfig remote = new RemoteConfig(config, Constants.DEFAULT_REMOTE_NAME);
+      if (replace) {
+        remote.setFetchRefSpecs(List.of(new RefSpec(refSpec)));
+      } else {
+        remote.addFetchRefSpec(new RefSpec(refSpec));
+      }
+      remote.update(config);
+    } catch (URISyntaxException e) {
+      throw new IOException(e);
+    }
+    config.save();
+  }
+
+  private static void checkoutBranchOrTag(Git git, String branchOrTag, CheckoutOptions options)
+      throws GitAPIException, IOException {
+    Repository repository = git.getRepository();
+    String remoteBranch = Constants.DEFAULT_REMOTE_NAME + "/" + branchOrTag;
+    if (repository.exactRef(Constants.R_REMOTES + remoteBranch) != null && options.isSparse()) {
+      git.branchCreate()
+          .setName(branchOrTag)
+          .setStartPoint(remoteBranch)
+          .setUpstreamMode(CreateBranchCommand.SetupUpstreamMode.TRACK)
+          .call();
+      SparseCheckout.checkout(repository, Constants.R_HEADS + branchOrTag, options.getSparseDirectories());
+    } else if (repository.exactRef(Constants.R_REMOTES + remoteBranch) != null) {
+      git.checkout()
+          .setCreateBranch(true)
+          .setName(branchOrTag)
+          .setStartPoint(remoteBranch)
+          .setUpstreamMode(CreateBranchCommand.SetupUpstreamMode.TRACK)
+          .call();
+    } else if (repository.exactRef(Constants.R_TAGS + branchOrTag) != null) {
+      checkout(git, Constants.R_TAGS + branchOrTag, options);
+    } else {
+      throw new GradleException("Branch or tag " + branchOrTag + " not found");
+    }
+  }
+
+  private static String remoteDefaultBranch(FetchResult result) {
+    Ref head = result.getAdvertisedRef(Constants.HEAD);
+    if (head == null) {
+      throw new GradleException("Unable to determine the default branch of " + result.getURI());
+    }
+    if (head.isSymbolic()) {
+      return Repository.shortenRefName(head.getTarget().getName());
+    }
+    Ref master = result.getAdvertisedRef(Constants.R_HEADS + Constants.MASTER);
+    if (master != null && head.getObjectId().equals(master.getObjectId())) {
+      return Constants.MASTER;
+    }
+    for (Ref ref : result.getAdvertisedRefs()) {
+      if (ref.getName().startsWith(Constants.R_HEADS) && head.getObjectId().equals(ref.getObjectId())) {
+        return Repository.shortenRefName(ref.getName());
+      }
+    }
+    throw new GradleException("Unable to determine the default branch of " + result.getURI());
+  }
+
+  <C extends GitCommand<?>, R, TC extends TransportCommand<C, R>> TC applyAuth(TC command,
+      Credentials authentication) {
+    if (authentication == null) {
+      // fetching from a local repository, like a worktree store
+      return command;
+    }
+    if (authentication.getKind() == Credentials.Kind.BASIC) {
+      command.setCredentialsProvider(new UsernamePasswordCredentialsProvider(
+          authentication.getUsername(),
+          authentication.getPassword()
+      ) {
         @Override
-        protected JSch createDefaultJSch(FS fs) throws JSchException {
-          JSch defaultJSch = super.createDefaultJSch(fs);
-          if (keyConfig.getPrivateKey().isPresent()) {
-            defaultJSch.addIdentity(keyConfig.getPrivateKey().get().getAsFile().getAbsolutePath());
+        public boolean get(URIish uri, CredentialItem... items) throws UnsupportedCredentialItem {
+          if ("https".equals(uri.getScheme())) {
+            resources.challenged(uri.getHost(), authentication);
           }
-          return defaultJSch;
+          return super.get(uri, items);
         }
-      };
-      command.setTransportConfigCallback(transport -> {
-        SshTransport sshTransport = (SshTransport) transport;
-        sshTransport.setSshSessionFactory(sshSessionFactory);
       });
+    }
+    command.setTransportConfigCallback(transport -> {
+      if (transport instanceof SshTransport) {
+        ((SshTransport) transport).setSshSessionFactory(resources.sshSessionFactory(authentication));
+      }
+      if (transport instanceof TransportHttp) {
+        TransportHttp http = (TransportHttp) transport;
+        http.setHttpConnectionFactory(httpConnectionFactory);
+        if (authentication.equals(resources.challengedCredentials(transport.getURI().getHost()))
+            && "https".equals(transport.getURI().getScheme())) {
+          // the host asked for these credentials before: saves the rejected request
+          http.setPreemptiveBasicAuthentication(authentication.getUsername(), authentication.getPassword());
+        }
+      }
     });
     return command;
   }
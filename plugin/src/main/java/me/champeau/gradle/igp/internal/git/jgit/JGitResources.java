@@ -0,0 +1,222 @@
+package me.champeau.gradle.igp.internal.git.jgit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.util.FS;
+
+/**
+ * Keeps repositories, SSH sessions and HTTP connection pools open across the builds
+ * which run in the same Gradle daemon, as long as the plugin class loader is reused,
+ * so that the ref database, the pack indexes and the SSH configuration aren't read
+ * again, and SSH sessions and HTTP connections aren't opened again, every time the
+ * settings are evaluated.
+ *
+ * A repository is opened again if its configuration file changed on disk, for
+ * example because the checkout was deleted and cloned again. Repositories which
+ * are not in use are closed once they have been idle for too long, or when too
+ * many repositories are open.
+ */
+public class JGitResources {
+  private static final JGitResources SHARED = new JGitResources(30 * 60 * 1000L, 32);
+
+  private final long idleTimeoutMillis;
+  private final int maxRepositories;
+  private final Map<File, CachedRepository> repositories = new HashMap<>();
+  private final Map<Credentials, PooledSshSessionFactory> sessionFactories = new ConcurrentHashMap<>();
+  private final Map<HttpPoolSettings, HttpClientPool> httpClientPools = new ConcurrentHashMap<>();
+  private final Map<String, Credentials> challengedCredentials = new ConcurrentHashMap<>();
+
+  JGitResources(long idleTimeoutMillis, int maxRepositories) {
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.maxRepositories = maxRepositories;
+  }
+
+  public static JGitResources shared() {
+    return SHARED;
+  }
+
+  /**
+   * Opens a repository, reusing the cached repository if possible. Closing the
+   * returned {@link Git} instance returns the repository to the cache.
+   *
+   * @param dir the checkout directory, or the directory of a bare repository
+   * @return the Git instance
+   */
+  public Git open(File dir) throws IOException {
+    File gitDir = RepositoryCache.FileKey.lenient(dir, FS.DETECTED).getFile().getAbsoluteFile();
+    CachedRepository cached;
+    synchronized (this) {
+      cached = repositories.get(gitDir);
+      if (cached != null && cached.isStale()) {
+        repositories.remove(gitDir);
+        cached.closeIfUnused();
+        cached = null;
+      }
+      if (cached == null) {
+        Repository repository = new FileRepositoryBuilder()
+            .setGitDir(gitDir)
+            .setMustExist(true)
+            .build();
+        cached = new CachedRepository(gitDir, repository);
+        repositories.put(gitDir, cached);
+      }
+      cached.useCount++;
+      evict(System.currentTimeMillis());
+    }
+    return new CachedGit(cached);
+  }
+
+  /**
+   * Returns the SSH session factory for the given credentials, which uses the SSH backend
+   * of the credentials, creating it if needed. The factory keeps its sessions open.
+   *
+   * @param credentials the credentials
+   * @return the session factory
+   */
+  PooledSshSessionFactory sshSessionFactory(Credentials credentials) {
+    return sessionFactories.computeIfAbsent(credentials, SshSessionFactories::create);
+  }
+
+  /**
+   * Returns the HTTP connection pool for the given settings, creating it if needed.
+   *
+   * @param settings the pool settings
+   * @return the pool
+   */
+  HttpClientPool httpClientPool(HttpPoolSettings settings) {
+    return httpClientPools.computeIfAbsent(settings, HttpClientPool::new);
+  }
+
+  /**
+   * Records the basic credentials a host asked for, so that they can be sent to it
+   * upfront, instead of after the host rejected an unauthenticated request.
+   *
+   * @param host the host
+   * @param credentials the credentials
+   */
+  void challenged(String host, Credentials credentials) {
+    challengedCredentials.put(host, credentials);
+  }
+
+  /**
+   * Returns the basic credentials which were last sent to a host, after it asked for them.
+   *
+   * @param host the host
+   * @return the credentials, or null if the host never asked for credentials
+   */
+  Credentials challengedCredentials(String host) {
+    return challengedCredentials.get(host);
+  }
+
+  /**
+   * Closes the repositories and the SSH sessions which have been idle for too long.
+   */
+  public void evictIdle() {
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      evict(now);
+    }
+    sessionFactories.values().forEach(factory -> factory.evictIdle(now));
+  }
+
+  private void evict(long now) {
+    List<CachedRepository> idle = new ArrayList<>();
+    for (CachedRepository cached : repositories.values()) {
+      if (cached.useCount == 0) {
+        idle.add(cached);
+      }
+    }
+    idle.sort(Comparator.comparingLong(cached -> cached.lastUse));
+    int excess = repositories.size() - maxRepositories;
+    for (CachedRepository cached : idle) {
+      if (excess > 0 || now - cached.lastUse > idleTimeoutMillis) {
+        repositories.remove(cached.gitDir);
+        cached.closeIfUnused();
+        excess--;
+      }
+    }
+  }
+
+  private synchronized void release(CachedRepository cached) {
+    cached.useCount--;
+    cached.lastUse = System.currentTimeMillis();
+    // changes made through the cached repository don't make it stale
+    cached.configStamp = stamp(cached.configFile());
+    if (repositories.get(cached.gitDir) != cached) {
+      // evicted or replaced while in use
+      cached.closeIfUnused();
+    }
+  }
+
+  /**
+   * Identifies a version of a file, using its file key, which is the inode on
+   * Unix, its size and its last modification time.
+   */
+  private static String stamp(File file) {
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+      return attributes.fileKey() + ":" + attributes.size() + ":" + attributes.lastModifiedTime().toMillis();
+    } catch (IOException e) {
+      return "";
+    }
+  }
+
+  private static class CachedRepository {
+    private final File gitDir;
+    private final Repository repository;
+    private String configStamp;
+    private int useCount;
+    private long lastUse;
+
+    private CachedRepository(File gitDir, Repository repository) {
+      this.gitDir = gitDir;
+      this.repository = repository;
+      this.configStamp = stamp(configFile());
+    }
+
+    private File configFile() {
+      return new File(gitDir, "config");
+    }
+
+    private boolean isStale() {
+      return !gitDir.isDirectory() || !configStamp.equals(stamp(configFile()));
+    }
+
+    private void closeIfUnused() {
+      if (useCount == 0) {
+        repository.close();
+      }
+    }
+  }
+
+  private class CachedGit extends Git {
+    private final CachedRepository cached;
+    private boolean closed;
+
+    private CachedGit(CachedRepository cached) {
+      super(cached.repository);
+      this.cached = cached;
+    }
+
+    @Override
+    public void close() {
+      super.close();
+      if (!closed) {
+        closed = true;
+        release(cached);
+      }
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package me.champeau.gradle.igp.internal.git.jgit;
+
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+/**
+ * Gives access to the {@link JGitResources} which are shared by the builds running
+ * in the same daemon. When the build finishes, the repositories which have been idle
+ * for too long are closed.
+ */
+public abstract class JGitResourcesService implements BuildService<BuildServiceParameters.None>, AutoCloseable {
+  public static final String NAME = "includeGitJGitResources";
+
+  public JGitResources getResources() {
+    return JGitResources.shared();
+  }
+
+  @Override
+  public void close() {
+    JGitResources.shared().evictIdle();
+  }
+}
@@ -0,0 +1,305 @@
+package me.champeau.gradle.igp.internal.git.jgit;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.Proxy;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Map;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.TrustManager;
+import me.champeau.gradle.igp.internal.git.TransferThrottle;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.EofSensorInputStream;
+import org.eclipse.jgit.transport.http.HttpConnection;
+import org.eclipse.jgit.transport.http.HttpConnectionFactory2;
+import org.eclipse.jgit.transport.http.apache.HttpClientConnection;
+import org.eclipse.jgit.transport.http.apache.HttpClientConnectionFactory;
+
+/**
+ * Creates the HTTP connections of JGit from the clients of a {@link HttpClientPool}, which
+ * keep the connections alive across transfers. Connections which must not verify the
+ * certificate of the server, because {@code http.sslVerify} is disabled, aren't pooled,
+ * and are configured like JGit does. If a bandwidth is given, the responses are read at
+ * most at this bandwidth, which is shared by all the transfers of the daemon.
+ *
+ * The factory is set on the HTTP transports of the commands, so that the connections of
+ * other JGit users aren't affected.
+ *
+ * JGit doesn't always read or close the responses it's done with, which would keep their
+ * connections out of the pool. A transport only uses one response at a time, so when it
+ * opens a connection, the response of its previous one is released, and the last one is
+ * released when the transport is closed.
+ */
+class PooledHttpConnectionFactory implements HttpConnectionFactory2 {
+  private final HttpClientPool pool;
+  private final TransferThrottle throttle;
+  private final long maxBytesPerSecond;
+  private final HttpClientConnectionFactory unpooled = new HttpClientConnectionFactory();
+
+  PooledHttpConnectionFactory(HttpClientPool pool, TransferThrottle throttle, long maxBytesPerSecond) {
+    this.pool = pool;
+    this.throttle = throttle;
+    this.maxBytesPerSecond = maxBytesPerSecond;
+  }
+
+  @Override
+  public HttpConnection create(URL url) {
+    return new PooledConnection(url, null);
+  }
+
+  @Override
+  public HttpConnection create(URL url, Proxy proxy) {
+    return new PooledConnection(url, proxy);
+  }
+
+  @Override
+  public GitSession newSession() {
+    GitSession unverified = unpooled.newSession();
+    return new GitSession() {
+      private PooledConnection previous;
+
+      @Override
+      public HttpConnection configure(HttpConnection connection, boolean sslVerify)
+          throws IOException, GeneralSecurityException {
+        PooledConnection pooled = (PooledConnection) connection;
+        if (previous != null) {
+          previous.release(false);
+        }
+        previous = pooled;
+        if (!sslVerify && "https".equals(pooled.url.getProtocol())) {
+          unverified.configure(pooled.unpooled(), false);
+        }
+        return connection;
+      }
+
+      @Override
+      public void close() {
+        if (previous != null) {
+          previous.release(true);
+          previous = null;
+        }
+        unverified.close();
+      }
+    };
+  }
+
+  /**
+   * A connection which is bound to a pooled client, unless it's configured otherwise
+   * before it's used.
+   */
+  private class PooledConnection implements HttpConnection {
+    private final URL url;
+    private final Proxy proxy;
+    private HttpClientConnection delegate;
+    // whether the request was sent and a response received, which must be released
+    private boolean executed;
+
+    private PooledConnection(URL url, Proxy proxy) {
+      this.url = url;
+      this.proxy = proxy;
+    }
+
+    private HttpClientConnection delegate() {
+      if (delegate == null) {
+        delegate = newConnection(pool.client(proxy));
+      }
+      return delegate;
+    }
+
+    private HttpClientConnection unpooled() {
+      if (delegate == null) {
+        delegate = newConnection(null);
+      }
+      return delegate;
+    }
+
+    private HttpClientConnection newConnection(HttpClient client) {
+      try {
+        return new HttpClientConnection(url.toString(), proxy, client);
+      } catch (MalformedURLException e) {
+        throw new IllegalArgumentException(e);
+      }
+    }
+
+    /**
+     * Gives the connection of the response back to the pool, after reading what's left
+     * of the response, or closes it if the response is aborted.
+     */
+    private void release(boolean abort) {
+      if (!executed) {
+        return;
+      }
+      executed = false;
+      try {
+        InputStream in = delegate.getInputStream();
+        if (abort && in instanceof EofSensorInputStream) {
+          ((EofSensorInputStream) in).abortConnection();
+        } else if (in != null) {
+          in.close();
+        }
+      } catch (IOException | RuntimeException e) {
+        // the request failed, or its response has no body: there's nothing to release
+      }
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+      int code = delegate().getResponseCode();
+      executed = true;
+      return code;
+    }
+
+    @Override
+    public URL getURL() {
+      return url;
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+      String message = delegate().getResponseMessage();
+      executed = true;
+      return message;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+      return delegate().getHeaderFields();
+    }
+
+    @Override
+    public void setRequestProperty(String key, String value) {
+      delegate().setRequestProperty(key, value);
+    }
+
+    @Override
+    public void setRequestMethod(String method) throws ProtocolException {
+      delegate().setRequestMethod(method);
+    }
+
+    @Override
+    public void setUseCaches(boolean useCaches) {
+      delegate().setUseCaches(useCaches);
+    }
+
+    @Override
+    public void setConnectTimeout(int timeout) {
+      // ignored by pooled connections, which use the timeouts of the pool
+      delegate().setConnectTimeout(timeout);
+    }
+
+    @Override
+    public void setReadTimeout(int timeout) {
+      delegate().setReadTimeout(timeout);
+    }
+
+    @Override
+    public String getContentType() {
+      return delegate().getContentType();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      InputStream in = delegate().getInputStream();
+      executed = true;
+      if (maxBytesPerSecond <= 0) {
+        return in;
+      }
+      return new FilterInputStream(in) {
+        @Override
+        public int read() throws IOException {
+          int b = super.read();
+          if (b >= 0) {
+            throttle.pace(1, maxBytesPerSecond);
+          }
+          return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+          int read = super.read(buffer, offset, length);
+          throttle.pace(read, maxBytesPerSecond);
+          return read;
+        }
+      };
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+      return delegate().getHeaderField(name);
+    }
+
+    @Override
+    public List<String> getHeaderFields(String name) {
+      return delegate().getHeaderFields(name);
+    }
+
+    @Override
+    public int getContentLength() {
+      return delegate().getContentLength();
+    }
+
+    @Override
+    public void setInstanceFollowRedirects(boolean followRedirects) {
+      delegate().setInstanceFollowRedirects(followRedirects);
+    }
+
+    @Override
+    public void setDoOutput(boolean doOutput) {
+      delegate().setDoOutput(doOutput);
+    }
+
+    @Override
+    public void setFixedLengthStreamingMode(int contentLength) {
+      delegate().setFixedLengthStreamingMode(contentLength);
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+      return delegate().getOutputStream();
+    }
+
+    @Override
+    public void setChunkedStreamingMode(int chunkLength) {
+      delegate().setChunkedStreamingMode(chunkLength);
+    }
+
+    @Override
+    public String getRequestMethod() {
+      return delegate().getRequestMethod();
+    }
+
+    @Override
+    public boolean usingProxy() {
+      return proxy != null && !Proxy.NO_PROXY.equals(proxy);
+    }
+
+    @Override
+    public void connect() throws IOException {
+      delegate().connect();
+      executed = true;
+    }
+
+    @Override
+    public void configure(KeyManager[] keyManagers, TrustManager[] trustManagers, SecureRandom random)
+        throws NoSuchAlgorithmException, KeyManagementException {
+      // only used to disable the verification of certificates
+      unpooled().configure(keyManagers, trustManagers, random);
+    }
+
+    @Override
+    public void setHostnameVerifier(HostnameVerifier hostnameVerifier)
+        throws NoSuchAlgorithmException, KeyManagementException {
+      unpooled().setHostnameVerifier(hostnameVerifier);
+    }
+  }
+}
@@ -0,0 +1,216 @@
+package me.champeau.gradle.igp.internal.git.jgit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.FtpChannel;
+import org.eclipse.jgit.transport.RemoteSession;
+import org.eclipse.jgit.transport.RemoteSession2;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.util.FS;
+
+/**
+ * Keeps the SSH sessions opened by the session factory of a backend open, so that the
+ * transfers from the same host, as the same user, don't go through the key exchange and
+ * the authentication again. The factory is created per credentials, so a session is
+ * shared by the transfers using the same key.
+ *
+ * A transfer runs its commands in its own channels of the session, so concurrent
+ * transfers share a session, up to {@value #MAX_CHANNELS_PER_SESSION}, after which
+ * another session is opened, since SSH servers limit the number of channels of a
+ * connection. A session which fails to open a channel, usually because the server
+ * closed it while it was idle, is replaced by a new session. Sessions which have been
+ * idle for {@value #IDLE_TIMEOUT_MINUTES} minutes are closed.
+ */
+class PooledSshSessionFactory extends SshSessionFactory {
+  private static final int MAX_CHANNELS_PER_SESSION = 8;
+  private static final long IDLE_TIMEOUT_MINUTES = 10;
+
+  private final SshSessionFactory delegate;
+  private final CredentialsProvider credentialsProvider;
+  private final Map<String, List<PooledSession>> sessions = new HashMap<>();
+
+  /**
+   * Creates a pool of sessions.
+   *
+   * @param delegate the factory of the backend, which opens the sessions
+   * @param credentialsProvider the provider used to open the sessions, or null to use
+   * the provider of the transport
+   */
+  PooledSshSessionFactory(SshSessionFactory delegate, CredentialsProvider credentialsProvider) {
+    this.delegate = delegate;
+    this.credentialsProvider = credentialsProvider;
+  }
+
+  @Override
+  public RemoteSession getSession(URIish uri, CredentialsProvider credentialsProvider, FS fs, int tms)
+      throws TransportException {
+    String key = (uri.getUser() == null ? "" : uri.getUser()) + "@" + uri.getHost() + ":" + uri.getPort();
+    PooledSession session = lease(key);
+    boolean opened = session == null;
+    if (opened) {
+      session = open(key, uri, credentialsProvider, fs, tms);
+    }
+    return new Lease(session, opened, uri, credentialsProvider, fs, tms);
+  }
+
+  @Override
+  public String getType() {
+    return delegate.getType();
+  }
+
+  /**
+   * Closes the sessions which have been idle for too long.
+   *
+   * @param now the current time
+   */
+  void evictIdle(long now) {
+    List<PooledSession> idle = new ArrayList<>();
+    synchronized (this) {
+      for (List<PooledSession> pooled : sessions.values()) {
+        for (Iterator<PooledSession> it = pooled.iterator(); it.hasNext(); ) {
+          PooledSession session = it.next();
+          if (session.leases == 0 && now - session.lastUse > IDLE_TIMEOUT_MINUTES * 60 * 1000) {
+            it.remove();
+            idle.add(session);
+          }
+        }
+      }
+      sessions.values().removeIf(List::isEmpty);
+    }
+    idle.forEach(session -> session.remote.disconnect());
+  }
+
+  private synchronized PooledSession lease(String key) {
+    for (PooledSession session : sessions.getOrDefault(key, Collections.emptyList())) {
+      if (session.leases < MAX_CHANNELS_PER_SESSION) {
+        session.leases++;
+        return session;
+      }
+    }
+    return null;
+  }
+
+  private PooledSession open(String key, URIish uri, CredentialsProvider transportCredentialsProvider, FS fs, int tms)
+      throws TransportException {
+    // opened outside of the lock, so that the handshakes with different hosts don't wait for each other
+    RemoteSession remote = delegate.getSession(uri,
+        credentialsProvider != null ? credentialsProvider : transportCredentialsProvider, fs, tms);
+    PooledSession session = new PooledSession(key, remote);
+    synchronized (this) {
+      sessions.computeIfAbsent(key, k -> new ArrayList<>()).add(session);
+    }
+    return session;
+  }
+
+  private void release(PooledSession session) {
+    boolean disconnect;
+    synchronized (this) {
+      session.leases--;
+      session.lastUse = System.currentTimeMillis();
+      disconnect = session.failed && session.leases == 0;
+    }
+    if (disconnect) {
+      session.remote.disconnect();
+    }
+  }
+
+  private void discard(PooledSession session) {
+    synchronized (this) {
+      session.failed = true;
+      List<PooledSession> pooled = sessions.get(session.key);
+      if (pooled != null) {
+        pooled.remove(session);
+      }
+    }
+    release(session);
+  }
+
+  private static class PooledSession {
+    private final String key;
+    private final RemoteSession remote;
+    private int leases = 1;
+    private long lastUse = System.currentTimeMillis();
+    private boolean failed;
+
+    private PooledSession(String key, RemoteSession remote) {
+      this.key = key;
+      this.remote = remote;
+    }
+
+    private Process exec(String command, Map<String, String> environment, int timeout) throws IOException {
+      if (remote instanceof RemoteSession2) {
+        return ((RemoteSession2) remote).exec(command, environment, timeout);
+      }
+      return remote.exec(command, timeout);
+    }
+  }
+
+  /**
+   * The session given to a transport, which gives the pooled session back to the pool
+   * when the transport disconnects.
+   */
+  private class Lease implements RemoteSession2 {
+    private final URIish uri;
+    private final CredentialsProvider credentialsProvider;
+    private final FS fs;
+    private final int tms;
+    private PooledSession session;
+    private boolean opened;
+    private boolean released;
+
+    private Lease(PooledSession session, boolean opened, URIish uri, CredentialsProvider credentialsProvider, FS fs, int tms) {
+      this.session = session;
+      this.opened = opened;
+      this.uri = uri;
+      this.credentialsProvider = credentialsProvider;
+      this.fs = fs;
+      this.tms = tms;
+    }
+
+    @Override
+    public Process exec(String commandName, int timeout) throws IOException {
+      return exec(commandName, Collections.emptyMap(), timeout);
+    }
+
+    @Override
+    public synchronized Process exec(String commandName, Map<String, String> environment, int timeout)
+        throws IOException {
+      try {
+        return session.exec(commandName, environment, timeout);
+      } catch (IOException | IllegalStateException e) {
+        if (opened) {
+          throw e;
+        }
+        // the pooled session is probably closed, which Apache MINA reports with an
+        // IllegalStateException: the command is run again in a new session
+        released = true;
+        discard(session);
+        session = open(session.key, uri, credentialsProvider, fs, tms);
+        released = false;
+        opened = true;
+        return session.exec(commandName, environment, timeout);
+      }
+    }
+
+    @Override
+    public FtpChannel getFtpChannel() {
+      return session.remote.getFtpChannel();
+    }
+
+    @Override
+    public synchronized void disconnect() {
+      if (!released) {
+        released = true;
+        release(session);
+      }
+    }
+  }
+}
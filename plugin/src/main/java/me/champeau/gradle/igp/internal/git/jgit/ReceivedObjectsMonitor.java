@@ -0,0 +1,44 @@
+package me.champeau.gradle.igp.internal.git.jgit;
+
+import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.lib.ProgressMonitor;
+
+/**
+ * A progress monitor which counts the objects received by fetches, which jgit
+ * reports as the total work of its "Receiving objects" tasks.
+ */
+class ReceivedObjectsMonitor implements ProgressMonitor {
+  private long objects;
+
+  long getObjects() {
+    return objects;
+  }
+
+  @Override
+  public void start(int totalTasks) {
+  }
+
+  @Override
+  public void beginTask(String title, int totalWork) {
+    if (totalWork != UNKNOWN && JGitText.get().receivingObjects.equals(title)) {
+      objects += totalWork;
+    }
+  }
+
+  @Override
+  public void update(int completed) {
+  }
+
+  @Override
+  public void endTask() {
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return false;
+  }
+
+  @Override
+  public void showDuration(boolean enabled) {
+  }
+}
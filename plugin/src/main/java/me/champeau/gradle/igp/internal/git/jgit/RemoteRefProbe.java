@@ -0,0 +1,78 @@
+package me.champeau.gradle.igp.internal.git.jgit;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import org.eclipse.jgit.api.TransportCommand;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.api.errors.InvalidRemoteException;
+import org.eclipse.jgit.api.errors.TransportException;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.errors.NotSupportedException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.FetchConnection;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.transport.UrlConfig;
+import org.eclipse.jgit.util.SystemReader;
+
+/**
+ * Asks the origin remote of a repository, or a remote given by its URI, for
+ * the object id of a single ref, without fetching anything. With protocol v2,
+ * only the requested ref is advertised by the remote, which makes this a
+ * single small round-trip.
+ */
+class RemoteRefProbe extends TransportCommand<RemoteRefProbe, ObjectId> {
+  private final String uri;
+  private String refName;
+
+  RemoteRefProbe(Repository repository) {
+    super(repository);
+    this.uri = null;
+  }
+
+  /**
+   * Probes a remote without a local repository, like {@code git ls-remote <uri>}. The
+   * URL rewrites of the user configuration apply, as they do to the origin remote.
+   */
+  RemoteRefProbe(String uri) {
+    super(null);
+    this.uri = uri;
+  }
+
+  RemoteRefProbe setRefName(String refName) {
+    this.refName = refName;
+    return this;
+  }
+
+  /**
+   * Returns the object id of the ref on the remote.
+   *
+   * @return the object id, or null if the remote doesn't have the ref
+   */
+  @Override
+  public ObjectId call() throws GitAPIException {
+    try (Transport transport = open()) {
+      configure(transport);
+      try (FetchConnection connection = transport.openFetch(Collections.emptyList(), refName)) {
+        Ref ref = connection.getRef(refName);
+        return ref == null ? null : ref.getObjectId();
+      }
+    } catch (URISyntaxException | NotSupportedException | ConfigInvalidException e) {
+      throw new InvalidRemoteException(e.getMessage(), e);
+    } catch (IOException e) {
+      throw new TransportException(e.getMessage(), e);
+    }
+  }
+
+  private Transport open() throws IOException, URISyntaxException, ConfigInvalidException {
+    if (uri == null) {
+      return Transport.open(repo, Constants.DEFAULT_REMOTE_NAME);
+    }
+    UrlConfig urls = new UrlConfig(SystemReader.getInstance().getUserConfig());
+    return Transport.open(new URIish(urls.replace(uri)));
+  }
+}
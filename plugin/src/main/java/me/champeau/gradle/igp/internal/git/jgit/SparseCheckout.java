@@ -0,0 +1,233 @@
+package me.champeau.gradle.igp.internal.git.jgit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import me.champeau.gradle.igp.internal.git.SparseCheckouts;
+import org.eclipse.jgit.dircache.Checkout;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.IndexDiff;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.FileTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.gradle.api.GradleException;
+
+/**
+ * Cone mode sparse checkouts for jgit, which doesn't support them natively.
+ *
+ * jgit doesn't allow setting the skip-worktree bit of index entries, so the
+ * entries which are outside of the cone are kept in the index but flagged as
+ * assume-valid, and are not written to the working tree. The cone patterns are
+ * written to {@code info/sparse-checkout}, like the git CLI does.
+ *
+ * Like the git CLI, local changes are never overwritten: moving to another commit
+ * requires a clean working tree, and changing the cone fails if a modified file
+ * would be deleted.
+ */
+class SparseCheckout {
+  private static final int MAX_REPORTED_PATHS = 10;
+
+  /**
+   * Moves HEAD to the branch, tag or commit, then updates the working tree
+   * so that it only contains the files of the cone.
+   *
+   * @param repository the repository
+   * @param name the name of the branch, tag or commit to check out
+   * @param directories the normalized directories of the cone
+   */
+  static void checkout(Repository repository, String name, List<String> directories) throws IOException {
+    Ref ref = repository.findRef(name);
+    boolean branch = ref != null && ref.getName().startsWith(Constants.R_HEADS);
+    ObjectId commit = repository.resolve((ref != null ? ref.getName() : name) + "^{commit}");
+    if (commit == null) {
+      throw new GradleException("Unable to resolve " + name);
+    }
+    if (!commit.equals(repository.resolve(Constants.HEAD + "^{commit}"))) {
+      ensureClean(repository);
+    }
+    apply(repository, commit, directories);
+    RefUpdate head = repository.updateRef(Constants.HEAD, !branch);
+    if (branch) {
+      head.link(ref.getName());
+    } else {
+      head.setNewObjectId(commit);
+      head.forceUpdate();
+    }
+  }
+
+  /**
+   * Updates the index and the working tree so that they match the tree of the commit,
+   * only writing the files of the cone. An empty list of directories restores a full checkout.
+   *
+   * @param repository the repository
+   * @param commit the commit to check out
+   * @param directories the normalized directories of the cone
+   */
+  static void apply(Repository repository, ObjectId commit, List<String> directories) throws IOException {
+    File workTree = repository.getWorkTree();
+    Checkout checkout = new Checkout(repository);
+    Set<String> modified = modifiedFiles(repository);
+    DirCache dirCache = repository.lockDirCache();
+    try (ObjectReader reader = repository.newObjectReader();
+         RevWalk revWalk = new RevWalk(reader);
+         TreeWalk treeWalk = new TreeWalk(repository, reader)) {
+      Map<String, DirCacheEntry> previous = new HashMap<>();
+      for (int i = 0; i < dirCache.getEntryCount(); i++) {
+        DirCacheEntry entry = dirCache.getEntry(i);
+        previous.put(entry.getPathString(), entry);
+      }
+      List<DirCacheEntry> entries = new ArrayList<>();
+      List<DirCacheEntry> toCheckout = new ArrayList<>();
+      List<String> toDelete = new ArrayList<>();
+      treeWalk.addTree(revWalk.parseCommit(commit).getTree());
+      treeWalk.setRecursive(true);
+      while (treeWalk.next()) {
+        String path = treeWalk.getPathString();
+        FileMode mode = treeWalk.getFileMode(0);
+        DirCacheEntry entry = new DirCacheEntry(path);
+        entry.setFileMode(mode);
+        entry.setObjectId(treeWalk.getObjectId(0));
+        DirCacheEntry old = previous.remove(path);
+        boolean wasCheckedOut = old != null && !old.isAssumeValid();
+        if (SparseCheckouts.isInCone(path, directories)) {
+          if (wasCheckedOut && old.getFileMode() == mode && old.getObjectId().equals(entry.getObjectId())
+              && new File(workTree, path).exists()) {
+            entry.setLength(old.getLength());
+            entry.setLastModified(old.getLastModifiedInstant());
+          } else {
+            toCheckout.add(entry);
+          }
+        } else {
+          entry.setAssumeValid(true);
+          if (wasCheckedOut) {
+            toDelete.add(path);
+          }
+        }
+        entries.add(entry);
+      }
+      for (DirCacheEntry removed : previous.values()) {
+        if (!removed.isAssumeValid()) {
+          toDelete.add(removed.getPathString());
+        }
+      }
+      Set<String> overwritten = new TreeSet<>(toDelete);
+      toCheckout.forEach(entry -> overwritten.add(entry.getPathString()));
+      overwritten.retainAll(modified);
+      if (!overwritten.isEmpty()) {
+        throw localChanges(workTree, overwritten);
+      }
+      for (DirCacheEntry entry : toCheckout) {
+        checkout.checkout(entry, null, reader, null);
+      }
+      for (String path : toDelete) {
+        delete(workTree, path);
+      }
+      DirCacheBuilder builder = dirCache.builder();
+      entries.forEach(builder::add);
+      builder.commit();
+    } finally {
+      dirCache.unlock();
+    }
+    writeSparseCheckoutConfiguration(repository, directories);
+  }
+
+  /**
+   * Fails if the working tree or the index of the repository has uncommitted changes
+   * to tracked files. Files which are outside of the cone are never reported, since
+   * their index entries are assume-valid.
+   *
+   * @param repository the repository
+   */
+  static void ensureClean(Repository repository) throws IOException {
+    ObjectId head = repository.resolve(Constants.HEAD + "^{tree}");
+    if (head == null || repository.readDirCache().getEntryCount() == 0) {
+      // nothing was checked out yet
+      return;
+    }
+    IndexDiff diff = new IndexDiff(repository, head, new FileTreeIterator(repository));
+    diff.diff();
+    Set<String> dirty = new TreeSet<>();
+    dirty.addAll(diff.getAdded());
+    dirty.addAll(diff.getChanged());
+    dirty.addAll(diff.getRemoved());
+    dirty.addAll(diff.getModified());
+    dirty.addAll(diff.getConflicting());
+    if (!dirty.isEmpty()) {
+      throw localChanges(repository.getWorkTree(), dirty);
+    }
+  }
+
+  private static Set<String> modifiedFiles(Repository repository) throws IOException {
+    ObjectId head = repository.resolve(Constants.HEAD + "^{tree}");
+    if (head == null) {
+      return new TreeSet<>();
+    }
+    IndexDiff diff = new IndexDiff(repository, head, new FileTreeIterator(repository));
+    diff.diff();
+    Set<String> modified = new TreeSet<>(diff.getModified());
+    modified.addAll(diff.getConflicting());
+    return modified;
+  }
+
+  private static GradleException localChanges(File workTree, Set<String> paths) {
+    StringBuilder message = new StringBuilder("Unable to update the sparse checkout of ")
+        .append(workTree)
+        .append(" because it has local changes, commit or discard them first:");
+    paths.stream().limit(MAX_REPORTED_PATHS).forEach(path -> message.append("\n  ").append(path));
+    if (paths.size() > MAX_REPORTED_PATHS) {
+      message.append("\n  ... and ").append(paths.size() - MAX_REPORTED_PATHS).append(" more");
+    }
+    return new GradleException(message.toString());
+  }
+
+  private static void writeSparseCheckoutConfiguration(Repository repository, List<String> directories) throws IOException {
+    StoredConfig config = repository.getConfig();
+    File sparseCheckoutFile = SparseCheckouts.sparseCheckoutFile(repository.getDirectory());
+    if (directories.isEmpty()) {
+      config.unset(ConfigConstants.CONFIG_CORE_SECTION, null, "sparseCheckout");
+      config.unset(ConfigConstants.CONFIG_CORE_SECTION, null, "sparseCheckoutCone");
+      Files.deleteIfExists(sparseCheckoutFile.toPath());
+    } else {
+      config.setBoolean(ConfigConstants.CONFIG_CORE_SECTION, null, "sparseCheckout", true);
+      config.setBoolean(ConfigConstants.CONFIG_CORE_SECTION, null, "sparseCheckoutCone", true);
+      Files.createDirectories(sparseCheckoutFile.getParentFile().toPath());
+      Files.write(sparseCheckoutFile.toPath(), SparseCheckouts.toConePatterns(directories).getBytes(StandardCharsets.UTF_8));
+    }
+    config.save();
+  }
+
+  private static void delete(File workTree, String path) throws IOException {
+    File file = new File(workTree, path);
+    if (file.isDirectory()) {
+      // submodule
+      return;
+    }
+    Files.deleteIfExists(file.toPath());
+    File parent = file.getParentFile();
+    while (parent != null && !parent.equals(workTree)) {
+      String[] children = parent.list();
+      if (children == null || children.length > 0 || !parent.delete()) {
+        break;
+      }
+      parent = parent.getParentFile();
+    }
+  }
+}
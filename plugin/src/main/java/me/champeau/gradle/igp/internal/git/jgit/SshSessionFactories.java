@@ -0,0 +1,125 @@
+package me.champeau.gradle.igp.internal.git.jgit;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.Collections;
+import org.eclipse.jgit.errors.UnsupportedCredentialItem;
+import org.eclipse.jgit.transport.CredentialItem;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.transport.ssh.jsch.JschConfigSessionFactory;
+import org.eclipse.jgit.transport.ssh.jsch.OpenSshConfig;
+import org.eclipse.jgit.transport.sshd.JGitKeyCache;
+import org.eclipse.jgit.transport.sshd.SshdSessionFactoryBuilder;
+import org.eclipse.jgit.util.FS;
+
+/**
+ * Creates the SSH session factories of the {@link me.champeau.gradle.igp.SshBackend backends},
+ * configured with the credentials of a repository. Both backends read the OpenSSH configuration
+ * and known hosts of the user.
+ */
+final class SshSessionFactories {
+  private SshSessionFactories() {
+  }
+
+  /**
+   * Creates a pool of sessions opened by the backend of the given credentials.
+   *
+   * @param credentials the credentials
+   * @return the session factory
+   */
+  static PooledSshSessionFactory create(Credentials credentials) {
+    switch (credentials.getSshBackend()) {
+      case APACHE_MINA:
+        return new PooledSshSessionFactory(apacheMina(credentials),
+            credentials.getKind() == Credentials.Kind.SSH_PASSWORD ? new PasswordProvider(credentials.getPassword()) : null);
+      case JSCH:
+      default:
+        return new PooledSshSessionFactory(jsch(credentials), null);
+    }
+  }
+
+  private static SshSessionFactory jsch(Credentials credentials) {
+    switch (credentials.getKind()) {
+      case SSH_PASSWORD: {
+        String password = credentials.getPassword();
+        return new JschConfigSessionFactory() {
+          @Override
+          protected void configure(OpenSshConfig.Host host, Session session) {
+            session.setPassword(password);
+          }
+        };
+      }
+      case SSH_PUBLIC_KEY: {
+        String privateKey = credentials.getPrivateKey();
+        return new JschConfigSessionFactory() {
+          @Override
+          protected JSch createDefaultJSch(FS fs) throws JSchException {
+            JSch defaultJSch = super.createDefaultJSch(fs);
+            if (privateKey != null) {
+              defaultJSch.addIdentity(privateKey);
+            }
+            return defaultJSch;
+          }
+        };
+      }
+      default:
+        return new JschConfigSessionFactory();
+    }
+  }
+
+  private static SshSessionFactory apacheMina(Credentials credentials) {
+    File home = FS.DETECTED.userHome();
+    SshdSessionFactoryBuilder builder = new SshdSessionFactoryBuilder()
+        .setHomeDirectory(home)
+        .setSshDirectory(new File(home, ".ssh"));
+    String privateKey = credentials.getPrivateKey();
+    if (credentials.getKind() == Credentials.Kind.SSH_PUBLIC_KEY && privateKey != null) {
+      builder.setDefaultIdentities(sshDirectory -> Collections.singletonList(Paths.get(privateKey)));
+    }
+    return builder.build(new JGitKeyCache());
+  }
+
+  /**
+   * Answers the password prompts of the server, like JSch does with the configured password.
+   * Apache MINA only asks a provider which claims to be interactive for a password.
+   */
+  private static class PasswordProvider extends CredentialsProvider {
+    private final String password;
+
+    private PasswordProvider(String password) {
+      this.password = password;
+    }
+
+    @Override
+    public boolean isInteractive() {
+      return true;
+    }
+
+    @Override
+    public boolean supports(CredentialItem... items) {
+      for (CredentialItem item : items) {
+        if (!(item instanceof CredentialItem.Password) && !(item instanceof CredentialItem.InformationalMessage)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public boolean get(URIish uri, CredentialItem... items) throws UnsupportedCredentialItem {
+      for (CredentialItem item : items) {
+        if (item instanceof CredentialItem.Password) {
+          ((CredentialItem.Password) item).setValue(password.toCharArray());
+        } else if (!(item instanceof CredentialItem.InformationalMessage)) {
+          throw new UnsupportedCredentialItem(uri, item.getPromptText());
+        }
+      }
+      return true;
+    }
+  }
+}
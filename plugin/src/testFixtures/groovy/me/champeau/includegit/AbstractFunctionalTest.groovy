@@ -90,6 +90,30 @@ class AbstractFunctionalTest extends Specification {
         assert errorOutput.normalize().contains(text.normalize())
     }
 
+    /**
+     * Creates a repository whose main branch has a build and a file of random bytes,
+     * which can't be compressed, so that transferring it takes a known number of bytes.
+     */
+    protected File createRepository(String name, int randomBytes) {
+        File repository = file(name)
+        repository.mkdirs()
+        new File(repository, 'settings.gradle').text = "rootProject.name = '$name'"
+        byte[] bytes = new byte[randomBytes]
+        new Random().nextBytes(bytes)
+        new File(repository, 'random.bin').bytes = bytes
+        git(repository, 'init', '-b', 'main')
+        git(repository, 'add', '.')
+        git(repository, '-c', 'user.name=test', '-c', 'user.email=test@example.com', 'commit', '-m', 'Initial commit')
+        repository
+    }
+
+    protected static String git(File dir, String... args) {
+        def process = (['git', '-C', dir.absolutePath] + args.toList()).execute()
+        def output = process.text.trim()
+        assert process.waitFor() == 0
+        output
+    }
+
     void tasks(@DelegatesTo(value = TaskExecutionGraph, strategy = Closure.DELEGATE_FIRST) Closure spec) {
         def graph = new TaskExecutionGraph()
         spec.delegate = graph
@@ -105,12 +129,20 @@ class AbstractFunctionalTest extends Specification {
     private GradleRunner newRunner(String... args) {
         outputWriter = new StringWriter()
         errorOutputWriter = new StringWriter()
+        newRunnerFor(testDirectory.toFile(), outputWriter, errorOutputWriter, args)
+    }
+
+    /**
+     * Creates a runner for another build, for example one which runs concurrently
+     * with the build of the test directory.
+     */
+    protected GradleRunner newRunnerFor(File projectDir, Writer output, Writer errorOutput, String... args) {
         ArrayList<String> autoArgs = computeAutoArgs()
         def runner = GradleRunner.create()
-                .forwardStdOutput(tee(new OutputStreamWriter(System.out), outputWriter))
-                .forwardStdError(tee(new OutputStreamWriter(System.err), errorOutputWriter))
+                .forwardStdOutput(tee(new OutputStreamWriter(System.out), output))
+                .forwardStdError(tee(new OutputStreamWriter(System.err), errorOutput))
                 .withPluginClasspath()
-                .withProjectDir(testDirectory.toFile())
+                .withProjectDir(projectDir)
                 .withArguments([*autoArgs, *args])
         if (gradleVersion) {
             runner.withGradleVersion(gradleVersion)
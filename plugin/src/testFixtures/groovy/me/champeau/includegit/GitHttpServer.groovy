@@ -0,0 +1,144 @@
+package me.champeau.includegit
+
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import groovy.transform.CompileStatic
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.zip.GZIPInputStream
+
+/**
+ * Serves the bare repositories of a directory with the smart HTTP protocol, by running
+ * {@code git http-backend} for each request, and counts the requests and connections
+ * of the clients.
+ */
+@CompileStatic
+class GitHttpServer implements Closeable {
+    private static final byte[] END_OF_HEADERS = '\r\n\r\n'.getBytes(StandardCharsets.US_ASCII)
+
+    private final File root
+    private final HttpServer server
+    private final ExecutorService executor = Executors.newCachedThreadPool()
+    private final AtomicInteger requests = new AtomicInteger()
+    private final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet()
+
+    static GitHttpServer serve(File root) {
+        new GitHttpServer(root)
+    }
+
+    private GitHttpServer(File root) {
+        root.mkdirs()
+        this.root = root.canonicalFile
+        server = HttpServer.create(new InetSocketAddress(InetAddress.loopbackAddress, 0), 0)
+        server.createContext('/') { HttpExchange exchange -> handle(exchange) }
+        server.executor = executor
+        server.start()
+    }
+
+    /**
+     * Publishes a copy of a repository. The copy is cloned like a remote repository,
+     * so its objects are in a single pack file.
+     *
+     * @return the URI of the copy
+     */
+    String publish(File repository, String name) {
+        File copy = new File(root, name)
+        git(root, 'clone', '--bare', '--no-local', repository.absolutePath, copy.absolutePath)
+        "http://${server.address.hostString}:${server.address.port}/$name"
+    }
+
+    int getRequestCount() {
+        requests.get()
+    }
+
+    /**
+     * Returns the number of connections the clients opened, each one coming from another port.
+     */
+    int getConnectionCount() {
+        connections.size()
+    }
+
+    private void handle(HttpExchange exchange) {
+        requests.incrementAndGet()
+        connections.add(exchange.remoteAddress)
+        try {
+            byte[] body = exchange.requestBody.bytes
+            if (exchange.requestHeaders.getFirst('Content-Encoding') == 'gzip') {
+                body = new GZIPInputStream(new ByteArrayInputStream(body)).bytes
+            }
+            def backend = new ProcessBuilder('git', 'http-backend')
+                    .redirectError(ProcessBuilder.Redirect.DISCARD)
+            backend.environment().putAll([
+                    GIT_PROJECT_ROOT   : root.path,
+                    GIT_HTTP_EXPORT_ALL: '1',
+                    PATH_INFO          : exchange.requestURI.path,
+                    QUERY_STRING       : exchange.requestURI.rawQuery ?: '',
+                    REQUEST_METHOD     : exchange.requestMethod,
+                    CONTENT_TYPE       : exchange.requestHeaders.getFirst('Content-Type') ?: '',
+                    CONTENT_LENGTH     : String.valueOf(body.length),
+                    GIT_PROTOCOL       : exchange.requestHeaders.getFirst('Git-Protocol') ?: ''
+            ])
+            Process process = backend.start()
+            Thread.start {
+                process.outputStream.withStream { it.write(body) }
+            }
+            byte[] output = process.inputStream.bytes
+            process.waitFor()
+            respond(exchange, output)
+        } finally {
+            exchange.close()
+        }
+    }
+
+    /**
+     * Sends the output of the CGI program, whose headers may include the status of the response.
+     */
+    private static void respond(HttpExchange exchange, byte[] output) {
+        int headersEnd = indexOf(output, END_OF_HEADERS)
+        int status = 200
+        for (String line : new String(output, 0, Math.max(headersEnd, 0), StandardCharsets.US_ASCII).split('\r\n')) {
+            int colon = line.indexOf(':')
+            if (colon > 0) {
+                String name = line.substring(0, colon)
+                String value = line.substring(colon + 1).trim()
+                if (name.equalsIgnoreCase('Status')) {
+                    status = value.tokenize(' ')[0] as int
+                } else {
+                    exchange.responseHeaders.add(name, value)
+                }
+            }
+        }
+        int payloadStart = headersEnd < 0 ? output.length : headersEnd + END_OF_HEADERS.length
+        int payloadLength = output.length - payloadStart
+        exchange.sendResponseHeaders(status, payloadLength == 0 ? -1 : payloadLength)
+        if (payloadLength > 0) {
+            exchange.responseBody.write(output, payloadStart, payloadLength)
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern) {
+        for (int i = 0; i <= bytes.length - pattern.length; i++) {
+            if (Arrays.equals(bytes, i, i + pattern.length, pattern, 0, pattern.length)) {
+                return i
+            }
+        }
+        -1
+    }
+
+    private static void git(File dir, String... args) {
+        def process = (['git', '-C', dir.absolutePath] + args.toList()).execute()
+        process.outputStream.close()
+        process.consumeProcessOutput()
+        assert process.waitFor() == 0
+    }
+
+    @Override
+    void close() {
+        server.stop(0)
+        executor.shutdownNow()
+    }
+}
@@ -0,0 +1,106 @@
+package me.champeau.includegit
+
+import groovy.transform.CompileStatic
+import org.apache.sshd.common.channel.Channel
+import org.apache.sshd.common.channel.ChannelListener
+import org.apache.sshd.common.config.keys.PublicKeyEntry
+import org.apache.sshd.common.session.Session
+import org.apache.sshd.common.session.SessionListener
+import org.apache.sshd.server.SshServer
+import org.apache.sshd.server.auth.password.PasswordAuthenticator
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider
+import org.apache.sshd.server.session.ServerSession
+import org.apache.sshd.server.shell.ProcessShellCommandFactory
+
+import java.security.KeyPair
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Serves the bare repositories of a directory over SSH, by running the Git commands
+ * the clients ask for, and counts the sessions and channels of the clients. Clients
+ * authenticate with {@link #PASSWORD}, as any user.
+ */
+@CompileStatic
+class GitSshServer implements Closeable {
+    static final String PASSWORD = 'secret'
+
+    private final File root
+    private final SshServer server
+    private final AtomicInteger sessions = new AtomicInteger()
+    private final AtomicInteger channels = new AtomicInteger()
+
+    static GitSshServer serve(File root) {
+        new GitSshServer(root)
+    }
+
+    private GitSshServer(File root) {
+        root.mkdirs()
+        this.root = root.canonicalFile
+        server = SshServer.setUpDefaultServer()
+        server.host = '127.0.0.1'
+        server.port = 0
+        server.keyPairProvider = new SimpleGeneratorHostKeyProvider(new File(this.root, 'host.key').toPath())
+        server.passwordAuthenticator = { String username, String password, ServerSession session ->
+            password == PASSWORD
+        } as PasswordAuthenticator
+        server.commandFactory = ProcessShellCommandFactory.INSTANCE
+        server.addSessionListener(new SessionListener() {
+            @Override
+            void sessionCreated(Session session) {
+                sessions.incrementAndGet()
+            }
+        })
+        server.addChannelListener(new ChannelListener() {
+            @Override
+            void channelOpenSuccess(Channel channel) {
+                channels.incrementAndGet()
+            }
+        })
+        server.start()
+    }
+
+    /**
+     * Publishes a copy of a repository.
+     *
+     * @return the URI of the copy
+     */
+    String publish(File repository, String name) {
+        File copy = new File(root, name)
+        def process = ['git', 'clone', '--bare', '--no-local', repository.absolutePath, copy.absolutePath].execute()
+        process.outputStream.close()
+        process.consumeProcessOutput()
+        assert process.waitFor() == 0
+        "ssh://git@127.0.0.1:${server.port}${copy.toURI().path}"
+    }
+
+    /**
+     * Adds the host key of the server to the known hosts of a user home, which SSH
+     * clients check before they authenticate.
+     */
+    void trustIn(File userHome) {
+        File knownHosts = new File(userHome, '.ssh/known_hosts')
+        knownHosts.parentFile.mkdirs()
+        KeyPair hostKey = server.keyPairProvider.loadKeys(null).first()
+        knownHosts << "[127.0.0.1]:${server.port} ${PublicKeyEntry.toString(hostKey.public)}\n"
+    }
+
+    /**
+     * Closes the sessions of the clients, like a server does with idle connections.
+     */
+    void closeSessions() {
+        server.activeSessions.each { it.close(true) }
+    }
+
+    int getSessionCount() {
+        sessions.get()
+    }
+
+    int getChannelCount() {
+        channels.get()
+    }
+
+    @Override
+    void close() {
+        server.stop(true)
+    }
+}
@@ -8,6 +8,11 @@ rootProject.name = "advanced-includes"
 
 
 gitRepositories {
+    useGitCli.set(java.lang.Boolean.getBoolean("useGitCli"))
+    useWorktrees.set(java.lang.Boolean.getBoolean("useWorktrees"))
+    if (System.getProperty("maxTransfers") != null) {
+        maxConcurrentTransfers.set(Integer.getInteger("maxTransfers"))
+    }
     if (System.getProperty("autoInclude") != null) {
         include("testlib0") {
             uri.set("https://github.com/melix/includegit-gradle-plugin.git")
@@ -26,6 +31,7 @@ gitRepositories {
         include("testlib1") {
             uri.set("https://github.com/melix/includegit-gradle-plugin.git")
             branch.set("testlib-1")
+            sparseCheckout.set(java.lang.Boolean.getBoolean("sparse"))
             includeBuild(System.getProperty("subdir")) {
                 name = "testlib1"
             }
@@ -47,5 +53,18 @@ gitRepositories {
                 }
             }
         }
+    } else if (System.getProperty("parallelism") != null) {
+        parallelism.set(Integer.getInteger("parallelism"))
+        include("testlib0") {
+            uri.set("https://github.com/melix/includegit-gradle-plugin.git")
+            branch.set("testlib-0")
+        }
+        include("testlib1") {
+            uri.set("https://github.com/melix/includegit-gradle-plugin.git")
+            branch.set("testlib-1")
+            includeBuild("sub2") {
+                name = "testlib1"
+            }
+        }
     }
 }
@@ -1,3 +1,4 @@
+import me.champeau.gradle.igp.SshBackend
 import me.champeau.gradle.igp.gitRepositories
 
 plugins {
@@ -8,14 +9,71 @@ rootProject.name = "basic"
 
 
 gitRepositories {
+    if (gradle.startParameter.projectProperties.containsKey("useGitCli")) {
+        useGitCli.set(true)
+    }
+    if (gradle.startParameter.projectProperties.containsKey("checkoutsDir")) {
+        checkoutsDirectory.set(file(gradle.startParameter.projectProperties.get("checkoutsDir")!!))
+    }
+    if (gradle.startParameter.projectProperties.containsKey("sharedObjectCache")) {
+        useSharedObjectCache.set(true)
+        sharedObjectCacheDirectory.set(file(gradle.startParameter.projectProperties.get("sharedObjectCache")!!))
+    }
+    if (gradle.startParameter.projectProperties.containsKey("backgroundPrefetch")) {
+        backgroundPrefetch.set(true)
+    }
+    if (gradle.startParameter.projectProperties.containsKey("hedgeDelay")) {
+        hedgeDelayMillis.set(gradle.startParameter.projectProperties.get("hedgeDelay")!!.toLong())
+    }
+    if (gradle.startParameter.projectProperties.containsKey("maxTransfers")) {
+        maxConcurrentTransfers.set(gradle.startParameter.projectProperties.get("maxTransfers")!!.toInt())
+        maxConcurrentTransfersPerHost.set(gradle.startParameter.projectProperties.get("maxTransfers")!!.toInt())
+    }
+    if (gradle.startParameter.projectProperties.containsKey("maxBandwidth")) {
+        maxTransferBytesPerSecond.set(gradle.startParameter.projectProperties.get("maxBandwidth")!!.toLong())
+    }
+    if (gradle.startParameter.projectProperties.containsKey("httpMaxConnections")) {
+        httpMaxConnections.set(gradle.startParameter.projectProperties.get("httpMaxConnections")!!.toInt())
+        httpMaxConnectionsPerHost.set(gradle.startParameter.projectProperties.get("httpMaxConnections")!!.toInt())
+    }
+    if (gradle.startParameter.projectProperties.containsKey("httpTimeout")) {
+        httpConnectTimeoutMillis.set(gradle.startParameter.projectProperties.get("httpTimeout")!!.toInt())
+        httpReadTimeoutMillis.set(gradle.startParameter.projectProperties.get("httpTimeout")!!.toInt())
+    }
+    if (gradle.startParameter.projectProperties.containsKey("sshBackend")) {
+        defaultAuthentication {
+            sshBackend.set(SshBackend.valueOf(gradle.startParameter.projectProperties.get("sshBackend")!!))
+            if (gradle.startParameter.projectProperties.containsKey("sshPassword")) {
+                sshWithPassword {
+                    password.set(gradle.startParameter.projectProperties.get("sshPassword")!!)
+                }
+            }
+        }
+    }
+    if (gradle.startParameter.projectProperties.containsKey("snapshotCache")) {
+        useSnapshotCache.set(true)
+        snapshotCacheDirectory.set(file(gradle.startParameter.projectProperties.get("snapshotCache")!!))
+    }
     include("testlib0") {
         uri.set("https://github.com/melix/includegit-gradle-plugin.git")
-        if (gradle.startParameter.projectProperties.containsKey("useCommit")) {
+        if (gradle.startParameter.projectProperties.containsKey("unreachableUri")) {
+            uri.set(file("unreachable.git").absolutePath)
+        }
+        if (gradle.startParameter.projectProperties.containsKey("uri")) {
+            uri.set(gradle.startParameter.projectProperties.get("uri")!!)
+        }
+        if (gradle.startParameter.projectProperties.containsKey("mirror")) {
+            mirrors.add("https://github.com/melix/includegit-gradle-plugin.git")
+        }
+        if (gradle.startParameter.projectProperties.containsKey("useCommit") || gradle.startParameter.projectProperties.containsKey("commit")) {
             println("Using commit")
-            commit.set("df01b5ffd")
+            commit.set(gradle.startParameter.projectProperties.get("commit") ?: "df01b5ffd")
         } else {
             println("Using branch")
-            branch.set("testlib-0")
+            branch.set(gradle.startParameter.projectProperties.get("branch") ?: "testlib-0")
+        }
+        if (gradle.startParameter.projectProperties.containsKey("cloneDepth")) {
+            cloneDepth.set(gradle.startParameter.projectProperties.get("cloneDepth")!!.toInt())
         }
         if (gradle.startParameter.projectProperties.containsKey("checkoutDir")) {
             checkoutDirectory.set(file(gradle.startParameter.projectProperties.get("checkoutDir")!!))
@@ -23,6 +81,9 @@ gitRepositories {
         codeReady {
             println("Code ready")
             println("Checkout directory: ${checkoutDirectory}")
+            println("Previous commit: ${previousCommit}")
+            println("Changed: ${isChanged}")
+            println("Changed paths: ${changedPaths.size}")
         }
     }
 }
@@ -6,6 +6,7 @@ pluginManagement {
 
 rootProject.name = "gradle-includegit-plugin"
 
+include("benchmarks")
 include("docs")
 include("plugin")
 